@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.AWSXRayClientBuilder;
+import com.sun.net.httpserver.HttpServer;
+import java.nio.file.Paths;
+
+/*
+ * ReplayBenchmark replays spans recorded by SpanRecorder into XRayExporterHandler, which sends
+ * them to the fake endpoint of SenderBenchmark.
+ *
+ *   ./gradlew replay -PreplayArgs="spans.rec 0 20"
+ *
+ * The arguments are the recording, the speed (1.0 as recorded, 0 as fast as possible) and the
+ * endpoint latency in milliseconds.
+ */
+public final class ReplayBenchmark {
+  private ReplayBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: ReplayBenchmark <recording> [speed] [latency millis]");
+      System.exit(2);
+    }
+    double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+    int latencyMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+    HttpServer endpoint = SenderBenchmark.startEndpoint(latencyMillis);
+    try {
+      AWSXRay client =
+          AWSXRayClientBuilder.standard()
+              .withEndpointConfiguration(
+                  new AwsClientBuilder.EndpointConfiguration(
+                      "http://127.0.0.1:" + endpoint.getAddress().getPort(), "us-east-1"))
+              .withCredentials(
+                  new AWSStaticCredentialsProvider(new BasicAWSCredentials("bench", "bench")))
+              .build();
+      XRayExporterConfiguration config =
+          XRayExporterConfiguration.builder().setServiceName("replay").setClient(client).build();
+      XRayExporterHandler handler =
+          new XRayExporterHandler(config, new ApiSegmentTransport(client));
+      SpanReplayer.Result result = SpanReplayer.replay(Paths.get(args[0]), handler, speed);
+      handler.shutdown();
+      ShardedSender sender = handler.getSender();
+      System.out.printf(
+          "java=%s speed=%s latency=%dms records=%d spans=%d%n",
+          System.getProperty("java.version"),
+          speed == 0 ? "max" : String.valueOf(speed),
+          latencyMillis,
+          result.records,
+          result.spans);
+      System.out.printf(
+          "%.0f spans/s maxLag=%.1fms sent=%d dropped=%d failed=%d batches=%d%n",
+          result.spans * 1e9 / result.elapsedNanos,
+          result.maxLagNanos / 1e6,
+          sender.getSentDocuments(),
+          sender.getDroppedDocuments(),
+          sender.getFailedDocuments(),
+          sender.getBatches());
+      client.shutdown();
+    } finally {
+      endpoint.stop(0);
+    }
+  }
+}
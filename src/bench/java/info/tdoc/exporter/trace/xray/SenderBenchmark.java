@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.AWSXRayClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * SenderBenchmark compares SegmentSender on a bounded pool of platform threads with a virtual
+ * thread per request, against an in-process fake X-Ray endpoint which answers PutTraceSegments
+ * after a fixed latency.
+ *
+ *   ./gradlew benchmark -PbenchmarkArgs="50 100000 64"
+ *
+ * The arguments are the endpoint latency in milliseconds, the number of documents and the number
+ * of requests in flight. The task runs on a JDK 21 toolchain; virtual threads are skipped when
+ * not running on Java 21 or later.
+ */
+public final class SenderBenchmark {
+  private static final byte[] RESPONSE = "{\"UnprocessedTraceSegments\":[]}".getBytes(UTF_8);
+  private static final int BATCH_SIZE = 50;
+
+  private SenderBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int latencyMillis = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int documents = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+    HttpServer endpoint = startEndpoint(latencyMillis);
+    try {
+      AWSXRay client =
+          AWSXRayClientBuilder.standard()
+              .withEndpointConfiguration(
+                  new AwsClientBuilder.EndpointConfiguration(
+                      "http://127.0.0.1:" + endpoint.getAddress().getPort(), "us-east-1"))
+              .withCredentials(
+                  new AWSStaticCredentialsProvider(new BasicAWSCredentials("bench", "bench")))
+              .withClientConfiguration(new ClientConfiguration().withMaxConnections(concurrency))
+              .build();
+      System.out.printf(
+          "java=%s latency=%dms documents=%d concurrency=%d default=%s%n",
+          System.getProperty("java.version"),
+          latencyMillis,
+          documents,
+          concurrency,
+          SenderExecutors.usesVirtualThreads() ? "virtual" : "platform");
+
+      // warm up the client and the JIT before measuring.
+      run("warmup", client, Executors.newFixedThreadPool(concurrency), documents / 10, concurrency);
+      run("platform", client, Executors.newFixedThreadPool(concurrency), documents, concurrency);
+      ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+      if (virtual == null) {
+        System.out.println("virtual: skipped, requires Java 21");
+      } else {
+        run("virtual", client, virtual, documents, concurrency);
+      }
+      client.shutdown();
+    } finally {
+      endpoint.stop(0);
+    }
+  }
+
+  private static void run(
+      String label, AWSXRay client, ExecutorService executor, int documents, int concurrency) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    threads.resetPeakThreadCount();
+    SegmentSender sender =
+        new SegmentSender(
+            "bench",
+            new ApiSegmentTransport(client),
+            null,
+            new FairQueue(documents),
+            BATCH_SIZE,
+            concurrency,
+            0,
+            null,
+            executor);
+    byte[] document =
+        ("{\"name\":\"bench\",\"id\":\"70de5b6f19ff9a0a\","
+                + "\"trace_id\":\"1-581cf771-a006649127e371903a2de979\","
+                + "\"start_time\":1478293361.271,\"end_time\":1478293361.449}")
+            .getBytes(UTF_8);
+    long start = System.nanoTime();
+    for (int i = 0; i < documents; i++) {
+      sender.offer(document);
+    }
+    sender.shutdown(10, TimeUnit.MINUTES);
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+    System.out.printf(
+        "%s: %.0f documents/s sent=%d failed=%d peakThreads=%d%n",
+        label,
+        sender.getSentDocuments() * 1e9 / elapsed,
+        sender.getSentDocuments(),
+        sender.getFailedDocuments(),
+        threads.getPeakThreadCount());
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static HttpServer startEndpoint(final int latencyMillis) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1) {}
+            try {
+              Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.1");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(RESPONSE);
+            out.close();
+          }
+        });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    return server;
+  }
+}
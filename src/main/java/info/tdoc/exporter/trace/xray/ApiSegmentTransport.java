@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * ApiSegmentTransport sends documents with the PutTraceSegments API. The client is obtained from
+ * a supplier per request, so that it can be built lazily.
+ */
+final class ApiSegmentTransport implements SegmentTransport {
+  private final Supplier<AWSXRay> client;
+
+  ApiSegmentTransport(AWSXRay client) {
+    this(Suppliers.ofInstance(client));
+  }
+
+  ApiSegmentTransport(Supplier<AWSXRay> client) {
+    this.client = client;
+  }
+
+  @Override
+  public int send(List<ByteBuffer> documents) {
+    List<String> encodedSpans = new ArrayList<String>(documents.size());
+    for (ByteBuffer document : documents) {
+      encodedSpans.add(decode(document));
+    }
+    PutTraceSegmentsRequest req =
+        new PutTraceSegmentsRequest().withTraceSegmentDocuments(encodedSpans);
+    PutTraceSegmentsResult res = client.get().putTraceSegments(req);
+    return res.getUnprocessedTraceSegments().size();
+  }
+
+  private static String decode(ByteBuffer document) {
+    if (document.hasArray()) {
+      return new String(
+          document.array(),
+          document.arrayOffset() + document.position(),
+          document.remaining(),
+          UTF_8);
+    }
+    return UTF_8.decode(document.duplicate()).toString();
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * AttributeProcessor decides which attributes leave the process and scrubs their values. It is
+ * compiled once when an exporter is registered: exact keys go to a hash set, prefixes to a trie
+ * and value patterns are precompiled, so that spans are filtered while they are converted and no
+ * filtered copy of the attribute map is ever made.
+ */
+final class AttributeProcessor {
+  static final String REDACTED = "***";
+  static final AttributeProcessor NONE =
+      new AttributeProcessor(
+          ImmutableSet.<String>of(),
+          ImmutableList.<String>of(),
+          ImmutableList.<String>of(),
+          false);
+
+  private final Set<String> droppedKeys;
+  private final PrefixTrie droppedPrefixes;
+  private final Pattern[] redactedPatterns;
+  private final boolean stripSqlLiterals;
+
+  AttributeProcessor(
+      Collection<String> droppedKeys,
+      Collection<String> droppedPrefixes,
+      List<String> redactedPatterns,
+      boolean stripSqlLiterals) {
+    this.droppedKeys = ImmutableSet.copyOf(droppedKeys);
+    this.droppedPrefixes = new PrefixTrie(droppedPrefixes);
+    this.redactedPatterns = new Pattern[redactedPatterns.size()];
+    for (int i = 0; i < this.redactedPatterns.length; i++) {
+      this.redactedPatterns[i] = Pattern.compile(redactedPatterns.get(i));
+    }
+    this.stripSqlLiterals = stripSqlLiterals;
+  }
+
+  /*
+   * isDropped returns true if the attribute must not be exported at all.
+   */
+  boolean isDropped(String key) {
+    return droppedKeys.contains(key) || droppedPrefixes.matchesPrefixOf(key);
+  }
+
+  /*
+   * scrub replaces every match of the redaction patterns in value.
+   */
+  String scrub(String value) {
+    for (Pattern p : redactedPatterns) {
+      Matcher m = p.matcher(value);
+      if (m.find()) {
+        value = m.replaceAll(REDACTED);
+      }
+    }
+    return value;
+  }
+
+  /*
+   * scrubSql scrubs value and, if configured, replaces its string and numeric literals with '?'.
+   */
+  String scrubSql(String query) {
+    query = scrub(query);
+    return stripSqlLiterals ? stripSqlLiterals(query) : query;
+  }
+
+  static String stripSqlLiterals(String sql) {
+    StringBuilder sb = null;
+    int n = sql.length();
+    int last = 0;
+    int i = 0;
+    while (i < n) {
+      char c = sql.charAt(i);
+      int end = -1;
+      if (c == '\'') {
+        int j = i + 1;
+        while (j < n) {
+          if (sql.charAt(j) == '\'') {
+            if (j + 1 < n && sql.charAt(j + 1) == '\'') { // escaped quote
+              j += 2;
+              continue;
+            }
+            break;
+          }
+          j++;
+        }
+        end = Math.min(j + 1, n);
+      } else if (isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+        int j = i + 1;
+        while (j < n && (isDigit(sql.charAt(j)) || sql.charAt(j) == '.')) {
+          j++;
+        }
+        end = j;
+      }
+      if (end < 0) {
+        i++;
+        continue;
+      }
+      if (sb == null) {
+        sb = new StringBuilder(n);
+      }
+      sb.append(sql, last, i).append('?');
+      last = end;
+      i = end;
+    }
+    if (sb == null) {
+      return sql;
+    }
+    return sb.append(sql, last, n).toString();
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  /*
+   * PrefixTrie matches a key against a set of prefixes in a single pass over the key.
+   */
+  private static final class PrefixTrie {
+    private final Node root = new Node();
+    private final boolean empty;
+
+    PrefixTrie(Collection<String> prefixes) {
+      for (String prefix : prefixes) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+          Node next = node.children.get(prefix.charAt(i));
+          if (next == null) {
+            next = new Node();
+            node.children.put(prefix.charAt(i), next);
+          }
+          node = next;
+        }
+        node.terminal = true;
+      }
+      this.empty = prefixes.isEmpty();
+    }
+
+    boolean matchesPrefixOf(String key) {
+      if (empty) {
+        return false;
+      }
+      Node node = root;
+      for (int i = 0; i < key.length(); i++) {
+        if (node.terminal) {
+          return true;
+        }
+        node = node.children.get(key.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+      return node.terminal;
+    }
+
+    private static final class Node {
+      private final Map<Character, Node> children = new HashMap<Character, Node>();
+      private boolean terminal = false;
+    }
+  }
+}
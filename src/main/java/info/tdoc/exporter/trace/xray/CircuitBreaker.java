@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * CircuitBreaker stops calling the X-Ray endpoint while it is failing.
+ *
+ * It records the outcome of the last windowSize requests. Once the window is full and the failure
+ * rate reaches failureRateThreshold the breaker opens and every request is rejected without being
+ * sent. After openDuration it lets halfOpenTrials requests through: if they all succeed the breaker
+ * closes, otherwise it opens again.
+ */
+final class CircuitBreaker {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final double failureRateThreshold;
+  private final long openDurationNanos;
+  private final int halfOpenTrials;
+  private final Ticker ticker;
+
+  @GuardedBy("this")
+  private final boolean[] window;
+
+  @GuardedBy("this")
+  private int windowCount = 0;
+
+  @GuardedBy("this")
+  private int windowIndex = 0;
+
+  @GuardedBy("this")
+  private int windowFailures = 0;
+
+  @GuardedBy("this")
+  private State state = State.CLOSED;
+
+  @GuardedBy("this")
+  private long openedAtNanos = 0;
+
+  @GuardedBy("this")
+  private int trialsStarted = 0;
+
+  @GuardedBy("this")
+  private int trialsSucceeded = 0;
+
+  @GuardedBy("this")
+  private long timesOpened = 0;
+
+  CircuitBreaker(
+      double failureRateThreshold,
+      int windowSize,
+      long openDuration,
+      TimeUnit unit,
+      int halfOpenTrials,
+      Ticker ticker) {
+    this.failureRateThreshold = failureRateThreshold;
+    this.window = new boolean[windowSize];
+    this.openDurationNanos = unit.toNanos(openDuration);
+    this.halfOpenTrials = halfOpenTrials;
+    this.ticker = ticker;
+  }
+
+  static CircuitBreaker fromConfiguration(XRayExporterConfiguration config) {
+    return new CircuitBreaker(
+        config.getCircuitBreakerFailureRate(),
+        config.getCircuitBreakerWindowSize(),
+        config.getCircuitBreakerOpenMillis(),
+        TimeUnit.MILLISECONDS,
+        config.getCircuitBreakerHalfOpenTrials(),
+        Ticker.systemTicker());
+  }
+
+  /*
+   * allowRequest returns true if a request may be sent. Every allowed request must be followed by
+   * onSuccess, onFailure or onCancelled.
+   */
+  @SuppressWarnings("fallthrough")
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (ticker.read() - openedAtNanos < openDurationNanos) {
+          return false;
+        }
+        state = State.HALF_OPEN;
+        trialsStarted = 0;
+        trialsSucceeded = 0;
+        // fall through
+      case HALF_OPEN:
+      default:
+        if (trialsStarted >= halfOpenTrials) {
+          return false;
+        }
+        trialsStarted++;
+        return true;
+    }
+  }
+
+  /*
+   * onSuccess and onFailure ignore the outcomes of requests which were in flight when the breaker
+   * opened, so that they neither extend the open period nor count as another opening.
+   */
+  synchronized void onSuccess() {
+    if (state == State.OPEN) {
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      trialsSucceeded++;
+      if (trialsSucceeded >= halfOpenTrials) {
+        close();
+      }
+      return;
+    }
+    record(false);
+  }
+
+  synchronized void onFailure() {
+    if (state == State.OPEN) {
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      open();
+      return;
+    }
+    record(true);
+    if (windowCount == window.length
+        && windowFailures >= failureRateThreshold * window.length) {
+      open();
+    }
+  }
+
+  /*
+   * onCancelled ends an allowed request which was given up before reaching the endpoint, e.g. at
+   * shutdown. It is neither a success nor a failure, but gives back a half open trial.
+   */
+  synchronized void onCancelled() {
+    if (state == State.HALF_OPEN && trialsStarted > 0) {
+      trialsStarted--;
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  synchronized long getTimesOpened() {
+    return timesOpened;
+  }
+
+  @GuardedBy("this")
+  private void record(boolean failure) {
+    if (windowCount == window.length) {
+      if (window[windowIndex]) {
+        windowFailures--;
+      }
+    } else {
+      windowCount++;
+    }
+    window[windowIndex] = failure;
+    if (failure) {
+      windowFailures++;
+    }
+    windowIndex = (windowIndex + 1) % window.length;
+  }
+
+  @GuardedBy("this")
+  private void open() {
+    state = State.OPEN;
+    openedAtNanos = ticker.read();
+    timesOpened++;
+  }
+
+  @GuardedBy("this")
+  private void close() {
+    state = State.CLOSED;
+    windowCount = 0;
+    windowIndex = 0;
+    windowFailures = 0;
+  }
+}
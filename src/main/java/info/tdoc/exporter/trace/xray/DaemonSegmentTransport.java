@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * DaemonSegmentTransport sends one UDP datagram per document to the X-Ray daemon. The header and
+ * the document are written with one gathering write, so documents are not copied to the heap.
+ *
+ * document: https://docs.aws.amazon.com/xray/latest/devguide/xray-api-sendingdata.html#xray-api-daemon
+ */
+final class DaemonSegmentTransport implements SegmentTransport {
+  private static final Logger logger = Logger.getLogger(DaemonSegmentTransport.class.getName());
+  static final byte[] HEADER = "{\"format\": \"json\", \"version\": 1}\n".getBytes(UTF_8);
+
+  private static final ByteBuffer HEADER_BUFFER =
+      ByteBuffer.allocateDirect(HEADER.length).put(HEADER);
+
+  static {
+    HEADER_BUFFER.flip();
+  }
+
+  private final DatagramChannel channel;
+
+  DaemonSegmentTransport(String daemonAddress) {
+    InetSocketAddress address = parseAddress(daemonAddress);
+    try {
+      this.channel = DatagramChannel.open();
+      channel.connect(address);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static InetSocketAddress parseAddress(String daemonAddress) {
+    int i = daemonAddress.lastIndexOf(':');
+    if (i <= 0 || i == daemonAddress.length() - 1) {
+      throw new IllegalArgumentException("invalid daemon address: " + daemonAddress);
+    }
+    return new InetSocketAddress(
+        daemonAddress.substring(0, i), Integer.parseInt(daemonAddress.substring(i + 1)));
+  }
+
+  @Override
+  public int send(List<ByteBuffer> documents) {
+    ByteBuffer[] datagram = new ByteBuffer[2];
+    for (ByteBuffer document : documents) {
+      datagram[0] = HEADER_BUFFER.duplicate();
+      datagram[1] = document.duplicate();
+      try {
+        channel.write(datagram);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Failed to close the daemon channel", e);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * DocumentArena stores encoded documents off the Java heap while they wait to be sent.
+ *
+ * Memory is reserved in pages of direct ByteBuffers, up to maxBytes. A page is carved into chunks
+ * of one size class, powers of two from MIN_CHUNK_SIZE to the page size, the first time a chunk of
+ * that class is needed. A document is copied into the smallest chunk that fits, and the returned
+ * buffer is the chunk itself with the limit set to the document length. Chunks are reused after
+ * release(), so that storing a document does not allocate on the heap once pages are carved.
+ *
+ * As in other slab allocators, a page keeps its size class, so a change of document sizes may
+ * leave free chunks of one class while another class is full.
+ */
+final class DocumentArena {
+  static final int MIN_CHUNK_SIZE = 256;
+  static final int MIN_PAGE_SIZE = 64 * 1024;
+
+  private final int pageSize;
+  private final int maxPages;
+
+  @GuardedBy("this")
+  private final ArrayDeque<ByteBuffer>[] free;
+
+  @GuardedBy("this")
+  private int pages;
+
+  @GuardedBy("this")
+  private long usedBytes;
+
+  @GuardedBy("this")
+  private long chunkBytes;
+
+  @GuardedBy("this")
+  private long failedAllocations;
+
+  /*
+   * maxDocumentBytes sets the page size, the smallest power of two which holds the largest
+   * document, at least MIN_PAGE_SIZE. maxBytes must hold at least one page.
+   */
+  DocumentArena(long maxBytes, int maxDocumentBytes) {
+    checkArgument(maxDocumentBytes > 0, "maxDocumentBytes must be positive");
+    this.pageSize = pageSize(maxDocumentBytes);
+    checkArgument(maxBytes >= pageSize, "maxBytes must hold at least one page of %s", pageSize);
+    this.maxPages = (int) Math.min(Integer.MAX_VALUE, maxBytes / pageSize);
+    this.free = newFreeLists(sizeClass(pageSize) + 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ArrayDeque<ByteBuffer>[] newFreeLists(int count) {
+    ArrayDeque<ByteBuffer>[] lists = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[count];
+    for (int i = 0; i < lists.length; i++) {
+      lists[i] = new ArrayDeque<ByteBuffer>();
+    }
+    return lists;
+  }
+
+  static int pageSize(int maxDocumentBytes) {
+    return Math.max(MIN_PAGE_SIZE, ceilPowerOfTwo(maxDocumentBytes));
+  }
+
+  private static int ceilPowerOfTwo(int n) {
+    return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+  }
+
+  private static int sizeClass(int length) {
+    int size = Math.max(MIN_CHUNK_SIZE, ceilPowerOfTwo(length));
+    return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+  }
+
+  private static int chunkSize(int sizeClass) {
+    return MIN_CHUNK_SIZE << sizeClass;
+  }
+
+  /*
+   * allocate copies the document into a chunk and returns it, or null if the arena is full or the
+   * document is larger than a page.
+   */
+  @Nullable
+  ByteBuffer allocate(byte[] document) {
+    if (document.length > pageSize) {
+      synchronized (this) {
+        failedAllocations++;
+      }
+      return null;
+    }
+    int sizeClass = sizeClass(document.length);
+    ByteBuffer chunk;
+    synchronized (this) {
+      chunk = free[sizeClass].poll();
+      if (chunk == null && pages < maxPages) {
+        carve(sizeClass);
+        chunk = free[sizeClass].poll();
+      }
+      if (chunk == null) {
+        failedAllocations++;
+        return null;
+      }
+      usedBytes += document.length;
+      chunkBytes += chunk.capacity();
+    }
+    chunk.clear();
+    chunk.put(document);
+    chunk.flip();
+    return chunk;
+  }
+
+  @GuardedBy("this")
+  private void carve(int sizeClass) {
+    ByteBuffer page = ByteBuffer.allocateDirect(pageSize);
+    int size = chunkSize(sizeClass);
+    for (int offset = 0; offset < pageSize; offset += size) {
+      page.limit(offset + size);
+      page.position(offset);
+      free[sizeClass].add(page.slice());
+    }
+    pages++;
+  }
+
+  /*
+   * release returns a chunk from allocate() to the arena. The chunk must not be used afterwards.
+   */
+  void release(ByteBuffer chunk) {
+    synchronized (this) {
+      usedBytes -= chunk.limit();
+      chunkBytes -= chunk.capacity();
+      free[sizeClass(chunk.capacity())].push(chunk);
+    }
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  /* Returns the bytes reserved for pages, at most maxBytes. */
+  synchronized long getReservedBytes() {
+    return (long) pages * pageSize;
+  }
+
+  /* Returns the bytes of the stored documents. */
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /* Returns the bytes of the chunks holding the stored documents. */
+  synchronized long getChunkBytes() {
+    return chunkBytes;
+  }
+
+  synchronized long getFailedAllocations() {
+    return failedAllocations;
+  }
+}
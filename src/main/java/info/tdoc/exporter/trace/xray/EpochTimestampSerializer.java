@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import io.opencensus.common.Timestamp;
+import java.io.IOException;
+
+/*
+ * EpochTimestampSerializer writes a Timestamp as epoch seconds with microsecond precision, e.g.
+ * 1519629870.001234. The digits are produced directly from the seconds and nanos into a reused
+ * buffer: there is no double arithmetic, no scientific notation and no allocation per value.
+ */
+final class EpochTimestampSerializer extends StdSerializer<Timestamp> {
+  private static final long serialVersionUID = 1L;
+  // 19 digits of a long, '.', 6 digits of micros.
+  private static final int MAX_LENGTH = 26;
+  private static final ThreadLocal<char[]> buffers =
+      new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+          return new char[MAX_LENGTH];
+        }
+      };
+
+  EpochTimestampSerializer() {
+    super(Timestamp.class);
+  }
+
+  @Override
+  public void serialize(Timestamp value, JsonGenerator gen, SerializerProvider provider)
+      throws IOException {
+    write(value, gen);
+  }
+
+  static void write(Timestamp value, JsonGenerator gen) throws IOException {
+    if (value.getSeconds() < 0) {
+      gen.writeNumber(value.getSeconds() + value.getNanos() / 1e9);
+      return;
+    }
+    char[] buf = buffers.get();
+    int len = format(value.getSeconds(), value.getNanos(), buf);
+    gen.writeRawValue(buf, 0, len);
+  }
+
+  /*
+   * format writes seconds.micros into buf and returns the length. seconds must not be negative.
+   */
+  static int format(long seconds, int nanos, char[] buf) {
+    int digits = 1;
+    for (long s = seconds / 10; s != 0; s /= 10) {
+      digits++;
+    }
+    int pos = digits;
+    long s = seconds;
+    do {
+      buf[--pos] = (char) ('0' + (int) (s % 10));
+      s /= 10;
+    } while (s != 0);
+
+    buf[digits] = '.';
+    int micros = nanos / 1000;
+    for (int i = digits + 6; i > digits; i--) {
+      buf[i] = (char) ('0' + micros % 10);
+      micros /= 10;
+    }
+    return digits + 7;
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.amazonaws.services.xray.AWSXRay;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+
+/**
+ * An additional destination the exporter delivers every segment to, e.g. another account or
+ * region, or a local file for audit. Segments are encoded once and the same bytes are queued for
+ * each destination. Every destination has its own queue, requests, retries and rate limit, so a
+ * slow or failing one does not hold back the others.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * XRayTraceExporter.createAndRegister(
+ *     XRayExporterConfiguration.builder()
+ *         .setServiceName("myservicename")
+ *         .setRegion("us-west-2")
+ *         .setDestinations(
+ *             Arrays.asList(
+ *                 ExportDestination.builder("backup").setRegion("eu-west-1").build(),
+ *                 ExportDestination.builder("audit")
+ *                     .setTransport(XRayExporterConfiguration.Transport.FILE)
+ *                     .setFile(Paths.get("/var/log/segments.log"))
+ *                     .build()))
+ *         .build());
+ * }</pre>
+ */
+public final class ExportDestination {
+  static final int DEFAULT_MAX_RETRIES = 2;
+  static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+
+  private final String name;
+  private final XRayExporterConfiguration.Transport transport;
+  @Nullable private final AWSXRay client;
+  @Nullable private final String region;
+  private final String daemonAddress;
+  @Nullable private final Path file;
+  private final int maxQueueSize;
+  private final int maxBatchSize;
+  private final int maxConcurrency;
+  private final int maxRetries;
+  private final long retryBackoffMillis;
+  private final double rateLimit;
+
+  private ExportDestination(Builder builder) {
+    this.name = builder.name;
+    this.transport = builder.transport;
+    this.client = builder.client;
+    this.region = builder.region;
+    this.daemonAddress = builder.daemonAddress;
+    this.file = builder.file;
+    this.maxQueueSize = builder.maxQueueSize;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.maxConcurrency = builder.maxConcurrency;
+    this.maxRetries = builder.maxRetries;
+    this.retryBackoffMillis = builder.retryBackoffMillis;
+    this.rateLimit = builder.rateLimit;
+  }
+
+  /**
+   * Returns a new {@link Builder}.
+   *
+   * @param name the name of the destination, unique within an exporter.
+   */
+  public static Builder builder(String name) {
+    return new Builder(name);
+  }
+
+  /** Returns the name of the destination. */
+  public String getName() {
+    return name;
+  }
+
+  /** Returns how segment documents are delivered. */
+  public XRayExporterConfiguration.Transport getTransport() {
+    return transport;
+  }
+
+  /** Returns the AWS X-Ray client, or {@code null} to build one. */
+  @Nullable
+  public AWSXRay getClient() {
+    return client;
+  }
+
+  /** Returns the region of the client built when no client is given. */
+  @Nullable
+  public String getRegion() {
+    return region;
+  }
+
+  /** Returns the {@code host:port} of the X-Ray daemon. */
+  public String getDaemonAddress() {
+    return daemonAddress;
+  }
+
+  /** Returns the file documents are appended to. */
+  @Nullable
+  public Path getFile() {
+    return file;
+  }
+
+  /** Returns the maximum number of encoded documents waiting to be sent. */
+  public int getMaxQueueSize() {
+    return maxQueueSize;
+  }
+
+  /** Returns the maximum number of documents per request. */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /** Returns the maximum number of requests in flight. */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /** Returns how many times a failed request is tried again. */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /** Returns the wait before the first retry. */
+  public long getRetryBackoffMillis() {
+    return retryBackoffMillis;
+  }
+
+  /** Returns the maximum documents sent per second, or 0 for no limit. */
+  public double getRateLimit() {
+    return rateLimit;
+  }
+
+  /** Builder for {@link ExportDestination}. */
+  public static final class Builder {
+    private final String name;
+    private XRayExporterConfiguration.Transport transport =
+        XRayExporterConfiguration.Transport.API;
+    @Nullable private AWSXRay client;
+    @Nullable private String region;
+    private String daemonAddress = XRayExporterConfiguration.DEFAULT_DAEMON_ADDRESS;
+    @Nullable private Path file;
+    private int maxQueueSize = XRayExporterConfiguration.DEFAULT_MAX_QUEUE_SIZE;
+    private int maxBatchSize = XRayExporterConfiguration.DEFAULT_MAX_BATCH_SIZE;
+    private int maxConcurrency = XRayExporterConfiguration.DEFAULT_MAX_CONCURRENCY;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+    private double rateLimit = 0;
+
+    private Builder(String name) {
+      this.name = checkNotNull(name, "name");
+    }
+
+    /** Sets how segment documents are delivered. */
+    public Builder setTransport(XRayExporterConfiguration.Transport transport) {
+      this.transport = checkNotNull(transport, "transport");
+      return this;
+    }
+
+    /** Sets the AWS X-Ray client. */
+    public Builder setClient(@Nullable AWSXRay client) {
+      this.client = client;
+      return this;
+    }
+
+    /** Sets the region of the client built when no client is given. */
+    public Builder setRegion(@Nullable String region) {
+      this.region = region;
+      return this;
+    }
+
+    /** Sets the {@code host:port} of the X-Ray daemon. */
+    public Builder setDaemonAddress(String daemonAddress) {
+      this.daemonAddress = checkNotNull(daemonAddress, "daemonAddress");
+      return this;
+    }
+
+    /** Sets the file documents are appended to, one per line, with the {@code FILE} transport. */
+    public Builder setFile(@Nullable Path file) {
+      this.file = file;
+      return this;
+    }
+
+    /** Sets the maximum number of encoded documents waiting to be sent. */
+    public Builder setMaxQueueSize(int maxQueueSize) {
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /** Sets the maximum number of documents per request. */
+    public Builder setMaxBatchSize(int maxBatchSize) {
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /** Sets the maximum number of requests in flight. */
+    public Builder setMaxConcurrency(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /**
+     * Sets how many times a failed request is tried again, with an exponential backoff. Defaults
+     * to 2.
+     */
+    public Builder setMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /** Sets the wait before the first retry, doubled for each further one. Defaults to 100. */
+    public Builder setRetryBackoffMillis(long retryBackoffMillis) {
+      this.retryBackoffMillis = retryBackoffMillis;
+      return this;
+    }
+
+    /**
+     * Sets the maximum documents sent per second. Requests over the limit wait, and documents
+     * queue up behind them. 0, the default, sends without limit.
+     */
+    public Builder setRateLimit(double rateLimit) {
+      this.rateLimit = rateLimit;
+      return this;
+    }
+
+    /**
+     * Builds a {@link ExportDestination}.
+     *
+     * @throws IllegalArgumentException if a limit is out of range or the file is missing.
+     */
+    public ExportDestination build() {
+      checkArgument(!name.isEmpty(), "name must not be empty");
+      checkArgument(maxQueueSize > 0, "maxQueueSize must be positive");
+      checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+      checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+      checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+      checkArgument(retryBackoffMillis >= 0, "retryBackoffMillis must not be negative");
+      checkArgument(rateLimit >= 0, "rateLimit must not be negative");
+      checkArgument(
+          transport != XRayExporterConfiguration.Transport.FILE || file != null,
+          "file is required with the FILE transport");
+      return new ExportDestination(this);
+    }
+  }
+}
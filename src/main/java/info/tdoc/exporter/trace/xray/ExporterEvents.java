@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+/*
+ * ExporterEvents defines the Java Flight Recorder events of the exporter.
+ *
+ * This is the Java 8 variant, where the events are empty shells that record nothing. The
+ * multi-release jar replaces it on Java 11 and later with src/main/java11/.../ExporterEvents.java,
+ * where the same classes extend jdk.jfr.Event. Callers use the jdk.jfr.Event pattern:
+ *
+ *   SendEvent event = new SendEvent();
+ *   event.begin();
+ *   ...
+ *   if (event.shouldCommit()) {
+ *     event.documents = ...;
+ *     event.commit();
+ *   }
+ */
+final class ExporterEvents {
+  static final String QUEUE_FULL = "queue_full";
+  static final String ARENA_FULL = "arena_full";
+  static final String OVERSIZED = "oversized";
+  static final String ENCODE_FAILED = "encode_failed";
+  static final String CIRCUIT_OPEN = "circuit_open";
+  static final String EXECUTOR_REJECTED = "executor_rejected";
+  static final String SHUTDOWN = "shutdown";
+
+  private ExporterEvents() {}
+
+  static void drop(String handler, int documents, String reason) {
+    DropEvent event = new DropEvent();
+    if (event.shouldCommit()) {
+      event.handler = handler;
+      event.documents = documents;
+      event.reason = reason;
+      event.commit();
+    }
+  }
+
+  /* Event has the methods of jdk.jfr.Event used by the exporter. */
+  abstract static class Event {
+    final void begin() {}
+
+    final void end() {}
+
+    final void commit() {}
+
+    final boolean isEnabled() {
+      return false;
+    }
+
+    final boolean shouldCommit() {
+      return false;
+    }
+  }
+
+  /* EncodeEvent covers converting and encoding one exported batch of spans. */
+  static final class EncodeEvent extends Event {
+    String handler;
+    int spans;
+    int documents;
+    long bytes;
+  }
+
+  /* SendEvent covers one request to the transport. */
+  static final class SendEvent extends Event {
+    String handler;
+    int documents;
+    long bytes;
+    int unprocessed;
+    boolean failed;
+  }
+
+  /* RetryEvent records a failed request which is tried again after a backoff. */
+  static final class RetryEvent extends Event {
+    String handler;
+    int documents;
+    int attempt;
+    long backoffMillis;
+  }
+
+  /* DropEvent records documents dropped without being sent. */
+  static final class DropEvent extends Event {
+    String handler;
+    int documents;
+    String reason;
+  }
+}
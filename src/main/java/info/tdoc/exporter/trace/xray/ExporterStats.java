@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A snapshot of the counters of a registered exporter, from {@link
+ * XRayTraceExporter#getStats(String)}. Document counts are totals since registration and cover
+ * the primary destination; the counts of each additional destination are in {@link
+ * #getDestinationStats()}.
+ */
+public final class ExporterStats {
+  private final long sentDocuments;
+  private final long droppedDocuments;
+  private final long failedDocuments;
+  private final long unprocessedDocuments;
+  private final long rejectedDocuments;
+  private final long queuedDocuments;
+  private final long batches;
+  private final int shards;
+  private final double shardImbalance;
+  private final long sampledOutSpans;
+  private final long oversizedDocuments;
+  private final long clientInitFailures;
+  private final long clientInitTimeouts;
+  private final Map<String, KeyStats> keyStats;
+  private final Map<String, DestinationStats> destinationStats;
+
+  /** The counts of one fair queuing key. */
+  public static final class KeyStats {
+    private final long admitted;
+    private final long dropped;
+    private final int queued;
+
+    KeyStats(FairQueue.KeyStats stats) {
+      this.admitted = stats.admitted;
+      this.dropped = stats.dropped;
+      this.queued = stats.queued;
+    }
+
+    /** Returns the number of documents admitted to the queue. */
+    public long getAdmitted() {
+      return admitted;
+    }
+
+    /** Returns the number of documents dropped when the queue was full. */
+    public long getDropped() {
+      return dropped;
+    }
+
+    /** Returns the number of documents waiting to be sent. */
+    public int getQueued() {
+      return queued;
+    }
+
+    @Override
+    public String toString() {
+      return "admitted=" + admitted + " dropped=" + dropped + " queued=" + queued;
+    }
+  }
+
+  /**
+   * The counts of one additional destination. Only additional destinations retry failed requests
+   * and have a rate limit; the primary destination does neither.
+   */
+  public static final class DestinationStats {
+    private final long queuedDocuments;
+    private final long sentDocuments;
+    private final long droppedDocuments;
+    private final long failedDocuments;
+    private final long retries;
+    private final long rateLimitedRequests;
+
+    DestinationStats(ShardedSender sender) {
+      this.queuedDocuments = sender.getQueueSize();
+      this.sentDocuments = sender.getSentDocuments();
+      this.droppedDocuments = sender.getDroppedDocuments();
+      this.failedDocuments = sender.getFailedDocuments();
+      this.retries = sender.getRetries();
+      this.rateLimitedRequests = sender.getRateLimitedRequests();
+    }
+
+    /** Returns the number of documents waiting to be sent. */
+    public long getQueuedDocuments() {
+      return queuedDocuments;
+    }
+
+    /** Returns the number of documents accepted by the destination. */
+    public long getSentDocuments() {
+      return sentDocuments;
+    }
+
+    /** Returns the number of documents dropped before being sent, e.g. when the queue was full. */
+    public long getDroppedDocuments() {
+      return droppedDocuments;
+    }
+
+    /** Returns the number of documents in requests which failed after all retries. */
+    public long getFailedDocuments() {
+      return failedDocuments;
+    }
+
+    /** Returns the number of requests sent again after a failure. */
+    public long getRetries() {
+      return retries;
+    }
+
+    /** Returns the number of requests which waited for the rate limit. */
+    public long getRateLimitedRequests() {
+      return rateLimitedRequests;
+    }
+
+    @Override
+    public String toString() {
+      return "queued="
+          + queuedDocuments
+          + " sent="
+          + sentDocuments
+          + " dropped="
+          + droppedDocuments
+          + " failed="
+          + failedDocuments
+          + " retries="
+          + retries
+          + " rate_limited="
+          + rateLimitedRequests;
+    }
+  }
+
+  ExporterStats(XRayExporterHandler handler) {
+    ShardedSender sender = handler.getSender();
+    this.sentDocuments = sender.getSentDocuments();
+    this.droppedDocuments = sender.getDroppedDocuments();
+    this.failedDocuments = sender.getFailedDocuments();
+    this.unprocessedDocuments = sender.getUnprocessedDocuments();
+    this.rejectedDocuments = sender.getRejectedDocuments();
+    this.queuedDocuments = sender.getQueueSize();
+    this.batches = sender.getBatches();
+    this.shards = sender.getShardCount();
+    this.shardImbalance = sender.getImbalance();
+    this.sampledOutSpans = handler.getSampledOutSpans();
+    this.oversizedDocuments = handler.getOversizedDocuments();
+    this.clientInitFailures = handler.getClientInitFailures();
+    this.clientInitTimeouts = handler.getClientInitTimeouts();
+    Map<String, KeyStats> keys = new TreeMap<String, KeyStats>();
+    for (Map.Entry<String, FairQueue.KeyStats> e : sender.getKeyStats().entrySet()) {
+      keys.put(e.getKey(), new KeyStats(e.getValue()));
+    }
+    this.keyStats = Collections.unmodifiableMap(keys);
+    Map<String, DestinationStats> destinations = new LinkedHashMap<String, DestinationStats>();
+    for (Map.Entry<String, ShardedSender> e : handler.getDestinationSenders().entrySet()) {
+      destinations.put(e.getKey(), new DestinationStats(e.getValue()));
+    }
+    this.destinationStats = Collections.unmodifiableMap(destinations);
+  }
+
+  /** Returns the number of documents accepted by X-Ray. */
+  public long getSentDocuments() {
+    return sentDocuments;
+  }
+
+  /** Returns the number of documents dropped before being sent, e.g. when the queue was full. */
+  public long getDroppedDocuments() {
+    return droppedDocuments;
+  }
+
+  /** Returns the number of documents in requests which failed. */
+  public long getFailedDocuments() {
+    return failedDocuments;
+  }
+
+  /** Returns the number of documents X-Ray reported as unprocessed. */
+  public long getUnprocessedDocuments() {
+    return unprocessedDocuments;
+  }
+
+  /** Returns the number of documents rejected while the circuit breaker was open. */
+  public long getRejectedDocuments() {
+    return rejectedDocuments;
+  }
+
+  /** Returns the number of documents waiting to be sent. */
+  public long getQueuedDocuments() {
+    return queuedDocuments;
+  }
+
+  /** Returns the number of requests sent. */
+  public long getBatches() {
+    return batches;
+  }
+
+  /** Returns the number of sender shards. */
+  public int getShards() {
+    return shards;
+  }
+
+  /**
+   * Returns the documents offered to the busiest shard divided by the mean over the shards, 1.0
+   * when they are balanced.
+   */
+  public double getShardImbalance() {
+    return shardImbalance;
+  }
+
+  /** Returns the number of spans left out by the sampling probability or the sampler. */
+  public long getSampledOutSpans() {
+    return sampledOutSpans;
+  }
+
+  /** Returns the number of documents dropped for exceeding the maximum document size. */
+  public long getOversizedDocuments() {
+    return oversizedDocuments;
+  }
+
+  /** Returns how often building a lazily built client failed. */
+  public long getClientInitFailures() {
+    return clientInitFailures;
+  }
+
+  /** Returns how many requests gave up waiting for a lazily built client. */
+  public long getClientInitTimeouts() {
+    return clientInitTimeouts;
+  }
+
+  /**
+   * Returns the counts of each fair queuing key, sorted by key. Without {@code setFairQueueKeys},
+   * all documents share the empty key.
+   */
+  public Map<String, KeyStats> getKeyStats() {
+    return keyStats;
+  }
+
+  /**
+   * Returns the counts of each additional destination, by name in the order they were configured.
+   */
+  public Map<String, DestinationStats> getDestinationStats() {
+    return destinationStats;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "queued=%d sent=%d dropped=%d failed=%d unprocessed=%d rejected=%d batches=%d shards=%d"
+            + " imbalance=%.2f sampled_out=%d oversized=%d client_init_failures=%d"
+            + " client_init_timeouts=%d",
+        queuedDocuments,
+        sentDocuments,
+        droppedDocuments,
+        failedDocuments,
+        unprocessedDocuments,
+        rejectedDocuments,
+        batches,
+        shards,
+        shardImbalance,
+        sampledOutSpans,
+        oversizedDocuments,
+        clientInitFailures,
+        clientInitTimeouts);
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.collect.ImmutableMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * FairQueue holds queued documents in a FIFO per key, e.g. per endpoint, and takes them out by
+ * deficit round robin: each turn a key may take up to weight * QUANTUM_BYTES more bytes, so that
+ * the keys share the sender by weight whatever their volume or document size.
+ *
+ * When the queue is full, the document is dropped from the key with the most queued documents: the
+ * newest document of a flooding key makes room, while a new document of that key is dropped. Flows
+ * are bucketed by their number of queued documents, so that the longest one is found in constant
+ * time whatever the number of keys. Keys beyond MAX_KEYS share OTHER_KEY.
+ */
+final class FairQueue {
+  static final int QUANTUM_BYTES = 4096;
+  static final int MAX_KEYS = 1000;
+  static final String OTHER_KEY = "other";
+
+  private final int capacity;
+  private final Map<String, Integer> weights;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+
+  @GuardedBy("lock")
+  private final Map<String, Flow> flows = new HashMap<String, Flow>();
+
+  // flows with queued documents, in round robin order. A flow emptied by a drop stays until its
+  // turn comes.
+  @GuardedBy("lock")
+  private final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+
+  // byCount.get(n) heads the list of the flows with n queued documents; longest is the largest n
+  // with a flow, or 0 if the queue is empty.
+  @GuardedBy("lock")
+  private final ArrayList<Flow> byCount = new ArrayList<Flow>();
+
+  @GuardedBy("lock")
+  private int longest = 0;
+
+  @GuardedBy("lock")
+  private int size = 0;
+
+  private static final class Flow {
+    final String key;
+    final long quantum;
+    final ArrayDeque<ByteBuffer> documents = new ArrayDeque<ByteBuffer>();
+    long deficit = 0;
+    long admitted = 0;
+    long dropped = 0;
+    // whether the flow is in active.
+    boolean scheduled = false;
+    // neighbours in the byCount list of the flow.
+    @Nullable Flow prevSameCount;
+    @Nullable Flow nextSameCount;
+
+    Flow(String key, long quantum) {
+      this.key = key;
+      this.quantum = quantum;
+    }
+  }
+
+  /** Admitted and dropped documents of a key. */
+  static final class KeyStats {
+    final long admitted;
+    final long dropped;
+    final int queued;
+
+    KeyStats(long admitted, long dropped, int queued) {
+      this.admitted = admitted;
+      this.dropped = dropped;
+      this.queued = queued;
+    }
+
+    @Override
+    public String toString() {
+      return "admitted=" + admitted + " dropped=" + dropped + " queued=" + queued;
+    }
+  }
+
+  FairQueue(int capacity) {
+    this(capacity, ImmutableMap.<String, Integer>of());
+  }
+
+  /*
+   * weights maps keys to their share; other keys weigh 1.
+   */
+  FairQueue(int capacity, Map<String, Integer> weights) {
+    this.capacity = capacity;
+    this.weights = ImmutableMap.copyOf(weights);
+  }
+
+  /*
+   * offer queues a document under key. It returns the document dropped to keep the capacity,
+   * either the given one or one queued before, or null if none was.
+   */
+  @Nullable
+  ByteBuffer offer(String key, ByteBuffer document) {
+    lock.lock();
+    try {
+      Flow flow = flow(key);
+      ByteBuffer dropped = null;
+      if (size >= capacity) {
+        if (flow.documents.size() >= longest) {
+          flow.dropped++;
+          return document;
+        }
+        Flow victim = byCount.get(longest);
+        dropped = victim.documents.pollLast();
+        victim.dropped++;
+        size--;
+        resized(victim, longest);
+      }
+      if (flow.documents.isEmpty()) {
+        flow.deficit = 0;
+        if (!flow.scheduled) {
+          flow.scheduled = true;
+          active.addLast(flow);
+        }
+      }
+      flow.documents.addLast(document);
+      flow.admitted++;
+      size++;
+      resized(flow, flow.documents.size() - 1);
+      notEmpty.signal();
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @GuardedBy("lock")
+  private Flow flow(String key) {
+    Flow flow = flows.get(key);
+    if (flow == null) {
+      if (flows.size() >= MAX_KEYS && !key.equals(OTHER_KEY)) {
+        return flow(OTHER_KEY);
+      }
+      Integer weight = weights.get(key);
+      flow = new Flow(key, (weight == null ? 1L : weight) * QUANTUM_BYTES);
+      flows.put(key, flow);
+    }
+    return flow;
+  }
+
+  /*
+   * resized moves flow to the byCount list of its number of queued documents, which was from and
+   * has changed by one.
+   */
+  @GuardedBy("lock")
+  private void resized(Flow flow, int from) {
+    if (from > 0) {
+      if (flow.prevSameCount == null) {
+        byCount.set(from, flow.nextSameCount);
+      } else {
+        flow.prevSameCount.nextSameCount = flow.nextSameCount;
+      }
+      if (flow.nextSameCount != null) {
+        flow.nextSameCount.prevSameCount = flow.prevSameCount;
+      }
+      flow.prevSameCount = null;
+      flow.nextSameCount = null;
+    }
+    int to = flow.documents.size();
+    if (to > 0) {
+      while (byCount.size() <= to) {
+        byCount.add(null);
+      }
+      Flow head = byCount.get(to);
+      flow.nextSameCount = head;
+      if (head != null) {
+        head.prevSameCount = flow;
+      }
+      byCount.set(to, flow);
+    }
+    if (to > longest) {
+      longest = to;
+    } else if (from == longest && byCount.get(from) == null) {
+      // to is from - 1: either the flow itself is in that list, or every flow is empty.
+      longest = to;
+    }
+  }
+
+  /*
+   * next takes the next document by deficit round robin. The queue must not be empty.
+   */
+  @GuardedBy("lock")
+  private ByteBuffer next() {
+    while (true) {
+      Flow flow = active.peekFirst();
+      ByteBuffer head = flow.documents.peekFirst();
+      if (head == null) {
+        // emptied by a drop.
+        active.pollFirst();
+        flow.scheduled = false;
+        continue;
+      }
+      if (flow.deficit >= head.remaining()) {
+        flow.deficit -= head.remaining();
+        flow.documents.pollFirst();
+        size--;
+        resized(flow, flow.documents.size() + 1);
+        if (flow.documents.isEmpty()) {
+          active.pollFirst();
+          flow.scheduled = false;
+        }
+        return head;
+      }
+      // the turn of this flow is over; it gets a new quantum for the next one.
+      active.pollFirst();
+      flow.deficit += flow.quantum;
+      active.addLast(flow);
+    }
+  }
+
+  /*
+   * poll takes the next document, waiting up to timeout for one. It returns null on timeout.
+   */
+  @Nullable
+  ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (size == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return next();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * drainTo takes up to maxDocuments documents without waiting.
+   */
+  int drainTo(Collection<ByteBuffer> batch, int maxDocuments) {
+    lock.lock();
+    try {
+      int n = 0;
+      while (size > 0 && n < maxDocuments) {
+        batch.add(next());
+        n++;
+      }
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int drainTo(Collection<ByteBuffer> batch) {
+    return drainTo(batch, Integer.MAX_VALUE);
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * getKeyStats returns the counts of every key seen so far.
+   */
+  Map<String, KeyStats> getKeyStats() {
+    lock.lock();
+    try {
+      Map<String, KeyStats> ret = new TreeMap<String, KeyStats>();
+      for (Flow flow : flows.values()) {
+        ret.put(flow.key, new KeyStats(flow.admitted, flow.dropped, flow.documents.size()));
+      }
+      return ret;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * FileSegmentTransport appends documents to a file, one per line, e.g. for audit. Documents never
+ * contain a raw newline, and the forwarder can tail the file. A batch is written with gathering
+ * writes, so documents are not copied to the heap.
+ */
+final class FileSegmentTransport implements SegmentTransport {
+  private static final Logger logger = Logger.getLogger(FileSegmentTransport.class.getName());
+  private static final ByteBuffer NEWLINE = ByteBuffer.allocateDirect(1).put((byte) '\n');
+
+  static {
+    NEWLINE.flip();
+  }
+
+  @GuardedBy("this")
+  private final FileChannel channel;
+
+  FileSegmentTransport(Path file) {
+    try {
+      this.channel =
+          FileChannel.open(
+              file,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public synchronized int send(List<ByteBuffer> documents) {
+    ByteBuffer[] lines = new ByteBuffer[documents.size() * 2];
+    for (int i = 0; i < documents.size(); i++) {
+      lines[2 * i] = documents.get(i).duplicate();
+      lines[2 * i + 1] = NEWLINE.duplicate();
+    }
+    try {
+      int offset = 0;
+      while (offset < lines.length) {
+        channel.write(lines, offset, lines.length - offset);
+        while (offset < lines.length && !lines[offset].hasRemaining()) {
+          offset++;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return 0;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Failed to close the segment file", e);
+    }
+  }
+}
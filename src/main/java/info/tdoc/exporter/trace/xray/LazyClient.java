@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.services.xray.AWSXRay;
+import com.google.common.base.Supplier;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * LazyClient builds the AWS X-Ray client on a background thread, so that registering the exporter
+ * does not walk the credential and region provider chains on the caller's thread.
+ *
+ * The sender asks for the client when it has a batch to send and waits up to timeout for it;
+ * meanwhile new documents accumulate in the bounded sender queue. If building fails, the next
+ * request starts a new attempt. Both cases throw NotReadyException, so that the sender retries the
+ * batch instead of counting it as a failed request.
+ */
+final class LazyClient implements Supplier<AWSXRay> {
+  private static final Logger logger = Logger.getLogger(LazyClient.class.getName());
+
+  private final Callable<AWSXRay> factory;
+  private final long timeoutMillis;
+  private final AtomicLong initFailures = new AtomicLong();
+  private final AtomicLong initTimeouts = new AtomicLong();
+
+  @GuardedBy("this")
+  private CompletableFuture<AWSXRay> client;
+
+  LazyClient(Callable<AWSXRay> factory, long timeout, TimeUnit unit) {
+    this.factory = factory;
+    this.timeoutMillis = unit.toMillis(timeout);
+    synchronized (this) {
+      this.client = build();
+    }
+  }
+
+  @GuardedBy("this")
+  private CompletableFuture<AWSXRay> build() {
+    final CompletableFuture<AWSXRay> future = new CompletableFuture<AWSXRay>();
+    Thread t =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  future.complete(factory.call());
+                } catch (Throwable e) {
+                  future.completeExceptionally(e);
+                }
+              }
+            },
+            "XRayExporter-client-init");
+    t.setDaemon(true);
+    t.start();
+    return future;
+  }
+
+  /*
+   * get returns the client, waiting for it to be built.
+   *
+   * @throws SegmentTransport.NotReadyException if it is not ready within the timeout or building
+   *     failed.
+   */
+  @Override
+  public AWSXRay get() {
+    CompletableFuture<AWSXRay> future;
+    synchronized (this) {
+      future = client;
+    }
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      initTimeouts.incrementAndGet();
+      throw new SegmentTransport.NotReadyException("X-Ray client is not ready", e);
+    } catch (ExecutionException e) {
+      initFailures.incrementAndGet();
+      logger.log(Level.WARNING, "Failed to build X-Ray client", e.getCause());
+      synchronized (this) {
+        if (client == future) {
+          client = build();
+        }
+      }
+      throw new SegmentTransport.NotReadyException("Failed to build X-Ray client", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SegmentTransport.NotReadyException("Interrupted while building X-Ray client", e);
+    }
+  }
+
+  synchronized boolean isReady() {
+    return client.isDone() && !client.isCompletedExceptionally();
+  }
+
+  long getInitFailures() {
+    return initFailures.get();
+  }
+
+  long getInitTimeouts() {
+    return initTimeouts.get();
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.base.Splitter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local forwarder which receives segment documents from the processes of a host and sends them
+ * to AWS X-Ray in batches.
+ *
+ * <p>It listens for UDP datagrams in the X-Ray daemon format and tails files of newline delimited
+ * documents. Usage:
+ *
+ * <pre>{@code
+ * java -cp ... info.tdoc.exporter.trace.xray.Main forwarder.properties
+ * }</pre>
+ *
+ * <p>The properties file is optional. Its keys are:
+ *
+ * <ul>
+ *   <li>{@code listen.address}: UDP address to listen on, default {@code 127.0.0.1:2000}, empty to
+ *       not listen.
+ *   <li>{@code files}: comma separated files to tail.
+ *   <li>{@code file.poll.millis}: how often the files are read, default 1000.
+ *   <li>{@code rate.limit}: documents per second sent at most, default 0 for no limit.
+ *   <li>{@code stats.interval.seconds}: how often stats are logged, default 60, 0 for never.
+ *   <li>{@code output.file}: the file documents are appended to with the {@code FILE} transport.
+ *   <li>{@code region}, {@code transport}, {@code daemon.address}, {@code max.queue.size}, {@code
+ *       max.queue.bytes}, {@code max.batch.size}, {@code max.concurrency}, {@code sender.shards},
+ *       {@code max.linger.millis}, {@code max.document.bytes}, {@code circuit.breaker.enabled}:
+ *       see {@link XRayExporterConfiguration}.
+ * </ul>
+ */
+public final class Main {
+  static final String DEFAULT_LISTEN_ADDRESS = "127.0.0.1:2000";
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+  private Main() {}
+
+  /** Runs the forwarder until the process is terminated. */
+  public static void main(String[] args) throws Exception {
+    if (args.length > 1) {
+      System.err.println("usage: Main [forwarder.properties]");
+      System.exit(2);
+    }
+    Properties props = new Properties();
+    if (args.length == 1) {
+      try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+        props.load(in);
+      }
+    }
+    final SegmentForwarder forwarder = createForwarder(props);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    forwarder.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                  }
+                },
+                "forwarder-shutdown"));
+    forwarder.start();
+    Thread.currentThread().join();
+  }
+
+  static SegmentForwarder createForwarder(Properties props) throws IOException {
+    XRayExporterConfiguration config = toConfiguration(props);
+    String listen = props.getProperty("listen.address", DEFAULT_LISTEN_ADDRESS).trim();
+    List<Path> files = new ArrayList<Path>();
+    for (String file :
+        Splitter.on(',').trimResults().omitEmptyStrings().split(props.getProperty("files", ""))) {
+      files.add(Paths.get(file));
+    }
+    return new SegmentForwarder(
+        config,
+        XRayTraceExporter.transportSupplier(config),
+        listen.isEmpty() ? null : DaemonSegmentTransport.parseAddress(listen),
+        files,
+        Long.parseLong(props.getProperty("file.poll.millis", "1000")),
+        Double.parseDouble(props.getProperty("rate.limit", "0")),
+        Long.parseLong(props.getProperty("stats.interval.seconds", "60")));
+  }
+
+  static XRayExporterConfiguration toConfiguration(Properties props) {
+    XRayExporterConfiguration.Builder builder =
+        XRayExporterConfiguration.builder().setHandlerName("forwarder").setLazyClientInit(true);
+    if (props.getProperty("region") != null) {
+      builder.setRegion(props.getProperty("region").trim());
+    }
+    if (props.getProperty("transport") != null) {
+      builder.setTransport(
+          XRayExporterConfiguration.Transport.valueOf(props.getProperty("transport").trim()));
+    }
+    if (props.getProperty("daemon.address") != null) {
+      builder.setDaemonAddress(props.getProperty("daemon.address").trim());
+    }
+    if (props.getProperty("output.file") != null) {
+      builder.setFile(Paths.get(props.getProperty("output.file").trim()));
+    }
+    if (props.getProperty("max.queue.size") != null) {
+      builder.setMaxQueueSize(Integer.parseInt(props.getProperty("max.queue.size").trim()));
+    }
+    if (props.getProperty("max.queue.bytes") != null) {
+      builder.setMaxQueueBytes(Long.parseLong(props.getProperty("max.queue.bytes").trim()));
+    }
+    if (props.getProperty("max.batch.size") != null) {
+      builder.setMaxBatchSize(Integer.parseInt(props.getProperty("max.batch.size").trim()));
+    }
+    if (props.getProperty("max.concurrency") != null) {
+      builder.setMaxConcurrency(Integer.parseInt(props.getProperty("max.concurrency").trim()));
+    }
+    if (props.getProperty("sender.shards") != null) {
+      builder.setSenderShards(Integer.parseInt(props.getProperty("sender.shards").trim()));
+    }
+    if (props.getProperty("max.linger.millis") != null) {
+      builder.setMaxLingerMillis(Long.parseLong(props.getProperty("max.linger.millis").trim()));
+    }
+    if (props.getProperty("max.document.bytes") != null) {
+      builder.setMaxDocumentBytes(Integer.parseInt(props.getProperty("max.document.bytes").trim()));
+    }
+    if (props.getProperty("circuit.breaker.enabled") != null) {
+      builder.setCircuitBreakerEnabled(
+          Boolean.parseBoolean(props.getProperty("circuit.breaker.enabled").trim()));
+    }
+    return builder.build();
+  }
+}
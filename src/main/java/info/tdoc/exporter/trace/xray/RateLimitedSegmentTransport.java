@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * RateLimitedSegmentTransport delays requests to send at most documentsPerSecond on average,
+ * allowing a burst of one second's worth after an idle period. It waits on the request thread, so
+ * a destination over its limit backs up into its own queue. Unlike Guava's RateLimiter the wait
+ * is interruptible: when the sender shuts down, the remaining batches are sent without waiting.
+ */
+final class RateLimitedSegmentTransport implements SegmentTransport {
+  private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final SegmentTransport delegate;
+  private final double nanosPerDocument;
+  private final AtomicLong delayedRequests = new AtomicLong();
+
+  // when the documents sent so far are paid for.
+  @GuardedBy("this")
+  private long paidNanos = System.nanoTime() - BURST_NANOS;
+
+  RateLimitedSegmentTransport(SegmentTransport delegate, double documentsPerSecond) {
+    this.delegate = delegate;
+    this.nanosPerDocument = TimeUnit.SECONDS.toNanos(1) / documentsPerSecond;
+  }
+
+  @Override
+  public int send(List<ByteBuffer> documents) {
+    long wait = reserve(documents.size());
+    if (wait > 0) {
+      delayedRequests.incrementAndGet();
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return delegate.send(documents);
+  }
+
+  /*
+   * reserve pays for count documents and returns how long to wait before sending them.
+   */
+  synchronized long reserve(int count) {
+    long now = System.nanoTime();
+    paidNanos = Math.max(paidNanos, now - BURST_NANOS) + (long) (count * nanosPerDocument);
+    return paidNanos - now;
+  }
+
+  /*
+   * getDelayedRequests returns the number of requests which waited for the limit.
+   */
+  long getDelayedRequests() {
+    return delayedRequests.get();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * ResourceDetector runs the resource sources once and serializes the result once, as a fragment
+ * of JSON members such as ,"aws":{...},"origin":"AWS::EC2::Instance". The encoder splices the
+ * fragment into every top level document, so the environment costs no encoding per span.
+ */
+final class ResourceDetector {
+  private static final Logger logger = Logger.getLogger(ResourceDetector.class.getName());
+  private static final byte[] EMPTY = new byte[0];
+
+  private ResourceDetector() {}
+
+  static ResourceInfo detect(List<ResourceSource> sources) {
+    ResourceInfo info = new ResourceInfo();
+    for (ResourceSource source : sources) {
+      try {
+        source.detect(info);
+      } catch (Exception e) {
+        logger.log(Level.FINE, "Resource detection failed", e);
+      }
+    }
+    return info;
+  }
+
+  /*
+   * encodeFragment returns the members of info, each preceded by a comma, or an empty array.
+   */
+  static byte[] encodeFragment(ResourceInfo info, ObjectMapper mapper) {
+    if (info.isEmpty()) {
+      return EMPTY;
+    }
+    Map<String, Object> members = new LinkedHashMap<String, Object>();
+    if (!info.getAws().isEmpty()) {
+      members.put("aws", info.getAws());
+    }
+    if (!info.getService().isEmpty()) {
+      members.put("service", info.getService());
+    }
+    if (info.getOrigin() != null) {
+      members.put("origin", info.getOrigin());
+    }
+    byte[] object;
+    try {
+      object = mapper.writeValueAsBytes(members);
+    } catch (JsonProcessingException e) {
+      logger.log(Level.WARNING, "Failed to encode resource", e);
+      return EMPTY;
+    }
+    // {"aws":...} -> ,"aws":...
+    byte[] fragment = Arrays.copyOfRange(object, 0, object.length - 1);
+    fragment[0] = ',';
+    return fragment;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Information about the environment collected by {@link ResourceSource}s. It maps to the {@code
+ * aws}, {@code service} and {@code origin} fields of a segment document.
+ *
+ * <p>document: https://docs.aws.amazon.com/xray/latest/devguide/xray-api-segmentdocuments.html
+ */
+public final class ResourceInfo {
+  private final Map<String, Map<String, Object>> aws =
+      new LinkedHashMap<String, Map<String, Object>>();
+  private final Map<String, Object> service = new LinkedHashMap<String, Object>();
+  @Nullable private String origin;
+
+  ResourceInfo() {}
+
+  /**
+   * Sets a field of a section of the {@code aws} object, e.g. {@code putAws("ec2",
+   * "instance_id", "i-0123")}.
+   */
+  public ResourceInfo putAws(String section, String key, Object value) {
+    Map<String, Object> fields = aws.get(section);
+    if (fields == null) {
+      fields = new LinkedHashMap<String, Object>();
+      aws.put(section, fields);
+    }
+    fields.put(key, value);
+    return this;
+  }
+
+  /** Sets a field of the {@code service} object, e.g. {@code putService("version", "1.2")}. */
+  public ResourceInfo putService(String key, Object value) {
+    service.put(key, value);
+    return this;
+  }
+
+  /** Sets the type of AWS resource running the application, e.g. {@code AWS::EC2::Instance}. */
+  public ResourceInfo setOrigin(String origin) {
+    this.origin = origin;
+    return this;
+  }
+
+  Map<String, Map<String, Object>> getAws() {
+    return aws;
+  }
+
+  Map<String, Object> getService() {
+    return service;
+  }
+
+  @Nullable
+  String getOrigin() {
+    return origin;
+  }
+
+  boolean isEmpty() {
+    return aws.isEmpty() && service.isEmpty() && origin == null;
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+/**
+ * A source of information about the environment the process runs in, such as the EC2 instance
+ * or the ECS container. Sources are run once when the exporter is registered, on a background
+ * thread with {@link XRayExporterConfiguration#getLazyClientInit() lazy client init}, and what
+ * they put into {@link ResourceInfo} is added to every top level segment.
+ *
+ * @see ResourceSources
+ */
+public interface ResourceSource {
+  /**
+   * Adds what this source knows to {@code info}. A source which does not apply to the current
+   * environment returns without adding anything.
+   *
+   * @throws Exception if detection failed. The other sources are still run.
+   */
+  void detect(ResourceInfo info) throws Exception;
+}
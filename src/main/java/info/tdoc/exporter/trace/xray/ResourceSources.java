@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Built-in {@link ResourceSource}s.
+ *
+ * <p>{@link #defaults()} looks at the environment variables and files of the process, and at the
+ * ECS container metadata endpoint when it is set. The EC2 source queries the instance metadata
+ * endpoint and has to be added explicitly:
+ *
+ * <pre>{@code
+ * XRayExporterConfiguration.builder()
+ *     .setResourceSources(ImmutableList.of(ResourceSources.sdk(), ResourceSources.ec2()))
+ *     .build();
+ * }</pre>
+ */
+public final class ResourceSources {
+  static final String EC2_ENDPOINT = "http://169.254.169.254";
+  private static final int TIMEOUT_MILLIS = 1000;
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final Pattern containerIdPattern = Pattern.compile("([0-9a-f]{64})\\s*$");
+
+  private ResourceSources() {}
+
+  /** Returns the SDK, ECS and EKS sources. */
+  public static List<ResourceSource> defaults() {
+    return ImmutableList.of(sdk(), ecs(), eks());
+  }
+
+  /** Returns a source describing this exporter in {@code aws.xray}. */
+  public static ResourceSource sdk() {
+    return new ResourceSource() {
+      @Override
+      public void detect(ResourceInfo info) {
+        info.putAws("xray", "sdk", "opencensus-exporter-trace-xray for Java");
+        String version = ResourceSources.class.getPackage().getImplementationVersion();
+        if (version != null) {
+          info.putAws("xray", "sdk_version", version);
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a source reading the EC2 instance identity document from the instance metadata
+   * endpoint, or from {@code AWS_EC2_METADATA_SERVICE_ENDPOINT} if set.
+   */
+  public static ResourceSource ec2() {
+    String endpoint = System.getenv("AWS_EC2_METADATA_SERVICE_ENDPOINT");
+    return ec2(endpoint == null ? EC2_ENDPOINT : endpoint);
+  }
+
+  /**
+   * Returns a source reading the EC2 instance identity document from {@code endpoint}, e.g. a
+   * local stand-in of the instance metadata service.
+   */
+  public static ResourceSource ec2(final String endpoint) {
+    return new ResourceSource() {
+      @Override
+      public void detect(ResourceInfo info) throws IOException {
+        String token = null;
+        try {
+          token = request("PUT", endpoint + "/latest/api/token", null);
+        } catch (IOException e) {
+          // IMDSv1 only, retry without a token.
+        }
+        JsonNode doc =
+            mapper.readTree(
+                request("GET", endpoint + "/latest/dynamic/instance-identity/document", token));
+        putIfPresent(info, "ec2", "instance_id", doc.path("instanceId"));
+        putIfPresent(info, "ec2", "availability_zone", doc.path("availabilityZone"));
+        putIfPresent(info, "ec2", "instance_size", doc.path("instanceType"));
+        putIfPresent(info, "ec2", "ami_id", doc.path("imageId"));
+        info.setOrigin("AWS::EC2::Instance");
+      }
+    };
+  }
+
+  /** Returns a source reading the ECS container metadata endpoint when running on ECS. */
+  public static ResourceSource ecs() {
+    return ecs(System.getenv());
+  }
+
+  @VisibleForTesting
+  static ResourceSource ecs(final Map<String, String> env) {
+    return new ResourceSource() {
+      @Override
+      public void detect(ResourceInfo info) throws IOException {
+        String uri = env.get("ECS_CONTAINER_METADATA_URI_V4");
+        if (uri == null) {
+          uri = env.get("ECS_CONTAINER_METADATA_URI");
+        }
+        if (uri == null) {
+          return;
+        }
+        String hostname = env.get("HOSTNAME");
+        if (hostname != null) {
+          info.putAws("ecs", "container", hostname);
+        }
+        JsonNode doc = mapper.readTree(request("GET", uri, null));
+        putIfPresent(info, "ecs", "container_id", doc.path("DockerId"));
+        info.setOrigin("AWS::ECS::Container");
+      }
+    };
+  }
+
+  /**
+   * Returns a source describing the pod when running on Kubernetes. The cluster name is read
+   * from {@code EKS_CLUSTER_NAME} if set.
+   */
+  public static ResourceSource eks() {
+    return eks(System.getenv(), Paths.get("/proc/self/cgroup"));
+  }
+
+  @VisibleForTesting
+  static ResourceSource eks(final Map<String, String> env, final Path cgroup) {
+    return new ResourceSource() {
+      @Override
+      public void detect(ResourceInfo info) throws IOException {
+        if (env.get("KUBERNETES_SERVICE_HOST") == null) {
+          return;
+        }
+        String pod = env.get("HOSTNAME");
+        if (pod != null) {
+          info.putAws("eks", "pod", pod);
+        }
+        String cluster = env.get("EKS_CLUSTER_NAME");
+        if (cluster != null) {
+          info.putAws("eks", "cluster_name", cluster);
+        }
+        if (Files.isReadable(cgroup)) {
+          for (String line : Files.readAllLines(cgroup, UTF_8)) {
+            Matcher m = containerIdPattern.matcher(line);
+            if (m.find()) {
+              info.putAws("eks", "container_id", m.group(1));
+              break;
+            }
+          }
+        }
+        info.setOrigin("AWS::EKS::Container");
+      }
+    };
+  }
+
+  private static void putIfPresent(ResourceInfo info, String section, String key, JsonNode v) {
+    if (v.isTextual() && !v.asText().isEmpty()) {
+      info.putAws(section, key, v.asText());
+    }
+  }
+
+  private static String request(String method, String url, @Nullable String token)
+      throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      conn.setRequestMethod(method);
+      conn.setConnectTimeout(TIMEOUT_MILLIS);
+      conn.setReadTimeout(TIMEOUT_MILLIS);
+      if (method.equals("PUT")) {
+        conn.setRequestProperty("X-aws-ec2-metadata-token-ttl-seconds", "60");
+      }
+      if (token != null) {
+        conn.setRequestProperty("X-aws-ec2-metadata-token", token);
+      }
+      int status = conn.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(method + " " + url + " returned " + status);
+      }
+      try (InputStream in = conn.getInputStream()) {
+        return new String(ByteStreams.toByteArray(in), UTF_8);
+      }
+    } finally {
+      conn.disconnect();
+    }
+  }
+}
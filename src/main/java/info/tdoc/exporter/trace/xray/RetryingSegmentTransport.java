@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * RetryingSegmentTransport sends a batch again when the transport fails, up to maxRetries times.
+ * The backoff doubles with each attempt from backoffMillis, up to MAX_BACKOFF_MILLIS, with jitter
+ * so that several senders do not retry in step. It waits on the request thread, which keeps its
+ * permit: the sender of a failing destination slows down and its queue, not the others, fills up.
+ * Unprocessed documents are not retried; the transport only reports how many there were, and
+ * neither is a transport which is not ready yet.
+ */
+final class RetryingSegmentTransport implements SegmentTransport {
+  private static final Logger logger = Logger.getLogger(RetryingSegmentTransport.class.getName());
+  static final long MAX_BACKOFF_MILLIS = 10000;
+
+  private final String name;
+  private final SegmentTransport delegate;
+  private final int maxRetries;
+  private final long backoffMillis;
+  private final AtomicLong retries = new AtomicLong();
+
+  RetryingSegmentTransport(
+      String name, SegmentTransport delegate, int maxRetries, long backoffMillis) {
+    this.name = name;
+    this.delegate = delegate;
+    this.maxRetries = maxRetries;
+    this.backoffMillis = backoffMillis;
+  }
+
+  @Override
+  public int send(List<ByteBuffer> documents) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return delegate.send(documents);
+      } catch (NotReadyException e) {
+        // nothing was sent; the sender waits for the transport without using up retries.
+        throw e;
+      } catch (RuntimeException e) {
+        if (attempt > maxRetries) {
+          throw e;
+        }
+        long backoff = backoffMillis(attempt);
+        retries.incrementAndGet();
+        ExporterEvents.RetryEvent event = new ExporterEvents.RetryEvent();
+        if (event.shouldCommit()) {
+          event.handler = name;
+          event.documents = documents.size();
+          event.attempt = attempt;
+          event.backoffMillis = backoff;
+          event.commit();
+        }
+        logger.log(Level.FINE, "Retrying segments in " + backoff + "ms", e);
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          // shutting down; give up the batch.
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /*
+   * backoffMillis returns a random wait between half and all of the exponential backoff.
+   */
+  private long backoffMillis(int attempt) {
+    long backoff = Math.min(backoffMillis << Math.min(attempt - 1, 30), MAX_BACKOFF_MILLIS);
+    if (backoff <= 1) {
+      return backoff;
+    }
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  long getRetries() {
+    return retries.get();
+  }
+
+  SegmentTransport getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.export.SpanData;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A sampler applying X-Ray style sampling rules read from a local JSON file.
+ *
+ * <p>The file has the format of the X-Ray SDK local sampling rules:
+ *
+ * <pre>{@code
+ * {
+ *   "version": 2,
+ *   "rules": [
+ *     {"description": "health", "url_path": "/health", "fixed_target": 0, "rate": 0.0},
+ *     {"description": "api", "http_method": "POST", "url_path": "/api/*",
+ *      "fixed_target": 2, "rate": 0.1}
+ *   ],
+ *   "default": {"fixed_target": 1, "rate": 0.05}
+ * }
+ * }</pre>
+ *
+ * <p>A rule may also restrict {@code service_name} and {@code span_name}. The first matching rule
+ * samples up to {@code fixed_target} traces per second and then a {@code rate} fraction of the
+ * remaining ones. {@code http_method} is matched against the {@code http.method} attribute and
+ * {@code url_path} against {@code http.route}, or the path of {@code http.url}. The file is
+ * re-read when it changes.
+ *
+ * <p>It can be installed as the OpenCensus {@link io.opencensus.trace.Sampler}, in which case
+ * attributes are not yet known and only rules without HTTP matchers apply to root spans, and
+ * child spans follow their parent. It can also be set with {@link
+ * XRayExporterConfiguration.Builder#setSampler} to filter spans at export time, where every span
+ * of a trace gets the decision made for the first one seen.
+ */
+public final class RuleBasedSampler extends io.opencensus.trace.Sampler {
+  private static final Logger logger = Logger.getLogger(RuleBasedSampler.class.getName());
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final long DEFAULT_RELOAD_INTERVAL_MILLIS = 10000;
+  private static final int MAX_TRACE_DECISIONS = 10000;
+
+  private final String serviceName;
+  @Nullable private final Path path;
+  private final long reloadIntervalNanos;
+  private final Ticker ticker;
+  private final AtomicLong nextCheckNanos = new AtomicLong();
+  private final Cache<TraceId, Boolean> decisions =
+      CacheBuilder.newBuilder().maximumSize(MAX_TRACE_DECISIONS).build();
+
+  private volatile Rules rules;
+  @Nullable private volatile FileTime lastModified;
+
+  private RuleBasedSampler(
+      String serviceName,
+      @Nullable Path path,
+      Rules rules,
+      @Nullable FileTime lastModified,
+      long reloadIntervalMillis,
+      Ticker ticker) {
+    this.serviceName = serviceName;
+    this.path = path;
+    this.rules = rules;
+    this.lastModified = lastModified;
+    this.reloadIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reloadIntervalMillis);
+    this.ticker = ticker;
+    this.nextCheckNanos.set(ticker.read() + reloadIntervalNanos);
+  }
+
+  /**
+   * Returns a sampler reading the rules from {@code path}, checked for changes every 10 seconds.
+   *
+   * @param serviceName the service name matched by {@code service_name}.
+   * @param path the sampling rules file.
+   * @throws IOException if the file cannot be read.
+   * @throws IllegalArgumentException if the file is not a valid rules document.
+   */
+  public static RuleBasedSampler fromFile(String serviceName, Path path) throws IOException {
+    return fromFile(serviceName, path, DEFAULT_RELOAD_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Returns a sampler reading the rules from {@code path}.
+   *
+   * @param serviceName the service name matched by {@code service_name}.
+   * @param path the sampling rules file.
+   * @param reloadIntervalMillis how often the file is checked for changes.
+   * @throws IOException if the file cannot be read.
+   * @throws IllegalArgumentException if the file is not a valid rules document.
+   */
+  public static RuleBasedSampler fromFile(
+      String serviceName, Path path, long reloadIntervalMillis) throws IOException {
+    return fromFile(serviceName, path, reloadIntervalMillis, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  static RuleBasedSampler fromFile(
+      String serviceName, Path path, long reloadIntervalMillis, Ticker ticker)
+      throws IOException {
+    FileTime lastModified = Files.getLastModifiedTime(path);
+    Rules rules = Rules.parse(new String(Files.readAllBytes(path), UTF_8));
+    return new RuleBasedSampler(
+        serviceName, path, rules, lastModified, reloadIntervalMillis, ticker);
+  }
+
+  /**
+   * Returns a sampler applying the rules of a JSON document.
+   *
+   * @param serviceName the service name matched by {@code service_name}.
+   * @param json the sampling rules document.
+   * @throws IllegalArgumentException if json is not a valid rules document.
+   */
+  public static RuleBasedSampler fromJson(String serviceName, String json) {
+    return fromJson(serviceName, json, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  static RuleBasedSampler fromJson(String serviceName, String json, Ticker ticker) {
+    return new RuleBasedSampler(serviceName, null, Rules.parse(json), null, 0, ticker);
+  }
+
+  @Override
+  public boolean shouldSample(
+      @Nullable SpanContext parentContext,
+      @Nullable Boolean hasRemoteParent,
+      TraceId traceId,
+      SpanId spanId,
+      String name,
+      List<Span> parentLinks) {
+    if (parentContext != null && parentContext.isValid()) {
+      return parentContext.getTraceOptions().isSampled();
+    }
+    return decide(traceId, name, null, null);
+  }
+
+  @Override
+  public String getDescription() {
+    return "RuleBasedSampler{" + (path == null ? "inline" : path.toString()) + "}";
+  }
+
+  /**
+   * Returns true if the span should be exported. Every span of a trace gets the decision made for
+   * the first span of the trace seen by this sampler.
+   */
+  public boolean shouldExport(SpanData spanData) {
+    TraceId traceId = spanData.getContext().getTraceId();
+    Boolean decision = decisions.getIfPresent(traceId);
+    if (decision != null) {
+      return decision;
+    }
+    Map<String, AttributeValue> attributes = spanData.getAttributes().getAttributeMap();
+    boolean sampled =
+        decide(
+            traceId,
+            spanData.getName(),
+            stringAttribute(attributes, TraceSegment.HTTP_METHOD),
+            urlPath(attributes));
+    decision = decisions.asMap().putIfAbsent(traceId, sampled);
+    return decision == null ? sampled : decision;
+  }
+
+  private boolean decide(
+      TraceId traceId, String name, @Nullable String httpMethod, @Nullable String urlPath) {
+    maybeReload();
+    Rules current = rules;
+    long second = TimeUnit.NANOSECONDS.toSeconds(ticker.read());
+    long randomBits = randomBits(traceId);
+    for (SamplingRule rule : current.rules) {
+      if (rule.matches(serviceName, name, httpMethod, urlPath)) {
+        return rule.sample(second, randomBits);
+      }
+    }
+    return current.defaultRule.sample(second, randomBits);
+  }
+
+  /*
+   * randomBits returns the bits a rule rate is compared with. The low half of the trace ID decides
+   * the probability sampling of the exporter and of OpenCensus, so the high half is used to keep
+   * both decisions independent. It is mixed since it starts with the epoch for IDs from X-Ray.
+   */
+  static long randomBits(TraceId traceId) {
+    byte[] bytes = traceId.getBytes();
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (bytes[i] & 0xFF);
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /*
+   * maybeReload re-reads the file if it changed. Only one caller per interval looks at the file;
+   * the others keep using the current rules.
+   */
+  private void maybeReload() {
+    if (path == null) {
+      return;
+    }
+    long now = ticker.read();
+    long next = nextCheckNanos.get();
+    if (now - next < 0 || !nextCheckNanos.compareAndSet(next, now + reloadIntervalNanos)) {
+      return;
+    }
+    try {
+      FileTime modified = Files.getLastModifiedTime(path);
+      if (!modified.equals(lastModified)) {
+        rules = Rules.parse(new String(Files.readAllBytes(path), UTF_8));
+        lastModified = modified;
+        decisions.invalidateAll();
+        logger.log(Level.INFO, "Reloaded sampling rules from {0}", path);
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to reload sampling rules, keeping the previous ones", e);
+    }
+  }
+
+  @Nullable
+  private static String stringAttribute(Map<String, AttributeValue> attributes, String key) {
+    AttributeValue value = attributes.get(key);
+    if (value == null) {
+      return null;
+    }
+    Object o = TraceSegment.attributeValueToObject(value);
+    return o == null ? null : o.toString();
+  }
+
+  @Nullable
+  private static String urlPath(Map<String, AttributeValue> attributes) {
+    String route = stringAttribute(attributes, TraceSegment.HTTP_ROUTE);
+    if (route != null) {
+      return route;
+    }
+    String url = stringAttribute(attributes, TraceSegment.HTTP_URL);
+    if (url == null) {
+      return null;
+    }
+    int start = url.indexOf("://");
+    start = start < 0 ? 0 : url.indexOf('/', start + 3);
+    if (start < 0) {
+      return "/";
+    }
+    int end = url.length();
+    for (int i = start; i < url.length(); i++) {
+      char c = url.charAt(i);
+      if (c == '?' || c == '#') {
+        end = i;
+        break;
+      }
+    }
+    return url.substring(start, end);
+  }
+
+  private static final class Rules {
+    private final List<SamplingRule> rules;
+    private final SamplingRule defaultRule;
+
+    private Rules(List<SamplingRule> rules, SamplingRule defaultRule) {
+      this.rules = rules;
+      this.defaultRule = defaultRule;
+    }
+
+    static Rules parse(String json) {
+      JsonNode root;
+      try {
+        root = mapper.readTree(json);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("invalid sampling rules", e);
+      }
+      if (root == null || !root.path("default").isObject()) {
+        throw new IllegalArgumentException("sampling rules must have a default rule");
+      }
+      List<SamplingRule> rules = new ArrayList<SamplingRule>();
+      for (JsonNode node : root.path("rules")) {
+        rules.add(SamplingRule.fromJson(node, false));
+      }
+      return new Rules(rules, SamplingRule.fromJson(root.path("default"), true));
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/*
+ * SamplingRule is one rule of a local X-Ray sampling rules document:
+ *
+ *   {"description": "...", "service_name": "*", "span_name": "*", "http_method": "GET",
+ *    "url_path": "/api/*", "fixed_target": 1, "rate": 0.05}
+ *
+ * Matchers accept the X-Ray wildcards '*' and '?'. Each rule owns a reservoir of fixed_target
+ * traces per second, taken with a compare-and-set on a single word, after which rate applies.
+ *
+ * document: https://docs.aws.amazon.com/xray/latest/devguide/xray-sdk-java-configuration.html#xray-sdk-java-configuration-sampling
+ */
+final class SamplingRule {
+  private final String description;
+  private final String serviceName;
+  private final String spanName;
+  private final String httpMethod;
+  private final String urlPath;
+  private final int fixedTarget;
+  private final long rateUpperBound;
+
+  // upper 32 bits: the second of the reservoir, lower 32 bits: traces taken in that second.
+  private final AtomicLong reservoir = new AtomicLong();
+
+  SamplingRule(
+      String description,
+      String serviceName,
+      String spanName,
+      String httpMethod,
+      String urlPath,
+      int fixedTarget,
+      double rate) {
+    this.description = description;
+    this.serviceName = serviceName;
+    this.spanName = spanName;
+    this.httpMethod = httpMethod;
+    this.urlPath = urlPath;
+    this.fixedTarget = fixedTarget;
+    this.rateUpperBound = (long) (rate * Long.MAX_VALUE);
+  }
+
+  static SamplingRule fromJson(JsonNode node, boolean isDefault) {
+    int fixedTarget = node.path("fixed_target").asInt(-1);
+    double rate = node.path("rate").asDouble(-1.0);
+    if (fixedTarget < 0 || rate < 0.0 || rate > 1.0) {
+      throw new IllegalArgumentException("invalid fixed_target or rate: " + node);
+    }
+    if (isDefault) {
+      return new SamplingRule("default", "*", "*", "*", "*", fixedTarget, rate);
+    }
+    return new SamplingRule(
+        node.path("description").asText(""),
+        node.path("service_name").asText("*"),
+        node.path("span_name").asText("*"),
+        node.path("http_method").asText("*"),
+        node.path("url_path").asText("*"),
+        fixedTarget,
+        rate);
+  }
+
+  String getDescription() {
+    return description;
+  }
+
+  /*
+   * matches returns true if the rule applies. A null httpMethod or urlPath is unknown and only
+   * matches a rule which accepts any value.
+   */
+  boolean matches(
+      String serviceName, String spanName, @Nullable String httpMethod, @Nullable String urlPath) {
+    return wildcardMatch(this.serviceName, serviceName, false)
+        && wildcardMatch(this.spanName, spanName, false)
+        && (httpMethod == null
+            ? this.httpMethod.equals("*")
+            : wildcardMatch(this.httpMethod, httpMethod, true))
+        && (urlPath == null
+            ? this.urlPath.equals("*")
+            : wildcardMatch(this.urlPath, urlPath, false));
+  }
+
+  /*
+   * sample takes a trace from the reservoir of the current second, or else samples randomBits
+   * at rate. Only the low 32 bits of second are used.
+   */
+  boolean sample(long second, long randomBits) {
+    second &= 0xFFFFFFFFL;
+    while (true) {
+      long current = reservoir.get();
+      long taken = (current >>> 32) == second ? current & 0xFFFFFFFFL : 0;
+      if (taken >= fixedTarget) {
+        break;
+      }
+      if (reservoir.compareAndSet(current, (second << 32) | (taken + 1))) {
+        return true;
+      }
+    }
+    return (randomBits & Long.MAX_VALUE) < rateUpperBound;
+  }
+
+  /*
+   * wildcardMatch matches text against a pattern where '*' is any sequence and '?' any character.
+   */
+  static boolean wildcardMatch(String pattern, String text, boolean ignoreCase) {
+    if (pattern.equals("*")) {
+      return true;
+    }
+    int p = 0;
+    int t = 0;
+    int star = -1;
+    int mark = 0;
+    while (t < text.length()) {
+      if (p < pattern.length()
+          && (pattern.charAt(p) == '?'
+              || sameChar(pattern.charAt(p), text.charAt(t), ignoreCase))) {
+        p++;
+        t++;
+      } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+        star = p++;
+        mark = t;
+      } else if (star >= 0) {
+        p = star + 1;
+        t = ++mark;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length() && pattern.charAt(p) == '*') {
+      p++;
+    }
+    return p == pattern.length();
+  }
+
+  private static boolean sameChar(char a, char b, boolean ignoreCase) {
+    return a == b || (ignoreCase && Character.toUpperCase(a) == Character.toUpperCase(b));
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opencensus.common.Timestamp;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/*
+ * SegmentEncoder encodes segments to UTF-8 JSON documents with a streaming generator. It writes
+ * the same document as data binding of TraceSegment, field by field, but copies pre-escaped UTF-8
+ * fragments instead of escaping and encoding the same strings for every span: the field names,
+ * constant values, the service name, and attribute keys, cached up to MAX_CACHED_KEYS like
+ * SegmentNameCache. The pre-encoded resource fragment is spliced into top level segments.
+ */
+final class SegmentEncoder {
+  static final int MAX_CACHED_KEYS = 1024;
+
+  private static final SerializedString NAME = new SerializedString("name");
+  private static final SerializedString ID = new SerializedString("id");
+  private static final SerializedString START_TIME = new SerializedString("start_time");
+  private static final SerializedString TRACE_ID = new SerializedString("trace_id");
+  private static final SerializedString PARENT_ID = new SerializedString("parent_id");
+  private static final SerializedString END_TIME = new SerializedString("end_time");
+  private static final SerializedString IN_PROGRESS = new SerializedString("in_progress");
+  private static final SerializedString TYPE = new SerializedString("type");
+  private static final SerializedString NAMESPACE = new SerializedString("namespace");
+  private static final SerializedString ERROR = new SerializedString("error");
+  private static final SerializedString FAULT = new SerializedString("fault");
+  private static final SerializedString THROTTLE = new SerializedString("throttle");
+  private static final SerializedString USER = new SerializedString("user");
+  private static final SerializedString ANNOTATIONS = new SerializedString("annotations");
+  private static final SerializedString METADATA = new SerializedString("metadata");
+  private static final SerializedString PRECURSOR_IDS = new SerializedString("precursor_ids");
+  private static final SerializedString CAUSE = new SerializedString("cause");
+  private static final SerializedString EXCEPTIONS = new SerializedString("exceptions");
+  private static final SerializedString MESSAGE = new SerializedString("message");
+  private static final SerializedString HTTP = new SerializedString("http");
+  private static final SerializedString REQUEST = new SerializedString("request");
+  private static final SerializedString METHOD = new SerializedString("method");
+  private static final SerializedString URL = new SerializedString("url");
+  private static final SerializedString USER_AGENT = new SerializedString("user_agent");
+  private static final SerializedString RESPONSE = new SerializedString("response");
+  private static final SerializedString STATUS = new SerializedString("status");
+  private static final SerializedString SQL = new SerializedString("sql");
+  private static final SerializedString SANITIZED_QUERY = new SerializedString("sanitized_query");
+  private static final SerializedString ORIGIN = new SerializedString("origin");
+  private static final SerializedString SUBSEGMENTS = new SerializedString("subsegments");
+
+  private static final String SUBSEGMENT_VALUE = "subsegment";
+  private static final String REMOTE_VALUE = "remote";
+  private static final SerializedString SUBSEGMENT = new SerializedString(SUBSEGMENT_VALUE);
+  private static final SerializedString REMOTE = new SerializedString(REMOTE_VALUE);
+
+  private final ObjectMapper mapper;
+  private final JsonFactory factory;
+  private final String serviceNameValue;
+  private final SerializedString serviceName;
+  @Nullable private final SerializedString resourceFragment;
+  private final ConcurrentMap<String, SerializedString> keys =
+      new ConcurrentHashMap<String, SerializedString>();
+
+  SegmentEncoder(ObjectMapper mapper, String serviceName, byte[] resourceFragment) {
+    this.mapper = mapper;
+    this.factory = mapper.getFactory();
+    this.serviceNameValue = serviceName;
+    this.serviceName = new SerializedString(serviceName);
+    // ,"aws":{...},"origin":"..." written as is before the closing brace.
+    this.resourceFragment =
+        resourceFragment.length == 0
+            ? null
+            : new SerializedString(new String(resourceFragment, UTF_8));
+  }
+
+  byte[] encode(TraceSegment segment) throws IOException {
+    ByteArrayBuilder out = new ByteArrayBuilder(factory._getBufferRecycler());
+    try {
+      JsonGenerator gen = factory.createGenerator(out, JsonEncoding.UTF8);
+      writeSegment(gen, segment, segment.isTopLevel() ? resourceFragment : null);
+      gen.close();
+      return out.toByteArray();
+    } finally {
+      out.release();
+    }
+  }
+
+  private void writeSegment(
+      JsonGenerator gen, TraceSegment segment, @Nullable SerializedString fragment)
+      throws IOException {
+    gen.writeStartObject();
+    gen.writeFieldName(NAME);
+    if (serviceNameValue.equals(segment.name)) {
+      gen.writeString(serviceName);
+    } else {
+      gen.writeString(segment.name);
+    }
+    gen.writeFieldName(ID);
+    gen.writeString(segment.id);
+    gen.writeFieldName(START_TIME);
+    writeTimestamp(gen, segment.startTime);
+    gen.writeFieldName(TRACE_ID);
+    gen.writeString(segment.traceId);
+    if (segment.parentId != null) {
+      gen.writeFieldName(PARENT_ID);
+      gen.writeString(segment.parentId);
+    }
+    if (segment.endTime != null) {
+      gen.writeFieldName(END_TIME);
+      writeTimestamp(gen, segment.endTime);
+    }
+    if (segment.inProgress != null) {
+      gen.writeFieldName(IN_PROGRESS);
+      gen.writeBoolean(segment.inProgress);
+    }
+    if (segment.type != null) {
+      gen.writeFieldName(TYPE);
+      if (SUBSEGMENT_VALUE.equals(segment.type)) {
+        gen.writeString(SUBSEGMENT);
+      } else {
+        gen.writeString(segment.type);
+      }
+    }
+    if (segment.nameSpace != null) {
+      gen.writeFieldName(NAMESPACE);
+      if (REMOTE_VALUE.equals(segment.nameSpace)) {
+        gen.writeString(REMOTE);
+      } else {
+        gen.writeString(segment.nameSpace);
+      }
+    }
+    if (segment.error != null) {
+      gen.writeFieldName(ERROR);
+      gen.writeBoolean(segment.error);
+    }
+    if (segment.fault != null) {
+      gen.writeFieldName(FAULT);
+      gen.writeBoolean(segment.fault);
+    }
+    if (segment.throttle != null) {
+      gen.writeFieldName(THROTTLE);
+      gen.writeBoolean(segment.throttle);
+    }
+    if (segment.user != null) {
+      gen.writeFieldName(USER);
+      gen.writeString(segment.user);
+    }
+    if (segment.annotations != null) {
+      gen.writeFieldName(ANNOTATIONS);
+      writeMap(gen, segment.annotations);
+    }
+    if (segment.metadata != null) {
+      gen.writeFieldName(METADATA);
+      gen.writeStartObject();
+      for (Map.Entry<String, Map<String, Object>> namespace : segment.metadata.entrySet()) {
+        gen.writeFieldName(key(namespace.getKey()));
+        if (namespace.getValue() == null) {
+          gen.writeNull();
+        } else {
+          writeMap(gen, namespace.getValue());
+        }
+      }
+      gen.writeEndObject();
+    }
+    if (segment.precursorIds != null) {
+      gen.writeFieldName(PRECURSOR_IDS);
+      gen.writeStartArray();
+      for (String id : segment.precursorIds) {
+        gen.writeString(id);
+      }
+      gen.writeEndArray();
+    }
+    if (segment.cause != null) {
+      gen.writeFieldName(CAUSE);
+      writeCause(gen, segment.cause);
+    }
+    if (segment.http != null) {
+      gen.writeFieldName(HTTP);
+      writeHttp(gen, segment.http);
+    }
+    if (segment.sql != null) {
+      gen.writeFieldName(SQL);
+      gen.writeStartObject();
+      if (segment.sql.sanitizedQuery != null) {
+        gen.writeFieldName(SANITIZED_QUERY);
+        gen.writeString(segment.sql.sanitizedQuery);
+      }
+      gen.writeEndObject();
+    }
+    if (segment.origin != null) {
+      gen.writeFieldName(ORIGIN);
+      gen.writeString(segment.origin);
+    }
+    if (segment.subsegments != null) {
+      gen.writeFieldName(SUBSEGMENTS);
+      gen.writeStartArray();
+      for (TraceSegment subsegment : segment.subsegments) {
+        if (subsegment == null) {
+          gen.writeNull();
+        } else {
+          writeSegment(gen, subsegment, null);
+        }
+      }
+      gen.writeEndArray();
+    }
+    if (fragment != null) {
+      gen.writeRaw(fragment);
+    }
+    gen.writeEndObject();
+  }
+
+  private static void writeTimestamp(JsonGenerator gen, @Nullable Timestamp timestamp)
+      throws IOException {
+    if (timestamp == null) {
+      gen.writeNull();
+    } else {
+      EpochTimestampSerializer.write(timestamp, gen);
+    }
+  }
+
+  private void writeMap(JsonGenerator gen, Map<String, Object> map) throws IOException {
+    gen.writeStartObject();
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      gen.writeFieldName(key(entry.getKey()));
+      Object value = entry.getValue();
+      if (value == null) {
+        gen.writeNull();
+      } else if (value instanceof String) {
+        gen.writeString((String) value);
+      } else if (value instanceof Boolean) {
+        gen.writeBoolean((Boolean) value);
+      } else if (value instanceof Long) {
+        gen.writeNumber((Long) value);
+      } else if (value instanceof Double) {
+        gen.writeNumber((Double) value);
+      } else {
+        mapper.writeValue(gen, value);
+      }
+    }
+    gen.writeEndObject();
+  }
+
+  private static void writeCause(JsonGenerator gen, TraceSegment.Cause cause)
+      throws IOException {
+    gen.writeStartObject();
+    gen.writeFieldName(EXCEPTIONS);
+    List<TraceSegment.Cause.Exceptions> exceptions = cause.exceptions;
+    if (exceptions == null) {
+      gen.writeNull();
+    } else {
+      gen.writeStartArray();
+      for (TraceSegment.Cause.Exceptions exception : exceptions) {
+        if (exception == null) {
+          gen.writeNull();
+          continue;
+        }
+        gen.writeStartObject();
+        gen.writeFieldName(ID);
+        gen.writeString(exception.id);
+        gen.writeFieldName(MESSAGE);
+        gen.writeString(exception.message);
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+    }
+    gen.writeEndObject();
+  }
+
+  private static void writeHttp(JsonGenerator gen, TraceSegment.HTTP http) throws IOException {
+    gen.writeStartObject();
+    if (http.request != null) {
+      gen.writeFieldName(REQUEST);
+      gen.writeStartObject();
+      if (http.request.method != null) {
+        gen.writeFieldName(METHOD);
+        gen.writeString(http.request.method);
+      }
+      if (http.request.url != null) {
+        gen.writeFieldName(URL);
+        gen.writeString(http.request.url);
+      }
+      if (http.request.user_agent != null) {
+        gen.writeFieldName(USER_AGENT);
+        gen.writeString(http.request.user_agent);
+      }
+      gen.writeEndObject();
+    }
+    if (http.response != null) {
+      gen.writeFieldName(RESPONSE);
+      gen.writeStartObject();
+      if (http.response.status != null) {
+        gen.writeFieldName(STATUS);
+        gen.writeString(http.response.status);
+      }
+      gen.writeEndObject();
+    }
+    gen.writeEndObject();
+  }
+
+  /*
+   * key returns the pre-encoded form of an attribute key. When the cache is full, further keys
+   * are encoded on every call instead of being added.
+   */
+  private SerializedString key(String key) {
+    SerializedString encoded = keys.get(key);
+    if (encoded == null) {
+      encoded = new SerializedString(key);
+      if (keys.size() < MAX_CACHED_KEYS) {
+        keys.putIfAbsent(key, encoded);
+      }
+    }
+    return encoded;
+  }
+
+  int getCachedKeys() {
+    return keys.size();
+  }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/*
+ * SegmentForwarder receives encoded segment documents from local processes and sends them to
+ * X-Ray through a SegmentSender, so that many processes on a host share one upload path.
+ *
+ * Documents arrive as UDP datagrams in the X-Ray daemon format (a JSON header line followed by the
+ * document), or as lines appended to files. They are spread over the sender shards by their
+ * trace_id, like in the exporter. Each file is polled and read from its end at startup;
+ * when it is truncated or replaced, it is read again from the start.
+ */
+final class SegmentForwarder {
+  private static final Logger logger = Logger.getLogger(SegmentForwarder.class.getName());
+  private static final int MAX_DATAGRAM_SIZE = 65535;
+  private static final byte[] TRACE_ID_KEY = "\"trace_id\"".getBytes(UTF_8);
+
+  private final ShardedSender sender;
+  private final int maxDocumentBytes;
+  @Nullable private final RateLimiter rateLimiter;
+  @Nullable private final DatagramSocket socket;
+  private final List<FileTailer> tailers = new ArrayList<FileTailer>();
+  private final long filePollMillis;
+  private final long statsIntervalSeconds;
+  private final ScheduledExecutorService scheduler;
+  @Nullable private Thread listener;
+  private volatile boolean closed = false;
+
+  private final AtomicLong receivedDocuments = new AtomicLong();
+  private final AtomicLong malformedDocuments = new AtomicLong();
+  private final AtomicLong oversizedDocuments = new AtomicLong();
+  private final AtomicLong rateLimitedDocuments = new AtomicLong();
+
+  /*
+   * listenAddress may be null to only tail files. rateLimit is in documents per second, 0 for no
+   * limit. statsIntervalSeconds is 0 to not log stats.
+   */
+  SegmentForwarder(
+      XRayExporterConfiguration config,
+      Supplier<SegmentTransport> transports,
+      @Nullable InetSocketAddress listenAddress,
+      List<Path> files,
+      long filePollMillis,
+      double rateLimit,
+      long statsIntervalSeconds)
+      throws SocketException {
+    this.sender = ShardedSender.fromConfiguration(config, transports);
+    this.maxDocumentBytes = config.getMaxDocumentBytes();
+    this.rateLimiter = rateLimit > 0 ? RateLimiter.create(rateLimit) : null;
+    this.socket = listenAddress == null ? null : new DatagramSocket(listenAddress);
+    for (Path file : files) {
+      tailers.add(new FileTailer(file));
+    }
+    this.filePollMillis = filePollMillis;
+    this.statsIntervalSeconds = statsIntervalSeconds;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("forwarder-%d").build());
+  }
+
+  void start() {
+    if (socket != null) {
+      listener =
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("forwarder-listener")
+              .build()
+              .newThread(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      listen();
+                    }
+                  });
+      listener.start();
+    }
+    for (final FileTailer tailer : tailers) {
+      tailer.skipExisting();
+      scheduler.scheduleWithFixedDelay(
+          new Runnable() {
+            @Override
+            public void run() {
+              tailer.poll();
+            }
+          },
+          filePollMillis,
+          filePollMillis,
+          TimeUnit.MILLISECONDS);
+    }
+    if (statsIntervalSeconds > 0) {
+      scheduler.scheduleAtFixedRate(
+          new Runnable() {
+            @Override
+            public void run() {
+              logger.log(Level.INFO, stats());
+            }
+          },
+          statsIntervalSeconds,
+          statsIntervalSeconds,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  @Nullable
+  InetSocketAddress getListenAddress() {
+    return socket == null ? null : (InetSocketAddress) socket.getLocalSocketAddress();
+  }
+
+  private void listen() {
+    DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM_SIZE], MAX_DATAGRAM_SIZE);
+    while (!closed) {
+      try {
+        socket.receive(packet);
+      } catch (IOException e) {
+        if (!closed) {
+          logger.log(Level.WARNING, "Failed to receive a datagram", e);
+        }
+        continue;
+      }
+      acceptDatagram(packet.getData(), packet.getLength());
+    }
+  }
+
+  /*
+   * acceptDatagram strips the header line of the daemon format.
+   */
+  private void acceptDatagram(byte[] data, int length) {
+    int i = 0;
+    while (i < length && data[i] != '\n') {
+      i++;
+    }
+    if (i == length || data[0] != '{') {
+      receivedDocuments.incrementAndGet();
+      malformedDocuments.incrementAndGet();
+      return;
+    }
+    accept(data, i + 1, length);
+  }
+
+  /*
+   * accept forwards data[from, to), a document without its header.
+   */
+  private void accept(byte[] data, int from, int to) {
+    while (to > from && (data[to - 1] == '\n' || data[to - 1] == '\r')) {
+      to--;
+    }
+    if (to == from) {
+      return;
+    }
+    receivedDocuments.incrementAndGet();
+    if (data[from] != '{') {
+      malformedDocuments.incrementAndGet();
+      return;
+    }
+    if (to - from > maxDocumentBytes) {
+      oversizedDocuments.incrementAndGet();
+      return;
+    }
+    if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+      rateLimitedDocuments.incrementAndGet();
+      return;
+    }
+    sender.offer(traceHash(data, from, to), Arrays.copyOfRange(data, from, to));
+  }
+
+  /*
+   * traceHash finds the "trace_id" member of a document and returns ShardedSender.hash of it, or 0
+   * if there is none. Nested subsegments have no trace_id, so the first one is the segment's.
+   */
+  static int traceHash(byte[] data, int from, int to) {
+    int i = indexOf(data, from, to, TRACE_ID_KEY);
+    if (i < 0) {
+      return 0;
+    }
+    i += TRACE_ID_KEY.length;
+    while (i < to && (data[i] == ' ' || data[i] == ':')) {
+      i++;
+    }
+    if (i == to || data[i] != '"') {
+      return 0;
+    }
+    int start = i + 1;
+    int end = start;
+    while (end < to && data[end] != '"') {
+      end++;
+    }
+    return ShardedSender.hash(data, start, end);
+  }
+
+  private static int indexOf(byte[] data, int from, int to, byte[] key) {
+    outer:
+    for (int i = from; i <= to - key.length; i++) {
+      for (int j = 0; j < key.length; j++) {
+        if (data[i + j] != key[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  String stats() {
+    int openCircuits = 0;
+    for (int i = 0; i < sender.getShardCount(); i++) {
+      CircuitBreaker breaker = sender.getShard(i).getCircuitBreaker();
+      if (breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED) {
+        openCircuits++;
+      }
+    }
+    return String.format(
+        "received=%d malformed=%d oversized=%d rate_limited=%d queued=%d sent=%d dropped=%d"
+            + " failed=%d unprocessed=%d rejected=%d batches=%d shards=%d imbalance=%.2f"
+            + " open_circuits=%d",
+        receivedDocuments.get(),
+        malformedDocuments.get(),
+        oversizedDocuments.get(),
+        rateLimitedDocuments.get(),
+        sender.getQueueSize(),
+        sender.getSentDocuments(),
+        sender.getDroppedDocuments(),
+        sender.getFailedDocuments(),
+        sender.getUnprocessedDocuments(),
+        sender.getRejectedDocuments(),
+        sender.getBatches(),
+        sender.getShardCount(),
+        sender.getImbalance(),
+        openCircuits);
+  }
+
+  /*
+   * shutdown stops receiving and waits up to timeout for the queued documents to be sent.
+   */
+  void shutdown(long timeout, TimeUnit unit) {
+    closed = true;
+    if (socket != null) {
+      socket.close();
+    }
+    scheduler.shutdownNow();
+    for (FileTailer tailer : tailers) {
+      tailer.close();
+    }
+    sender.shutdown(timeout, unit);
+    logger.log(Level.INFO, stats());
+  }
+
+  ShardedSender getSender() {
+    return sender;
+  }
+
+  long getReceivedDocuments() {
+    return receivedDocuments.get();
+  }
+
+  long getMalformedDocuments() {
+    return malformedDocuments.get();
+  }
+
+  long getOversizedDocuments() {
+    return oversizedDocuments.get();
+  }
+
+  long getRateLimitedDocuments() {
+    return rateLimitedDocuments.get();
+  }
+
+  /*
+   * FileTailer reads the lines appended to a file. It is polled by one thread.
+   */
+  private final class FileTailer {
+    private final Path path;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private byte[] line = new byte[1024];
+    private int lineLength = 0;
+    private boolean skipping = false;
+    @Nullable private FileChannel channel;
+    @Nullable private Object fileKey;
+
+    FileTailer(Path path) {
+      this.path = path;
+    }
+
+    void skipExisting() {
+      if (open()) {
+        try {
+          channel.position(channel.size());
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to read " + path, e);
+        }
+      }
+    }
+
+    private boolean open() {
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Object key = attrs.fileKey();
+        if (channel != null
+            && (key == null || key.equals(fileKey))
+            && attrs.size() >= channel.position()) {
+          return true;
+        }
+        // first poll, replaced or truncated: read from the start.
+        close();
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileKey = key;
+        lineLength = 0;
+        skipping = false;
+        return true;
+      } catch (NoSuchFileException e) {
+        close();
+        return false;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to open " + path, e);
+        close();
+        return false;
+      }
+    }
+
+    void poll() {
+      if (closed || !open()) {
+        return;
+      }
+      try {
+        while (channel.read(buffer) > 0) {
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+              if (!skipping) {
+                accept(line, 0, lineLength);
+              }
+              lineLength = 0;
+              skipping = false;
+            } else if (!skipping) {
+              append(b);
+            }
+          }
+          buffer.clear();
+        }
+      } catch (IOException e) {
+        if (!closed) {
+          logger.log(Level.WARNING, "Failed to read " + path, e);
+        }
+        close();
+      }
+    }
+
+    private void append(byte b) {
+      if (lineLength == maxDocumentBytes) {
+        // skip the rest of an oversized line.
+        receivedDocuments.incrementAndGet();
+        oversizedDocuments.incrementAndGet();
+        lineLength = 0;
+        skipping = true;
+        return;
+      }
+      if (lineLength == line.length) {
+        line = Arrays.copyOf(line, Math.min(line.length * 2, maxDocumentBytes));
+      }
+      line[lineLength++] = b;
+    }
+
+    void close() {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Failed to close " + path, e);
+        }
+        channel = null;
+        fileKey = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * SegmentNameCache memoizes sanitized segment names by raw span name. Span names are normally
+ * low-cardinality, so once warm no name is scanned again. When the cache is full, further names
+ * are sanitized on every call instead of being added, which keeps memory bounded if a
+ * high-cardinality name (e.g. a raw URL) slips through.
+ */
+final class SegmentNameCache {
+  static final int DEFAULT_MAX_SIZE = 1024;
+  private static final int maxSegmentNameLength = 200;
+  private static final String defaultSegmentName = "span";
+
+  private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+  private final int maxSize;
+
+  SegmentNameCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  String get(String rawName) {
+    String name = names.get(rawName);
+    if (name != null) {
+      return name;
+    }
+    name = sanitize(rawName);
+    if (names.size() < maxSize) {
+      names.putIfAbsent(rawName, name);
+    }
+    return name;
+  }
+
+  int size() {
+    return names.size();
+  }
+
+  /*
+   * sanitize removes any invalid characters from the span name. AWS X-Ray allows Unicode letters,
+   * numbers and whitespace, and the symbols _ . : / % & # = + \ - @ in names of up to 200
+   * characters.
+   * https://docs.aws.amazon.com/xray/latest/devguide/xray-api-segmentdocuments.html
+   */
+  static String sanitize(String name) {
+    StringBuilder sb = null;
+    for (int i = 0; i < name.length(); ) {
+      int cp = name.codePointAt(i);
+      int next = i + Character.charCount(cp);
+      if (!isValid(cp)) {
+        if (sb == null) {
+          // only allocate if we need to
+          sb = new StringBuilder(name.length());
+          sb.append(name, 0, i);
+        }
+      } else if (sb != null) {
+        sb.appendCodePoint(cp);
+      }
+      i = next;
+    }
+    if (sb != null) {
+      name = sb.toString();
+    }
+    if (name.length() > maxSegmentNameLength) {
+      int end = maxSegmentNameLength;
+      if (Character.isHighSurrogate(name.charAt(end - 1))) {
+        end--;
+      }
+      name = name.substring(0, end);
+    } else if (name.length() == 0) {
+      name = defaultSegmentName;
+    }
+    return name;
+  }
+
+  private static boolean isValid(int cp) {
+    if (Character.isLetterOrDigit(cp) || Character.isWhitespace(cp) || Character.isSpaceChar(cp)) {
+      return true;
+    }
+    switch (cp) {
+      case '_':
+      case '.':
+      case ':':
+      case '/':
+      case '%':
+      case '&':
+      case '#':
+      case '=':
+      case '+':
+      case '\\':
+      case '-':
+      case '@':
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.export.SpanData;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/*
+ * SegmentOptions holds the settings applied while converting a span to a segment. It is built once
+ * per registered exporter.
+ */
+final class SegmentOptions {
+  static final SegmentOptions DEFAULT =
+      new SegmentOptions(
+          null,
+          0,
+          AttributeProcessor.NONE,
+          new SegmentNameCache(SegmentNameCache.DEFAULT_MAX_SIZE),
+          false);
+
+  @Nullable private final Set<String> annotationKeys;
+  private final int maxAttributeValueLength;
+  private final AttributeProcessor processor;
+  private final SegmentNameCache names;
+  private final boolean useHttpRouteAsName;
+
+  SegmentOptions(
+      @Nullable Set<String> annotationKeys,
+      int maxAttributeValueLength,
+      AttributeProcessor processor,
+      SegmentNameCache names,
+      boolean useHttpRouteAsName) {
+    this.annotationKeys = annotationKeys;
+    this.maxAttributeValueLength = maxAttributeValueLength;
+    this.processor = processor;
+    this.names = names;
+    this.useHttpRouteAsName = useHttpRouteAsName;
+  }
+
+  static SegmentOptions fromConfiguration(XRayExporterConfiguration config) {
+    return new SegmentOptions(
+        config.getAnnotationKeys(),
+        config.getMaxAttributeValueLength(),
+        new AttributeProcessor(
+            config.getDroppedAttributeKeys(),
+            config.getDroppedAttributePrefixes(),
+            config.getRedactedValuePatterns(),
+            config.getStripSqlLiterals()),
+        new SegmentNameCache(config.getMaxSegmentNameCacheSize()),
+        config.getUseHttpRouteAsName());
+  }
+
+  /*
+   * segmentName returns the sanitized name of a span, or of its http.route when configured.
+   */
+  String segmentName(SpanData sd) {
+    if (useHttpRouteAsName) {
+      AttributeValue route = sd.getAttributes().getAttributeMap().get(TraceSegment.HTTP_ROUTE);
+      if (route != null) {
+        Object value = TraceSegment.attributeValueToObject(route);
+        if (value instanceof String && !((String) value).isEmpty()) {
+          return names.get((String) value);
+        }
+      }
+    }
+    return names.get(sd.getName());
+  }
+
+  boolean isDropped(String key) {
+    return processor.isDropped(key);
+  }
+
+  String scrub(String value) {
+    return truncate(processor.scrub(value));
+  }
+
+  String scrubSql(String query) {
+    return truncate(processor.scrubSql(query));
+  }
+
+  /*
+   * isAnnotation returns true if the attribute is exported as an indexed annotation rather than
+   * as metadata.
+   */
+  boolean isAnnotation(String key) {
+    return annotationKeys == null || annotationKeys.contains(key);
+  }
+
+  String truncate(String value) {
+    if (maxAttributeValueLength > 0 && value.length() > maxAttributeValueLength) {
+      return value.substring(0, maxAttributeValueLength);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.opencensus.common.Scope;
+import io.opencensus.trace.Sampler;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.Tracer;
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.samplers.Samplers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/*
+ * SegmentSender queues encoded documents and sends them in batches, so that export() never waits
+ * for the network. Documents wait in a FairQueue, by key; when it is full, documents of the key
+ * with the most queued ones are dropped. While the circuit breaker is
+ * open, batches are rejected without calling the transport. While the transport is not ready, e.g.
+ * its client is still being built, a request waits and tries again, holding its permit: documents
+ * stay queued, and the circuit breaker only sees requests which reached the endpoint.
+ *
+ * A dispatcher thread takes batches from the queue and runs each request on the executor, with at
+ * most maxConcurrency requests in flight. The default executor comes from SenderExecutors: a pool
+ * of platform threads, or a virtual thread per request on Java 21 and later.
+ *
+ * Documents of several export() calls are coalesced into one request. When a batch is not full,
+ * the dispatcher lingers for more documents if they are expected to arrive soon: it estimates the
+ * arrival rate and waits for the batch to fill, but never longer than a request takes (an average
+ * of observed send latency) or maxLinger. When idle, nothing is expected and it sends at once;
+ * under load, batches fill up and fewer requests are made.
+ *
+ * With a DocumentArena, queued documents are copied off the heap, and the arena caps the bytes
+ * they take in addition to maxQueueSize. Documents which do not fit are dropped.
+ */
+final class SegmentSender {
+  private static final Tracer tracer = Tracing.getTracer();
+  private static final Sampler probabilitySampler = Samplers.probabilitySampler(0.0001);
+  private static final Logger logger = Logger.getLogger(SegmentSender.class.getName());
+  private static final long POLL_INTERVAL_MILLIS = 100;
+  // wait between attempts while the transport is not ready, e.g. its client is being built.
+  private static final long NOT_READY_BACKOFF_MILLIS = 1000;
+  // weight of a new sample in the moving averages of arrival rate and send latency.
+  private static final double EWMA_ALPHA = 0.2;
+
+  private final String name;
+  private final SegmentTransport transport;
+  @Nullable private final CircuitBreaker circuitBreaker;
+  private final FairQueue queue;
+  @Nullable private final DocumentArena arena;
+  private final int maxBatchSize;
+  private final int maxConcurrency;
+  private final long maxLingerNanos;
+  private final Semaphore inFlight;
+  private final Executor executor;
+  @Nullable private final ExecutorService ownedExecutor;
+  private final Thread dispatcher;
+  private volatile boolean closed = false;
+
+  // updated by request threads; a lost update only delays the average.
+  private volatile double sendLatencyNanos = 0;
+  // accessed only by the dispatcher.
+  private double arrivalRate = 0;
+  private long lastOffered = 0;
+  private long lastDispatchNanos = System.nanoTime();
+
+  private final AtomicLong offeredDocuments = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+
+  private final AtomicLong sentDocuments = new AtomicLong();
+  private final AtomicLong droppedDocuments = new AtomicLong();
+  private final AtomicLong failedDocuments = new AtomicLong();
+  private final AtomicLong unprocessedDocuments = new AtomicLong();
+  private final AtomicLong rejectedDocuments = new AtomicLong();
+
+  SegmentSender(
+      String name,
+      SegmentTransport transport,
+      @Nullable CircuitBreaker circuitBreaker,
+      int maxQueueSize,
+      int maxBatchSize,
+      int maxConcurrency) {
+    this(
+        name,
+        transport,
+        circuitBreaker,
+        new FairQueue(maxQueueSize),
+        maxBatchSize,
+        maxConcurrency,
+        0,
+        null,
+        null);
+  }
+
+  SegmentSender(
+      String name,
+      SegmentTransport transport,
+      @Nullable CircuitBreaker circuitBreaker,
+      FairQueue queue,
+      int maxBatchSize,
+      int maxConcurrency,
+      long maxLingerMillis,
+      @Nullable DocumentArena arena,
+      @Nullable Executor executor) {
+    this.name = name;
+    this.transport = transport;
+    this.circuitBreaker = circuitBreaker;
+    this.queue = queue;
+    this.arena = arena;
+    this.maxBatchSize = maxBatchSize;
+    this.maxConcurrency = maxConcurrency;
+    this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+    this.inFlight = new Semaphore(maxConcurrency);
+    if (executor == null) {
+      this.ownedExecutor = SenderExecutors.newSenderExecutor(name, maxConcurrency);
+      this.executor = ownedExecutor;
+    } else {
+      this.ownedExecutor = null;
+      this.executor = executor;
+    }
+    this.dispatcher =
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat(name + "-dispatcher")
+            .build()
+            .newThread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    dispatch();
+                  }
+                });
+    dispatcher.start();
+  }
+
+  static SegmentSender fromConfiguration(
+      XRayExporterConfiguration config, String name, SegmentTransport transport) {
+    return new SegmentSender(
+        name,
+        transport,
+        config.getCircuitBreakerEnabled() ? CircuitBreaker.fromConfiguration(config) : null,
+        new FairQueue(config.getMaxQueueSize(), config.getFairQueueWeights()),
+        config.getMaxBatchSize(),
+        config.getMaxConcurrency(),
+        config.getMaxLingerMillis(),
+        config.getMaxQueueBytes() > 0
+            ? new DocumentArena(config.getMaxQueueBytes(), config.getMaxDocumentBytes())
+            : null,
+        config.getSenderExecutor());
+  }
+
+  /*
+   * fromDestination creates the sender of an additional destination. Its transport is wrapped to
+   * be rate limited and retried as configured; the circuit breaker, linger and fair queuing
+   * weights come from config. Documents stay on the heap, so destinations share the encoded bytes.
+   */
+  static SegmentSender fromDestination(
+      XRayExporterConfiguration config,
+      ExportDestination destination,
+      String name,
+      SegmentTransport transport) {
+    SegmentTransport wrapped = transport;
+    if (destination.getRateLimit() > 0) {
+      wrapped = new RateLimitedSegmentTransport(wrapped, destination.getRateLimit());
+    }
+    if (destination.getMaxRetries() > 0) {
+      wrapped =
+          new RetryingSegmentTransport(
+              name, wrapped, destination.getMaxRetries(), destination.getRetryBackoffMillis());
+    }
+    return new SegmentSender(
+        name,
+        wrapped,
+        config.getCircuitBreakerEnabled() ? CircuitBreaker.fromConfiguration(config) : null,
+        new FairQueue(destination.getMaxQueueSize(), config.getFairQueueWeights()),
+        destination.getMaxBatchSize(),
+        destination.getMaxConcurrency(),
+        config.getMaxLingerMillis(),
+        null,
+        config.getSenderExecutor());
+  }
+
+  boolean offer(byte[] document) {
+    return offer("", document);
+  }
+
+  /*
+   * offer queues a document under a fair queuing key. It returns false if the document was
+   * dropped.
+   */
+  boolean offer(String key, byte[] document) {
+    offeredDocuments.incrementAndGet();
+    if (closed) {
+      drop(ExporterEvents.SHUTDOWN);
+      return false;
+    }
+    ByteBuffer buffer;
+    if (arena == null) {
+      buffer = ByteBuffer.wrap(document);
+    } else {
+      buffer = arena.allocate(document);
+      if (buffer == null) {
+        drop(ExporterEvents.ARENA_FULL);
+        return false;
+      }
+    }
+    ByteBuffer dropped = queue.offer(key, buffer);
+    if (dropped != null) {
+      release(dropped);
+      drop(ExporterEvents.QUEUE_FULL);
+      return dropped != buffer;
+    }
+    return true;
+  }
+
+  private void drop(String reason) {
+    droppedDocuments.incrementAndGet();
+    ExporterEvents.drop(name, 1, reason);
+  }
+
+  private void release(ByteBuffer buffer) {
+    if (arena != null) {
+      arena.release(buffer);
+    }
+  }
+
+  private void release(List<ByteBuffer> batch) {
+    if (arena != null) {
+      for (ByteBuffer buffer : batch) {
+        arena.release(buffer);
+      }
+    }
+  }
+
+  private void dispatch() {
+    while (true) {
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      ByteBuffer first;
+      try {
+        first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        inFlight.release();
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (first == null) {
+        inFlight.release();
+        if (closed) {
+          return;
+        }
+        continue;
+      }
+      final List<ByteBuffer> batch = new ArrayList<ByteBuffer>(maxBatchSize);
+      batch.add(first);
+      queue.drainTo(batch, maxBatchSize - 1);
+      linger(batch);
+      batches.incrementAndGet();
+      try {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  send(batch);
+                } finally {
+                  release(batch);
+                  inFlight.release();
+                }
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        release(batch);
+        inFlight.release();
+        failedDocuments.addAndGet(batch.size());
+        ExporterEvents.drop(name, batch.size(), ExporterEvents.EXECUTOR_REJECTED);
+        logger.log(Level.WARNING, "Sender executor rejected a batch", e);
+      }
+    }
+  }
+
+  /*
+   * linger waits for more documents to fill the batch, as long as lingerNanos allows.
+   */
+  private void linger(List<ByteBuffer> batch) {
+    long now = System.nanoTime();
+    long offered = offeredDocuments.get();
+    if (now > lastDispatchNanos) {
+      double rate = (double) (offered - lastOffered) / (now - lastDispatchNanos);
+      arrivalRate += EWMA_ALPHA * (rate - arrivalRate);
+    }
+    lastOffered = offered;
+    lastDispatchNanos = now;
+    if (maxLingerNanos == 0 || closed || batch.size() >= maxBatchSize) {
+      return;
+    }
+    long deadline =
+        now
+            + lingerNanos(
+                maxBatchSize - batch.size(),
+                arrivalRate,
+                Math.min(maxLingerNanos, (long) sendLatencyNanos));
+    try {
+      while (batch.size() < maxBatchSize) {
+        long wait = deadline - System.nanoTime();
+        if (wait <= 0) {
+          return;
+        }
+        ByteBuffer next = queue.poll(wait, TimeUnit.NANOSECONDS);
+        if (next == null) {
+          return;
+        }
+        batch.add(next);
+        queue.drainTo(batch, maxBatchSize - batch.size());
+      }
+    } catch (InterruptedException e) {
+      // send what we have; the dispatcher stops at the next acquire.
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /*
+   * lingerNanos returns how long to wait for missing documents arriving at rate (documents per
+   * nanosecond): the time to fill the batch, at most bound. It is 0 if not even one document is
+   * expected within bound.
+   */
+  static long lingerNanos(int missing, double rate, long bound) {
+    if (bound <= 0 || rate * bound < 1) {
+      return 0;
+    }
+    return (long) Math.min(missing / rate, bound);
+  }
+
+  private void send(List<ByteBuffer> batch) {
+    if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+      // fail fast while the endpoint is known to be failing.
+      rejectedDocuments.addAndGet(batch.size());
+      ExporterEvents.drop(name, batch.size(), ExporterEvents.CIRCUIT_OPEN);
+      return;
+    }
+    ExporterEvents.SendEvent event = new ExporterEvents.SendEvent();
+    event.begin();
+    boolean succeeded = false;
+    boolean cancelled = false;
+    int unprocessed = 0;
+    long start = System.nanoTime();
+    Scope scope =
+        tracer.spanBuilder("SendXRaySpans").setSampler(probabilitySampler).startScopedSpan();
+    try {
+      unprocessed = sendWhenReady(batch);
+      succeeded = true;
+      sentDocuments.addAndGet(batch.size() - unprocessed);
+      if (unprocessed != 0) {
+        unprocessedDocuments.addAndGet(unprocessed);
+        tracer.getCurrentSpan().setStatus(Status.DATA_LOSS);
+        logger.log(Level.WARNING, "UnprocessedTraceSegments exist: count={0}", unprocessed);
+      }
+    } catch (SegmentTransport.NotReadyException e) {
+      // closed before the transport got ready; the endpoint was never called.
+      cancelled = true;
+      droppedDocuments.addAndGet(batch.size());
+      ExporterEvents.drop(name, batch.size(), ExporterEvents.SHUTDOWN);
+      logger.log(Level.WARNING, "Transport was not ready before shutdown", e);
+    } catch (RuntimeException e) {
+      failedDocuments.addAndGet(batch.size());
+      tracer
+          .getCurrentSpan()
+          .setStatus(
+              Status.UNKNOWN.withDescription(
+                  e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage()));
+      logger.log(Level.WARNING, "Failed to send segments to X-Ray", e);
+    } finally {
+      // record the outcome whatever was thrown, even an Error, so that a half open trial is never
+      // left without one.
+      if (circuitBreaker != null) {
+        if (succeeded) {
+          circuitBreaker.onSuccess();
+        } else if (cancelled) {
+          circuitBreaker.onCancelled();
+        } else {
+          circuitBreaker.onFailure();
+        }
+      }
+      scope.close();
+      sendLatencyNanos += EWMA_ALPHA * ((System.nanoTime() - start) - sendLatencyNanos);
+      event.end();
+      if (event.shouldCommit()) {
+        long bytes = 0;
+        for (ByteBuffer document : batch) {
+          bytes += document.remaining();
+        }
+        event.handler = name;
+        event.documents = batch.size();
+        event.bytes = bytes;
+        event.unprocessed = unprocessed;
+        event.failed = !succeeded && !cancelled;
+        event.commit();
+      }
+    }
+  }
+
+  /*
+   * sendWhenReady sends a batch, trying again while the transport is not ready until the sender is
+   * closed or the request thread interrupted.
+   */
+  private int sendWhenReady(List<ByteBuffer> batch) {
+    while (true) {
+      try {
+        return transport.send(batch);
+      } catch (SegmentTransport.NotReadyException e) {
+        if (closed) {
+          throw e;
+        }
+        logger.log(Level.FINE, "Transport is not ready", e);
+        try {
+          Thread.sleep(NOT_READY_BACKOFF_MILLIS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /*
+   * close stops accepting documents without waiting for the queued ones.
+   */
+  void close() {
+    closed = true;
+  }
+
+  /*
+   * shutdown stops accepting documents and waits up to timeout for the queued ones to be sent.
+   */
+  void shutdown(long timeout, TimeUnit unit) {
+    closed = true;
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    try {
+      dispatcher.join(Math.max(1, unit.toMillis(timeout)));
+      if (dispatcher.isAlive()) {
+        dispatcher.interrupt();
+      }
+      // wait for the requests in flight.
+      long remaining = Math.max(0, deadline - System.nanoTime());
+      if (inFlight.tryAcquire(maxConcurrency, remaining, TimeUnit.NANOSECONDS)) {
+        inFlight.release(maxConcurrency);
+      }
+    } catch (InterruptedException e) {
+      dispatcher.interrupt();
+      Thread.currentThread().interrupt();
+    }
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdownNow();
+    }
+    List<ByteBuffer> left = new ArrayList<ByteBuffer>();
+    queue.drainTo(left);
+    if (!left.isEmpty()) {
+      release(left);
+      droppedDocuments.addAndGet(left.size());
+      ExporterEvents.drop(name, left.size(), ExporterEvents.SHUTDOWN);
+    }
+    transport.close();
+  }
+
+  int getQueueSize() {
+    return queue.size();
+  }
+
+  Map<String, FairQueue.KeyStats> getKeyStats() {
+    return queue.getKeyStats();
+  }
+
+  @Nullable
+  DocumentArena getArena() {
+    return arena;
+  }
+
+  long getOfferedDocuments() {
+    return offeredDocuments.get();
+  }
+
+  long getBatches() {
+    return batches.get();
+  }
+
+  long getSentDocuments() {
+    return sentDocuments.get();
+  }
+
+  long getDroppedDocuments() {
+    return droppedDocuments.get();
+  }
+
+  long getFailedDocuments() {
+    return failedDocuments.get();
+  }
+
+  long getUnprocessedDocuments() {
+    return unprocessedDocuments.get();
+  }
+
+  long getRejectedDocuments() {
+    return rejectedDocuments.get();
+  }
+
+  /*
+   * getRetries returns the requests retried by the transport, if it retries: only the transports
+   * of additional destinations do.
+   */
+  long getRetries() {
+    if (transport instanceof RetryingSegmentTransport) {
+      return ((RetryingSegmentTransport) transport).getRetries();
+    }
+    return 0;
+  }
+
+  /*
+   * getRateLimitedRequests returns the requests delayed by the rate limit of the transport, if it
+   * has one.
+   */
+  long getRateLimitedRequests() {
+    SegmentTransport t = transport;
+    if (t instanceof RetryingSegmentTransport) {
+      t = ((RetryingSegmentTransport) t).getDelegate();
+    }
+    if (t instanceof RateLimitedSegmentTransport) {
+      return ((RateLimitedSegmentTransport) t).getDelayedRequests();
+    }
+    return 0;
+  }
+
+  @Nullable
+  CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** Delivers encoded segment documents to AWS X-Ray. */
+interface SegmentTransport {
+  /**
+   * Sends a batch of UTF-8 encoded segment documents. Each document is the remaining bytes of its
+   * buffer, which may be off the heap. The buffers must not be modified, e.g. read through {@link
+   * ByteBuffer#duplicate()}, nor used after this returns.
+   *
+   * @return the number of documents which were not processed.
+   * @throws NotReadyException if the transport cannot send yet, e.g. while its client is built.
+   * @throws RuntimeException if the batch could not be sent.
+   */
+  int send(List<ByteBuffer> documents);
+
+  /** Releases the resources held by this transport. */
+  void close();
+
+  /**
+   * Thrown when a transport cannot send yet. Unlike other failures, nothing was sent to the
+   * endpoint, so the sender keeps the batch and tries again later.
+   */
+  final class NotReadyException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    NotReadyException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * SenderExecutors creates the default executor running requests of SegmentSender.
+ *
+ * This is the Java 8 variant, a bounded pool of platform threads. The multi-release jar replaces
+ * it on Java 21 and later with src/main/java21/.../SenderExecutors.java, which runs every request
+ * on its own virtual thread.
+ */
+final class SenderExecutors {
+  private SenderExecutors() {}
+
+  static ExecutorService newSenderExecutor(String name, int maxConcurrency) {
+    return Executors.newFixedThreadPool(
+        maxConcurrency,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-sender-%d").build());
+  }
+
+  static boolean usesVirtualThreads() {
+    return false;
+  }
+}
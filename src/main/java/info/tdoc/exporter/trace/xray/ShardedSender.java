@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/*
+ * ShardedSender spreads documents over several SegmentSenders, each with its own queue, dispatcher
+ * and transport, so that sending scales with cores. The shard is chosen by the trace ID, so all
+ * segments of a trace go through one shard and keep their order.
+ *
+ * The key is the identifier part of the X-Ray trace ID, "1-<epoch>-<identifier>", i.e. the last 12
+ * bytes of the OpenCensus TraceId. The epoch part is left out since it may differ between the
+ * segments of a trace. The forwarder finds the same characters in encoded documents, so both pick
+ * the same shard for a trace.
+ */
+final class ShardedSender {
+  // "1-" and eight hex digits of the epoch followed by "-".
+  private static final int IDENTIFIER_OFFSET = 11;
+
+  private final SegmentSender[] shards;
+  // transports shared by the shards, closed once after all shards are shut down.
+  private final List<SegmentTransport> transports;
+
+  ShardedSender(SegmentSender[] shards) {
+    this(shards, ImmutableList.<SegmentTransport>of());
+  }
+
+  private ShardedSender(SegmentSender[] shards, List<SegmentTransport> transports) {
+    checkArgument(shards.length > 0, "at least one shard is required");
+    this.shards = shards;
+    this.transports = transports;
+  }
+
+  /*
+   * fromConfiguration creates senderShards senders, each with a transport from the supplier. The
+   * supplier may return the same transport for several shards, so the shards get a view which
+   * does not close it, and each distinct transport is closed once by shutdown.
+   */
+  static ShardedSender fromConfiguration(
+      XRayExporterConfiguration config, Supplier<SegmentTransport> transports) {
+    int count = config.getSenderShards();
+    SegmentSender[] shards = new SegmentSender[count];
+    Set<SegmentTransport> distinct =
+        Collections.newSetFromMap(new IdentityHashMap<SegmentTransport, Boolean>());
+    for (int i = 0; i < count; i++) {
+      String name = count == 1 ? config.getHandlerName() : config.getHandlerName() + "-" + i;
+      SegmentTransport transport = transports.get();
+      distinct.add(transport);
+      shards[i] = SegmentSender.fromConfiguration(config, name, new UnclosedTransport(transport));
+    }
+    return new ShardedSender(shards, ImmutableList.copyOf(distinct));
+  }
+
+  /*
+   * fromDestination creates the sender of an additional destination, with a single shard.
+   */
+  static ShardedSender fromDestination(
+      XRayExporterConfiguration config, ExportDestination destination, SegmentTransport transport) {
+    String name = config.getHandlerName() + "-" + destination.getName();
+    return new ShardedSender(
+        new SegmentSender[] {
+          SegmentSender.fromDestination(config, destination, name, transport)
+        });
+  }
+
+  /*
+   * hash returns the hash of the identifier part of an X-Ray trace ID, or 0 if there is none.
+   */
+  static int hash(@Nullable String traceId) {
+    if (traceId == null) {
+      return 0;
+    }
+    int h = 0;
+    for (int i = IDENTIFIER_OFFSET; i < traceId.length(); i++) {
+      h = 31 * h + traceId.charAt(i);
+    }
+    return h;
+  }
+
+  /*
+   * hash returns the same hash as hash(String) for the trace ID in data[from, to).
+   */
+  static int hash(byte[] data, int from, int to) {
+    int h = 0;
+    for (int i = from + IDENTIFIER_OFFSET; i < to; i++) {
+      h = 31 * h + data[i];
+    }
+    return h;
+  }
+
+  /*
+   * shard maps a hash to a shard index. The hash is mixed first, since trace IDs differing in a
+   * few low bits are common.
+   */
+  static int shard(int hash, int count) {
+    int h = hash;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return (h & Integer.MAX_VALUE) % count;
+  }
+
+  boolean offer(int hash, byte[] document) {
+    return offer(hash, "", document);
+  }
+
+  boolean offer(int hash, String key, byte[] document) {
+    SegmentSender sender = shards.length == 1 ? shards[0] : shards[shard(hash, shards.length)];
+    return sender.offer(key, document);
+  }
+
+  /*
+   * close stops accepting documents on all shards without waiting for the queued ones.
+   */
+  void close() {
+    for (SegmentSender shard : shards) {
+      shard.close();
+    }
+  }
+
+  /*
+   * shutdown shuts all shards down within timeout.
+   */
+  void shutdown(long timeout, TimeUnit unit) {
+    close();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (SegmentSender shard : shards) {
+      shard.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+    for (SegmentTransport transport : transports) {
+      transport.close();
+    }
+  }
+
+  int getShardCount() {
+    return shards.length;
+  }
+
+  SegmentSender getShard(int index) {
+    return shards[index];
+  }
+
+  /*
+   * getImbalance returns the documents offered to the busiest shard divided by the mean, 1.0 when
+   * the shards are balanced or nothing was offered.
+   */
+  double getImbalance() {
+    long max = 0;
+    long total = 0;
+    for (SegmentSender shard : shards) {
+      long offered = shard.getOfferedDocuments();
+      max = Math.max(max, offered);
+      total += offered;
+    }
+    return total == 0 ? 1.0 : (double) max * shards.length / total;
+  }
+
+  long getQueueSize() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getQueueSize();
+    }
+    return sum;
+  }
+
+  /*
+   * getKeyStats returns the counts of each fair queuing key summed over the shards.
+   */
+  Map<String, FairQueue.KeyStats> getKeyStats() {
+    if (shards.length == 1) {
+      return shards[0].getKeyStats();
+    }
+    Map<String, FairQueue.KeyStats> ret = new TreeMap<String, FairQueue.KeyStats>();
+    for (SegmentSender shard : shards) {
+      for (Map.Entry<String, FairQueue.KeyStats> e : shard.getKeyStats().entrySet()) {
+        FairQueue.KeyStats s = e.getValue();
+        FairQueue.KeyStats sum = ret.get(e.getKey());
+        if (sum != null) {
+          s =
+              new FairQueue.KeyStats(
+                  sum.admitted + s.admitted, sum.dropped + s.dropped, sum.queued + s.queued);
+        }
+        ret.put(e.getKey(), s);
+      }
+    }
+    return ret;
+  }
+
+  long getSentDocuments() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getSentDocuments();
+    }
+    return sum;
+  }
+
+  long getDroppedDocuments() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getDroppedDocuments();
+    }
+    return sum;
+  }
+
+  long getFailedDocuments() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getFailedDocuments();
+    }
+    return sum;
+  }
+
+  long getUnprocessedDocuments() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getUnprocessedDocuments();
+    }
+    return sum;
+  }
+
+  long getRejectedDocuments() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getRejectedDocuments();
+    }
+    return sum;
+  }
+
+  long getBatches() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getBatches();
+    }
+    return sum;
+  }
+
+  long getRetries() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getRetries();
+    }
+    return sum;
+  }
+
+  long getRateLimitedRequests() {
+    long sum = 0;
+    for (SegmentSender shard : shards) {
+      sum += shard.getRateLimitedRequests();
+    }
+    return sum;
+  }
+
+  /*
+   * UnclosedTransport is a view of a transport shared by several shards, whose close() is left to
+   * the ShardedSender.
+   */
+  private static final class UnclosedTransport implements SegmentTransport {
+    private final SegmentTransport delegate;
+
+    UnclosedTransport(SegmentTransport delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public int send(List<ByteBuffer> documents) {
+      return delegate.send(documents);
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses repeated sibling leaf spans into a single aggregated subsegment.
+ *
+ * <p>Within one exported batch, leaf spans (spans which started no child span) which share a local
+ * parent, a name and the values of the key attributes are grouped. A group with at least
+ * {@code threshold} members is exported as one subsegment whose time range covers all members and
+ * whose "aggregate" metadata carries the count, min/max/total duration and error count. Smaller
+ * groups are exported unchanged.
+ *
+ * <p>The attributes of the aggregated subsegment are those of its earliest member, processed like
+ * the attributes of any span, of which only the span name and the key attributes, shared by all
+ * members, are kept. The HTTP and SQL sections also come from the earliest member.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * XRayTraceExporter.createAndRegister(
+ *     XRayExporterConfiguration.builder()
+ *         .setServiceName("myservicename")
+ *         .setSpanAggregator(SpanAggregator.create(20))
+ *         .build());
+ * }</pre>
+ */
+public final class SpanAggregator {
+  /** Attributes compared by default in addition to the span name. */
+  public static final List<String> DEFAULT_KEY_ATTRIBUTES =
+      ImmutableList.of(
+          TraceSegment.ATTRIB_SQL_EXEC, TraceSegment.HTTP_METHOD, TraceSegment.HTTP_ROUTE);
+
+  private final int threshold;
+  private final List<String> keyAttributes;
+
+  private SpanAggregator(int threshold, List<String> keyAttributes) {
+    this.threshold = threshold;
+    this.keyAttributes = keyAttributes;
+  }
+
+  /**
+   * Returns an aggregator comparing {@link #DEFAULT_KEY_ATTRIBUTES}.
+   *
+   * @param threshold the minimum number of siblings to collapse.
+   */
+  public static SpanAggregator create(int threshold) {
+    return create(threshold, DEFAULT_KEY_ATTRIBUTES);
+  }
+
+  /**
+   * Returns an aggregator.
+   *
+   * @param threshold the minimum number of siblings to collapse.
+   * @param keyAttributes attribute keys whose values must match for spans to be grouped.
+   */
+  public static SpanAggregator create(int threshold, Collection<String> keyAttributes) {
+    checkArgument(threshold >= 2, "threshold must be at least 2");
+    return new SpanAggregator(threshold, ImmutableList.copyOf(keyAttributes));
+  }
+
+  int getThreshold() {
+    return threshold;
+  }
+
+  /*
+   * toSegments converts spanDataList to segments, collapsing groups that reach the threshold.
+   */
+  List<TraceSegment> toSegments(
+      String serviceName, SegmentOptions options, Collection<SpanData> spanDataList) {
+    List<TraceSegment> ret = new ArrayList<TraceSegment>(spanDataList.size());
+    for (List<SpanData> members : group(spanDataList)) {
+      ret.add(toSegment(serviceName, options, members));
+    }
+    return ret;
+  }
+
+  /*
+   * group splits spanDataList into the spans of each segment: a single span, or a group of at
+   * least threshold siblings which share a name. Only leaf spans are collapsed: spans which started
+   * children, whether those children are in this batch or another one, keep their own segment so
+   * that the children are not orphaned.
+   */
+  List<List<SpanData>> group(Collection<SpanData> spanDataList) {
+    List<List<SpanData>> ret = new ArrayList<List<SpanData>>(spanDataList.size());
+    if (spanDataList.size() < threshold) {
+      for (SpanData spanData : spanDataList) {
+        ret.add(Collections.singletonList(spanData));
+      }
+      return ret;
+    }
+
+    Set<SpanId> parents = new HashSet<SpanId>();
+    for (SpanData spanData : spanDataList) {
+      if (spanData.getParentSpanId() != null) {
+        parents.add(spanData.getParentSpanId());
+      }
+    }
+
+    Map<GroupKey, List<SpanData>> groups = new LinkedHashMap<GroupKey, List<SpanData>>();
+    for (SpanData spanData : spanDataList) {
+      if (!isCandidate(spanData, parents)) {
+        ret.add(Collections.singletonList(spanData));
+        continue;
+      }
+      GroupKey key = new GroupKey(spanData, keyAttributes);
+      List<SpanData> members = groups.get(key);
+      if (members == null) {
+        members = new ArrayList<SpanData>();
+        groups.put(key, members);
+      }
+      members.add(spanData);
+    }
+
+    for (List<SpanData> members : groups.values()) {
+      if (members.size() < threshold) {
+        for (SpanData spanData : members) {
+          ret.add(Collections.singletonList(spanData));
+        }
+      } else {
+        ret.add(members);
+      }
+    }
+    return ret;
+  }
+
+  /*
+   * toSegment converts the spans of one segment, as returned by group.
+   */
+  TraceSegment toSegment(String serviceName, SegmentOptions options, List<SpanData> members) {
+    if (members.size() == 1) {
+      return new TraceSegment(serviceName, members.get(0), options);
+    }
+    return aggregate(serviceName, options, members);
+  }
+
+  private static boolean isCandidate(SpanData spanData, Set<SpanId> parents) {
+    SpanId parentId = spanData.getParentSpanId();
+    Integer children = spanData.getChildSpanCount();
+    return Boolean.FALSE.equals(spanData.getHasRemoteParent())
+        && children != null
+        && children == 0
+        && parentId != null
+        && parentId.isValid()
+        && spanData.getEndTimestamp() != null
+        && !parents.contains(spanData.getContext().getSpanId());
+  }
+
+  private TraceSegment aggregate(
+      String serviceName, SegmentOptions options, List<SpanData> members) {
+    SpanData first = members.get(0);
+    Timestamp start = first.getStartTimestamp();
+    Timestamp end = first.getEndTimestamp();
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    long total = 0;
+    long errors = 0;
+    for (SpanData spanData : members) {
+      if (spanData.getStartTimestamp().compareTo(start) < 0) {
+        start = spanData.getStartTimestamp();
+        first = spanData;
+      }
+      if (spanData.getEndTimestamp().compareTo(end) > 0) {
+        end = spanData.getEndTimestamp();
+      }
+      long d = durationNanos(spanData.getStartTimestamp(), spanData.getEndTimestamp());
+      min = Math.min(min, d);
+      max = Math.max(max, d);
+      total += d;
+      Status status = spanData.getStatus();
+      if (status != null && !status.isOk()) {
+        errors++;
+      }
+    }
+
+    // the representative is converted like any other span, so attributes are dropped, scrubbed
+    // and routed by options before the group keeps only the ones its members share.
+    TraceSegment segment = new TraceSegment(serviceName, first, options);
+    segment.aggregate(start, end, keyAttributes, members.size(), min, max, total, errors);
+    return segment;
+  }
+
+  private static long durationNanos(Timestamp start, Timestamp end) {
+    return (end.getSeconds() - start.getSeconds()) * 1000000000L
+        + (end.getNanos() - start.getNanos());
+  }
+
+  private static final class GroupKey {
+    private final SpanId parentId;
+    private final String name;
+    private final AttributeValue[] values;
+    private final int hash;
+
+    GroupKey(SpanData spanData, List<String> keyAttributes) {
+      this.parentId = spanData.getParentSpanId();
+      this.name = spanData.getName();
+      Map<String, AttributeValue> attributes = spanData.getAttributes().getAttributeMap();
+      this.values = new AttributeValue[keyAttributes.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = attributes.get(keyAttributes.get(i));
+      }
+      this.hash = 31 * (31 * parentId.hashCode() + name.hashCode()) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof GroupKey)) {
+        return false;
+      }
+      GroupKey that = (GroupKey) o;
+      return hash == that.hash
+          && parentId.equals(that.parentId)
+          && name.equals(that.name)
+          && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.io.CountingOutputStream;
+import io.opencensus.trace.export.SpanData;
+import io.opencensus.trace.export.SpanExporter;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A span exporter handler which records exported spans to a compact binary file. The recording can
+ * be replayed against the X-Ray exporter offline, e.g. to reproduce a performance issue seen in
+ * production with spans of the same shape.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * SpanRecorder recorder = SpanRecorder.create(Paths.get("spans.rec"), true, 100 * 1024 * 1024);
+ * Tracing.getExportComponent().getSpanExporter().registerHandler("recorder", recorder);
+ * ... // Do work.
+ * Tracing.getExportComponent().getSpanExporter().unregisterHandler("recorder");
+ * recorder.close();
+ * }</pre>
+ */
+public final class SpanRecorder extends SpanExporter.Handler implements Closeable {
+  private static final Logger logger = Logger.getLogger(SpanRecorder.class.getName());
+
+  private final CountingOutputStream out;
+  private final SpanRecording.Writer writer;
+  private final long maxBytes;
+  private final long startNanos = System.nanoTime();
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  @GuardedBy("this")
+  private long recordedSpans = 0;
+
+  @GuardedBy("this")
+  private long skippedSpans = 0;
+
+  private SpanRecorder(CountingOutputStream out, boolean scrubValues, long maxBytes)
+      throws IOException {
+    this.out = out;
+    this.writer = new SpanRecording.Writer(out, scrubValues);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Creates a recorder writing to a file, which is replaced if it exists.
+   *
+   * @param file the file to record to.
+   * @param scrubValues whether span names, string attribute values, annotation descriptions and
+   *     status descriptions are replaced by as many {@code 'x'}, so that the recording keeps the
+   *     size of the values but not their content.
+   * @param maxBytes the size after which spans are no longer recorded, or 0 for no limit.
+   * @throws IOException if the file cannot be created.
+   */
+  public static SpanRecorder create(Path file, boolean scrubValues, long maxBytes)
+      throws IOException {
+    checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+    return new SpanRecorder(
+        new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file))),
+        scrubValues,
+        maxBytes);
+  }
+
+  @Override
+  public synchronized void export(Collection<SpanData> spanDataList) {
+    if (closed || spanDataList.isEmpty()) {
+      return;
+    }
+    if (maxBytes > 0 && out.getCount() >= maxBytes) {
+      skippedSpans += spanDataList.size();
+      return;
+    }
+    try {
+      writer.write(System.nanoTime() - startNanos, spanDataList);
+      // a crash loses at most the current record.
+      writer.flush();
+      recordedSpans += spanDataList.size();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to record spans, recording stopped", e);
+      closeQuietly();
+    }
+  }
+
+  /** Stops recording and closes the file. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      out.close();
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Failed to close recording", e);
+    }
+  }
+
+  /** Returns the number of spans recorded. */
+  public synchronized long getRecordedSpans() {
+    return recordedSpans;
+  }
+
+  /** Returns the number of spans not recorded because the file reached its maximum size. */
+  public synchronized long getSkippedSpans() {
+    return skippedSpans;
+  }
+
+  /** Returns the size of the recording in bytes. */
+  public long getRecordedBytes() {
+    return out.getCount();
+  }
+}
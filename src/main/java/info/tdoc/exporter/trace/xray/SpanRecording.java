@@ -0,0 +1,480 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/*
+ * SpanRecording is the binary format of recorded SpanData, written by SpanRecorder and read by
+ * SpanReplayer.
+ *
+ * A file starts with MAGIC and VERSION, followed by a record per export() call: the nanoseconds
+ * since the recording started and the spans. Counts and sizes are varints. Strings are written once
+ * and then referred to by their index in a dictionary of up to MAX_DICTIONARY_SIZE entries, so
+ * that repeated names, keys and values take a byte or two.
+ */
+final class SpanRecording {
+  static final int MAGIC = 0x4f435352; // "OCSR"
+  static final int VERSION = 1;
+  static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+  // string markers; larger values are dictionary indexes + REFERENCE.
+  private static final int NEW_STRING = 0;
+  private static final int LITERAL_STRING = 1;
+  private static final int REFERENCE = 2;
+
+  private static final Kind[] KINDS = Kind.values();
+  private static final Status.CanonicalCode[] CODES = Status.CanonicalCode.values();
+  private static final MessageEvent.Type[] MESSAGE_TYPES = MessageEvent.Type.values();
+  private static final Link.Type[] LINK_TYPES = Link.Type.values();
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte BOOLEAN = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+
+  private SpanRecording() {}
+
+  /** A batch of spans passed to one export() call. */
+  static final class Record {
+    final long offsetNanos;
+    final List<SpanData> spans;
+
+    Record(long offsetNanos, List<SpanData> spans) {
+      this.offsetNanos = offsetNanos;
+      this.spans = spans;
+    }
+  }
+
+  /*
+   * Writer writes records to a stream. With scrubValues, span names, string attribute values,
+   * annotation descriptions and status descriptions are replaced by as many 'x' as they have
+   * characters, so that the recording keeps the shape of the spans but none of their data. Not
+   * thread safe.
+   */
+  static final class Writer {
+    private final DataOutputStream out;
+    private final boolean scrubValues;
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    Writer(OutputStream out, boolean scrubValues) throws IOException {
+      this.out = new DataOutputStream(out);
+      this.scrubValues = scrubValues;
+      this.out.writeInt(MAGIC);
+      this.out.writeByte(VERSION);
+    }
+
+    void write(long offsetNanos, Collection<SpanData> spans) throws IOException {
+      writeVarLong(out, offsetNanos);
+      writeVarLong(out, spans.size());
+      for (SpanData span : spans) {
+        writeSpan(span);
+      }
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    private void writeSpan(SpanData span) throws IOException {
+      writeContext(span.getContext());
+      SpanId parent = span.getParentSpanId();
+      out.writeBoolean(parent != null);
+      if (parent != null) {
+        out.write(parent.getBytes());
+      }
+      Boolean remote = span.getHasRemoteParent();
+      out.writeByte(remote == null ? 0 : remote ? 2 : 1);
+      writeString(scrubValues ? scrub(span.getName()) : span.getName());
+      Kind kind = span.getKind();
+      out.writeByte(kind == null ? -1 : kind.ordinal());
+      writeTimestamp(span.getStartTimestamp());
+      writeAttributes(span.getAttributes().getAttributeMap());
+      writeVarLong(out, span.getAttributes().getDroppedAttributesCount());
+
+      List<SpanData.TimedEvent<Annotation>> annotations = span.getAnnotations().getEvents();
+      writeVarLong(out, annotations.size());
+      for (SpanData.TimedEvent<Annotation> event : annotations) {
+        writeTimestamp(event.getTimestamp());
+        String description = event.getEvent().getDescription();
+        writeString(scrubValues ? scrub(description) : description);
+        writeAttributes(event.getEvent().getAttributes());
+      }
+      writeVarLong(out, span.getAnnotations().getDroppedEventsCount());
+
+      List<SpanData.TimedEvent<MessageEvent>> messages = span.getMessageEvents().getEvents();
+      writeVarLong(out, messages.size());
+      for (SpanData.TimedEvent<MessageEvent> event : messages) {
+        writeTimestamp(event.getTimestamp());
+        MessageEvent message = event.getEvent();
+        out.writeByte(message.getType().ordinal());
+        writeVarLong(out, message.getMessageId());
+        writeVarLong(out, message.getUncompressedMessageSize());
+        writeVarLong(out, message.getCompressedMessageSize());
+      }
+      writeVarLong(out, span.getMessageEvents().getDroppedEventsCount());
+
+      List<Link> links = span.getLinks().getLinks();
+      writeVarLong(out, links.size());
+      for (Link link : links) {
+        out.write(link.getTraceId().getBytes());
+        out.write(link.getSpanId().getBytes());
+        out.writeByte(link.getType().ordinal());
+        writeAttributes(link.getAttributes());
+      }
+      writeVarLong(out, span.getLinks().getDroppedLinksCount());
+
+      Integer children = span.getChildSpanCount();
+      writeVarLong(out, children == null ? 0 : children + 1L);
+      Status status = span.getStatus();
+      out.writeByte(status == null ? -1 : status.getCanonicalCode().ordinal());
+      if (status != null) {
+        String description = status.getDescription();
+        writeNullableString(
+            scrubValues && description != null ? scrub(description) : description);
+      }
+      Timestamp end = span.getEndTimestamp();
+      out.writeBoolean(end != null);
+      if (end != null) {
+        writeTimestamp(end);
+      }
+    }
+
+    private void writeContext(SpanContext context) throws IOException {
+      out.write(context.getTraceId().getBytes());
+      out.write(context.getSpanId().getBytes());
+      out.writeByte(context.getTraceOptions().getByte());
+      List<Tracestate.Entry> entries = context.getTracestate().getEntries();
+      writeVarLong(out, entries.size());
+      for (Tracestate.Entry entry : entries) {
+        writeString(entry.getKey());
+        writeString(entry.getValue());
+      }
+    }
+
+    private void writeAttributes(Map<String, AttributeValue> attributes) throws IOException {
+      writeVarLong(out, attributes.size());
+      for (Map.Entry<String, AttributeValue> attribute : attributes.entrySet()) {
+        writeString(attribute.getKey());
+        Object value = TraceSegment.attributeValueToObject(attribute.getValue());
+        if (value instanceof String) {
+          out.writeByte(STRING);
+          writeString(scrubValues ? scrub((String) value) : (String) value);
+        } else if (value instanceof Boolean) {
+          out.writeByte(BOOLEAN);
+          out.writeBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+          out.writeByte(LONG);
+          out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+          out.writeByte(DOUBLE);
+          out.writeDouble((Double) value);
+        } else {
+          out.writeByte(NULL);
+        }
+      }
+    }
+
+    private void writeTimestamp(Timestamp timestamp) throws IOException {
+      writeVarLong(out, timestamp.getSeconds());
+      writeVarLong(out, timestamp.getNanos());
+    }
+
+    private void writeNullableString(@Nullable String s) throws IOException {
+      out.writeBoolean(s != null);
+      if (s != null) {
+        writeString(s);
+      }
+    }
+
+    private void writeString(String s) throws IOException {
+      Integer index = dictionary.get(s);
+      if (index != null) {
+        writeVarLong(out, index + REFERENCE);
+        return;
+      }
+      if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+        dictionary.put(s, dictionary.size());
+        writeVarLong(out, NEW_STRING);
+      } else {
+        writeVarLong(out, LITERAL_STRING);
+      }
+      byte[] bytes = s.getBytes(UTF_8);
+      writeVarLong(out, bytes.length);
+      out.write(bytes);
+    }
+
+    private static String scrub(String value) {
+      return Strings.repeat("x", value.length());
+    }
+  }
+
+  /*
+   * Reader reads records from a stream. A record cut short, e.g. by a crash of the recording
+   * process, ends the recording. Not thread safe.
+   */
+  static final class Reader {
+    private static final Logger logger = Logger.getLogger(Reader.class.getName());
+
+    private final DataInputStream in;
+    private final List<String> dictionary = new ArrayList<String>();
+
+    Reader(InputStream in) throws IOException {
+      this.in = new DataInputStream(in);
+      if (this.in.readInt() != MAGIC) {
+        throw new IOException("Not a span recording");
+      }
+      int version = this.in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported span recording version: " + version);
+      }
+    }
+
+    /*
+     * next returns the next record, or null at the end of the recording.
+     */
+    @Nullable
+    Record next() throws IOException {
+      int first = in.read();
+      if (first == -1) {
+        return null;
+      }
+      try {
+        long offsetNanos = readVarLong(in, first);
+        int count = (int) readVarLong(in);
+        List<SpanData> spans = new ArrayList<SpanData>(count);
+        for (int i = 0; i < count; i++) {
+          spans.add(readSpan());
+        }
+        return new Record(offsetNanos, spans);
+      } catch (EOFException e) {
+        logger.warning("Span recording ends with a truncated record");
+        return null;
+      }
+    }
+
+    private SpanData readSpan() throws IOException {
+      SpanContext context = readContext();
+      SpanId parent = in.readBoolean() ? SpanId.fromBytes(readBytes(SpanId.SIZE)) : null;
+      byte remote = in.readByte();
+      Boolean hasRemoteParent = remote == 0 ? null : remote == 2;
+      String name = readString();
+      byte kind = in.readByte();
+      Timestamp start = readTimestamp();
+      Map<String, AttributeValue> attributes = readAttributes();
+      SpanData.Attributes spanAttributes =
+          SpanData.Attributes.create(attributes, (int) readVarLong(in));
+
+      int count = (int) readVarLong(in);
+      List<SpanData.TimedEvent<Annotation>> annotations =
+          new ArrayList<SpanData.TimedEvent<Annotation>>(count);
+      for (int i = 0; i < count; i++) {
+        Timestamp timestamp = readTimestamp();
+        String description = readString();
+        annotations.add(
+            SpanData.TimedEvent.create(
+                timestamp,
+                Annotation.fromDescriptionAndAttributes(description, readAttributes())));
+      }
+      SpanData.TimedEvents<Annotation> annotationEvents =
+          SpanData.TimedEvents.create(annotations, (int) readVarLong(in));
+
+      count = (int) readVarLong(in);
+      List<SpanData.TimedEvent<MessageEvent>> messages =
+          new ArrayList<SpanData.TimedEvent<MessageEvent>>(count);
+      for (int i = 0; i < count; i++) {
+        Timestamp timestamp = readTimestamp();
+        MessageEvent.Type type = MESSAGE_TYPES[in.readUnsignedByte()];
+        long id = readVarLong(in);
+        messages.add(
+            SpanData.TimedEvent.create(
+                timestamp,
+                MessageEvent.builder(type, id)
+                    .setUncompressedMessageSize(readVarLong(in))
+                    .setCompressedMessageSize(readVarLong(in))
+                    .build()));
+      }
+      SpanData.TimedEvents<MessageEvent> messageEvents =
+          SpanData.TimedEvents.create(messages, (int) readVarLong(in));
+
+      count = (int) readVarLong(in);
+      List<Link> links = new ArrayList<Link>(count);
+      for (int i = 0; i < count; i++) {
+        SpanContext linked =
+            SpanContext.create(
+                TraceId.fromBytes(readBytes(TraceId.SIZE)),
+                SpanId.fromBytes(readBytes(SpanId.SIZE)),
+                TraceOptions.DEFAULT,
+                Tracestate.builder().build());
+        Link.Type type = LINK_TYPES[in.readUnsignedByte()];
+        links.add(Link.fromSpanContext(linked, type, readAttributes()));
+      }
+      SpanData.Links spanLinks = SpanData.Links.create(links, (int) readVarLong(in));
+
+      long children = readVarLong(in);
+      byte code = in.readByte();
+      Status status = null;
+      if (code >= 0) {
+        status = CODES[code].toStatus();
+        if (in.readBoolean()) {
+          status = status.withDescription(readString());
+        }
+      }
+      Timestamp end = in.readBoolean() ? readTimestamp() : null;
+      return SpanData.create(
+          context,
+          parent,
+          hasRemoteParent,
+          name,
+          kind < 0 ? null : KINDS[kind],
+          start,
+          spanAttributes,
+          annotationEvents,
+          messageEvents,
+          spanLinks,
+          children == 0 ? null : (int) (children - 1),
+          status,
+          end);
+    }
+
+    private SpanContext readContext() throws IOException {
+      TraceId traceId = TraceId.fromBytes(readBytes(TraceId.SIZE));
+      SpanId spanId = SpanId.fromBytes(readBytes(SpanId.SIZE));
+      TraceOptions options = TraceOptions.fromByte(in.readByte());
+      int count = (int) readVarLong(in);
+      Tracestate.Builder tracestate = Tracestate.builder();
+      for (int i = 0; i < count; i++) {
+        tracestate.set(readString(), readString());
+      }
+      return SpanContext.create(traceId, spanId, options, tracestate.build());
+    }
+
+    private Map<String, AttributeValue> readAttributes() throws IOException {
+      int count = (int) readVarLong(in);
+      Map<String, AttributeValue> attributes = new LinkedHashMap<String, AttributeValue>();
+      for (int i = 0; i < count; i++) {
+        String key = readString();
+        byte type = in.readByte();
+        switch (type) {
+          case STRING:
+            attributes.put(key, AttributeValue.stringAttributeValue(readString()));
+            break;
+          case BOOLEAN:
+            attributes.put(key, AttributeValue.booleanAttributeValue(in.readBoolean()));
+            break;
+          case LONG:
+            attributes.put(key, AttributeValue.longAttributeValue(in.readLong()));
+            break;
+          case DOUBLE:
+            attributes.put(key, AttributeValue.doubleAttributeValue(in.readDouble()));
+            break;
+          case NULL:
+          default:
+            break;
+        }
+      }
+      return attributes;
+    }
+
+    private Timestamp readTimestamp() throws IOException {
+      long seconds = readVarLong(in);
+      return Timestamp.create(seconds, (int) readVarLong(in));
+    }
+
+    private byte[] readBytes(int size) throws IOException {
+      byte[] bytes = new byte[size];
+      in.readFully(bytes);
+      return bytes;
+    }
+
+    private String readString() throws IOException {
+      int marker = (int) readVarLong(in);
+      if (marker >= REFERENCE) {
+        int index = marker - REFERENCE;
+        if (index >= dictionary.size()) {
+          throw new IOException("Invalid string reference: " + index);
+        }
+        return dictionary.get(index);
+      }
+      String s = new String(readBytes((int) readVarLong(in)), UTF_8);
+      if (marker == NEW_STRING) {
+        dictionary.add(s);
+      }
+      return s;
+    }
+  }
+
+  /*
+   * writeVarLong writes a non-negative value 7 bits at a time, low bits first.
+   */
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    return readVarLong(in, in.readUnsignedByte());
+  }
+
+  private static long readVarLong(DataInputStream in, int first) throws IOException {
+    long value = first & 0x7f;
+    int shift = 7;
+    int b = first;
+    while ((b & 0x80) != 0) {
+      if (shift > 63) {
+        throw new IOException("Malformed varint");
+      }
+      b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import io.opencensus.trace.export.SpanExporter;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * SpanReplayer feeds a recording made by SpanRecorder into a handler, e.g. XRayExporterHandler,
+ * with the same spans in the same export() calls. At speed 1.0 the calls are as far apart as they
+ * were recorded, at 2.0 twice as close; at 0 they are made back to back. A handler slower than the
+ * recording delays the following calls rather than being called concurrently.
+ */
+final class SpanReplayer {
+  private SpanReplayer() {}
+
+  /** What a replay did. */
+  static final class Result {
+    final long records;
+    final long spans;
+    final long elapsedNanos;
+    // how far export() calls started behind their schedule, at most.
+    final long maxLagNanos;
+
+    Result(long records, long spans, long elapsedNanos, long maxLagNanos) {
+      this.records = records;
+      this.spans = spans;
+      this.elapsedNanos = elapsedNanos;
+      this.maxLagNanos = maxLagNanos;
+    }
+  }
+
+  static Result replay(Path file, SpanExporter.Handler handler, double speed)
+      throws IOException, InterruptedException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(file));
+    try {
+      return replay(in, handler, speed);
+    } finally {
+      in.close();
+    }
+  }
+
+  static Result replay(InputStream in, SpanExporter.Handler handler, double speed)
+      throws IOException, InterruptedException {
+    checkArgument(speed >= 0, "speed must not be negative");
+    SpanRecording.Reader reader = new SpanRecording.Reader(in);
+    long records = 0;
+    long spans = 0;
+    long maxLag = 0;
+    long first = -1;
+    long start = System.nanoTime();
+    SpanRecording.Record record;
+    while ((record = reader.next()) != null) {
+      if (first < 0) {
+        first = record.offsetNanos;
+      }
+      if (speed > 0) {
+        long due = start + (long) ((record.offsetNanos - first) / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        } else {
+          maxLag = Math.max(maxLag, -wait);
+        }
+      }
+      handler.export(record.spans);
+      records++;
+      spans += record.spans.size();
+    }
+    return new Result(records, spans, System.nanoTime() - start, maxLag);
+  }
+}
@@ -16,10 +16,9 @@
 
 package info.tdoc.exporter.trace.xray;
 
-import static java.util.concurrent.TimeUnit.NANOSECONDS;
-
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import io.opencensus.common.Function;
 import io.opencensus.common.Functions;
 import io.opencensus.common.Timestamp;
@@ -29,19 +28,15 @@ import io.opencensus.trace.SpanId;
 import io.opencensus.trace.Status;
 import io.opencensus.trace.TraceId;
 import io.opencensus.trace.export.SpanData;
-import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.time.Clock;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /*
  *
@@ -65,9 +60,7 @@ public class TraceSegment {
   private static final Integer MaxAge = 60 * 60 * 24 * 28; // 28Day
   private static final Integer MaxSkew = 60 * 5; // 5m
   private static final String VersionNo = "1";
-  private static final Pattern reInvalidSpanCharacters = Pattern.compile("");
-  private static final Integer maxSegmentNameLength = 200;
-  private static final String defaultSegmentName = "span";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
   @JsonProperty("name")
   public String name;
@@ -76,7 +69,8 @@ public class TraceSegment {
   public String id;
 
   @JsonProperty("start_time")
-  public double startTime;
+  @JsonSerialize(using = EpochTimestampSerializer.class)
+  public Timestamp startTime;
 
   @JsonProperty("trace_id")
   public String traceId;
@@ -87,7 +81,8 @@ public class TraceSegment {
 
   @JsonProperty("end_time")
   @JsonInclude(JsonInclude.Include.NON_NULL)
-  public double endTime;
+  @JsonSerialize(using = EpochTimestampSerializer.class)
+  public Timestamp endTime;
 
   @JsonProperty("in_progress")
   @JsonInclude(JsonInclude.Include.NON_NULL)
@@ -121,6 +116,10 @@ public class TraceSegment {
   @JsonInclude(JsonInclude.Include.NON_NULL)
   public Map<String, Object> annotations;
 
+  @JsonProperty("metadata")
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Map<String, Map<String, Object>> metadata;
+
   @JsonProperty("precursor_ids")
   @JsonInclude(JsonInclude.Include.NON_NULL)
   public List<String> precursorIds;
@@ -209,9 +208,13 @@ public class TraceSegment {
   }
 
   public TraceSegment(String name, SpanData sd) {
+    this(name, sd, SegmentOptions.DEFAULT);
+  }
+
+  TraceSegment(String name, SpanData sd, SegmentOptions options) {
     SpanContext sc = sd.getContext();
     if (name == null || name.equals("")) {
-      this.name = fixSegmentName(sd.getName());
+      this.name = options.segmentName(sd);
     } else {
       this.name = name;
     }
@@ -232,23 +235,81 @@ public class TraceSegment {
       } else if (parentId != null && parentId.isValid()) { // local invocation
         this.type = "subsegment";
         // if subsegment, change name from a service name to a method name.
-        this.name = fixSegmentName(sd.getName());
+        this.name = options.segmentName(sd);
       }
     }
 
     // Time
-    this.startTime = toEpochSeconds(sd.getStartTimestamp());
-    Timestamp endTime = sd.getEndTimestamp();
-    if (endTime == null) {
+    this.startTime = sd.getStartTimestamp();
+    this.endTime = sd.getEndTimestamp();
+    if (this.endTime == null) {
       this.inProgress = true;
-    } else {
-      this.endTime = toEpochSeconds(endTime);
     }
 
     makeCause(sd.getStatus());
-    makeSQL(sd.getAttributes());
-    makeHTTP(sd.getAttributes(), sd.getStatus());
-    this.annotations = this.makeAnnotations(sd.getName(), sd.getAttributes());
+    makeAttributes(sd.getName(), sd.getAttributes(), sd.getStatus(), options);
+  }
+
+  /*
+   * isTopLevel returns true for segments, which may carry the aws and service fields, and false
+   * for subsegments.
+   */
+  boolean isTopLevel() {
+    return !"subsegment".equals(this.type);
+  }
+
+  /*
+   * aggregate turns this segment into the representative of a group of sibling leaf spans. The
+   * time range is widened to cover every member, annotations and "default" metadata are narrowed
+   * to the name and keyAttributes, and the per-member statistics are stored in the "aggregate"
+   * metadata namespace.
+   */
+  void aggregate(
+      Timestamp start,
+      Timestamp end,
+      Collection<String> keyAttributes,
+      long count,
+      long minNanos,
+      long maxNanos,
+      long totalNanos,
+      long errorCount) {
+    this.startTime = start;
+    this.endTime = end;
+    for (Iterator<String> it = this.annotations.keySet().iterator(); it.hasNext(); ) {
+      String key = it.next();
+      if (!key.equals("name") && !keyAttributes.contains(key)) {
+        it.remove();
+      }
+    }
+    if (this.metadata != null) {
+      Map<String, Object> meta = this.metadata.get("default");
+      if (meta != null) {
+        meta.keySet().retainAll(keyAttributes);
+        if (meta.isEmpty()) {
+          this.metadata.remove("default");
+        }
+      }
+    }
+    if (this.subsegments != null) {
+      for (TraceSegment s : this.subsegments) {
+        s.startTime = this.startTime;
+        s.endTime = this.endTime;
+      }
+    }
+    if (errorCount > 0 && this.error == null && this.fault == null && this.throttle == null) {
+      this.error = true;
+    }
+
+    Map<String, Object> stats = new HashMap<String, Object>();
+    stats.put("count", count);
+    stats.put("error_count", errorCount);
+    stats.put("min_duration", nanosToSeconds(minNanos));
+    stats.put("max_duration", nanosToSeconds(maxNanos));
+    stats.put("total_duration", nanosToSeconds(totalNanos));
+    if (this.metadata == null) {
+      this.metadata = new HashMap<String, Map<String, Object>>();
+    }
+    this.metadata.put("aggregate", stats);
   }
 
   /*
@@ -256,15 +317,7 @@ public class TraceSegment {
    * for the segment, unique among segments in the same trace, in 16 hexadecimal digits.
    */
   private static String convertToAmazonSpanID(SpanId spanId) {
-    byte[] v = spanId.getBytes();
-    if (v.equals("")) {
-      return "";
-    }
-    StringBuilder sb = new StringBuilder();
-    for (byte b : Arrays.copyOfRange(v, 0, 8)) {
-      sb.append(String.format("%02x", b));
-    }
-    return sb.toString();
+    return spanId.toLowerBase16();
   }
 
   /**
@@ -273,7 +326,7 @@ public class TraceSegment {
    * <p>To get same Trace ID among servers, round down current time to minutes.
    */
   private static long getAmazonTraceIDTime() {
-    return Instant.now(Clock.systemUTC()).truncatedTo(ChronoUnit.MINUTES).getEpochSecond();
+    return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis()) * 60;
   }
 
   /*
@@ -282,29 +335,23 @@ public class TraceSegment {
    */
   private static String convertToAmazonTraceID(TraceId traceId) {
     long epochNow = getAmazonTraceIDTime();
-    long epoch = ByteBuffer.wrap(Arrays.copyOfRange(traceId.getBytes(), 0, 4)).getInt();
+    String hex = traceId.toLowerBase16();
+    long epoch = (int) Long.parseLong(hex.substring(0, 8), 16);
 
+    StringBuilder sb = new StringBuilder(35);
+    sb.append(VersionNo);
+    sb.append('-');
     long delta = epochNow - epoch;
     if (delta > MaxAge || delta < -MaxSkew) {
-      epoch = epochNow;
-    }
-
-    StringBuilder sb = new StringBuilder();
-
-    sb.append(VersionNo);
-    sb.append("-");
-
-    byte[] epochByte = ByteBuffer.allocate(8).putLong(epoch).array();
-    for (byte b : Arrays.copyOfRange(epochByte, 4, 8)) {
-      sb.append(String.format("%02x", b));
+      for (int shift = 28; shift >= 0; shift -= 4) {
+        sb.append(HEX_DIGITS[(int) (epochNow >>> shift) & 0xF]);
+      }
+    } else {
+      sb.append(hex, 0, 8);
     }
-
-    sb.append("-");
+    sb.append('-');
     // overwrite with identifier
-    for (byte b : Arrays.copyOfRange(traceId.getBytes(), 4, 16)) {
-      sb.append(String.format("%02x", b));
-    }
-
+    sb.append(hex, 8, 32);
     return sb.toString();
   }
 
@@ -330,88 +377,106 @@ public class TraceSegment {
     }
   }
 
-  private void makeSQL(SpanData.Attributes attrib) {
-    SQL sqlinfo = null;
+  /*
+   * makeAttributes converts attributes in a single pass. Attributes dropped by options are never
+   * read; the others are scrubbed, then exported as indexed annotations or as metadata in the
+   * "default" namespace, and also fill the SQL and HTTP sections.
+   */
+  private void makeAttributes(
+      String name, SpanData.Attributes attrib, Status status, SegmentOptions options) {
+    Map<String, Object> ret = new HashMap<String, Object>();
+    ret.put("name", name); // allways put span's name to attribute.
+    this.annotations = ret;
+
+    if (attrib.getAttributeMap().isEmpty()) {
+      return;
+    }
+    Map<String, Object> meta = null;
+    String sqlQuery = null;
+    HTTP httpinfo = null;
     for (Map.Entry<String, AttributeValue> label : attrib.getAttributeMap().entrySet()) {
       String key = label.getKey();
+      if (options.isDropped(key)) {
+        continue;
+      }
+      Object value = attributeValueToObject(label.getValue());
       if (key.equals(ATTRIB_SQL_EXEC)) {
-        sqlinfo = new SQL();
-        sqlinfo.sanitizedQuery = attributeValueToString(label.getValue());
+        sqlQuery = options.scrubSql(value == null ? "" : value.toString());
+        value = sqlQuery;
+      } else if (value instanceof String) {
+        value = options.scrub((String) value);
       }
-    }
-    if (sqlinfo != null) {
-      this.subsegments = new ArrayList<TraceSegment>();
-      TraceSegment s = new TraceSegment(ATTRIB_SQL_EXEC, this.id);
-      s.id = generateId();
-      s.nameSpace = "remote";
-      s.startTime = this.startTime;
-      s.endTime = this.endTime;
-      s.traceId = this.traceId;
-      s.sql = sqlinfo;
-      this.subsegments.add(s);
-    }
-  }
-
-  private void makeHTTP(SpanData.Attributes attrib, Status status) {
-    HTTP httpinfo = null;
-    for (Map.Entry<String, AttributeValue> label : attrib.getAttributeMap().entrySet()) {
-      switch (label.getKey()) {
+      switch (key) {
         case HTTP_METHOD:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          http.request.method = attributeValueToString(label.getValue());
+          httpinfo = newHTTPIfNull(httpinfo);
+          httpinfo.request.method = valueToString(value);
           break;
         case HTTP_URL:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          http.request.url = attributeValueToString(label.getValue());
+          httpinfo = newHTTPIfNull(httpinfo);
+          httpinfo.request.url = valueToString(value);
           break;
         case HTTP_USER_AGENT:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          http.request.user_agent = attributeValueToString(label.getValue());
+          httpinfo = newHTTPIfNull(httpinfo);
+          httpinfo.request.user_agent = valueToString(value);
           break;
         case HTTP_STATUS_CODE:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          httpinfo.response.status = attributeValueToString(label.getValue());
+          httpinfo = newHTTPIfNull(httpinfo);
+          httpinfo.response.status = valueToString(value);
+          break;
+        default:
+          break;
       }
-      if (httpinfo == null) {
-        return;
+      if (options.isAnnotation(key)) {
+        ret.put(key, value);
+      } else {
+        if (meta == null) {
+          meta = new HashMap<String, Object>();
+        }
+        meta.put(key, value);
       }
-
+    }
+    if (meta != null) {
+      this.metadata = new HashMap<String, Map<String, Object>>();
+      this.metadata.put("default", meta);
+    }
+    if (httpinfo != null) {
       if (httpinfo.response.status == null || httpinfo.response.status.equals((""))) {
         // This is a fallback.
         httpinfo.response.status = convertToHTTPStatusCode(status);
       }
-
       this.http = httpinfo;
     }
+    if (sqlQuery != null) {
+      makeSQL(sqlQuery);
+    }
   }
 
-  private Map<String, Object> makeAnnotations(String name, SpanData.Attributes attrib) {
-    Map<String, Object> ret = new HashMap<String, Object>();
-    ret.put("name", name); // allways put span's name to attribute.
+  private void makeSQL(String query) {
+    SQL sqlinfo = new SQL();
+    sqlinfo.sanitizedQuery = query;
+    this.subsegments = new ArrayList<TraceSegment>();
+    TraceSegment s = new TraceSegment(ATTRIB_SQL_EXEC, this.id);
+    s.id = generateId();
+    s.nameSpace = "remote";
+    s.startTime = this.startTime;
+    s.endTime = this.endTime;
+    s.traceId = this.traceId;
+    s.sql = sqlinfo;
+    this.subsegments.add(s);
+  }
 
-    if (attrib.getAttributeMap().entrySet().size() == 0) {
-      return ret;
+  private static HTTP newHTTPIfNull(HTTP httpinfo) {
+    if (httpinfo != null) {
+      return httpinfo;
     }
-    for (Map.Entry<String, AttributeValue> label : attrib.getAttributeMap().entrySet()) {
-      ret.put(label.getKey(), attributeValueToObject(label.getValue()));
-    }
-    return ret;
+    httpinfo = new HTTP();
+    httpinfo.request = new HTTP.Request();
+    httpinfo.response = new HTTP.Response();
+    return httpinfo;
+  }
+
+  private static String valueToString(Object value) {
+    return value == null ? "" : value.toString();
   }
 
   /**
@@ -458,28 +523,8 @@ public class TraceSegment {
     return "";
   }
 
-  /*
-   * fixSegmentName removes any invalid characters from the span name.  AWS X-Ray defines
-   * the list of valid characters here:
-   * https://docs.aws.amazon.com/xray/latest/devguide/xray-api-segmentdocuments.html
-   */
-  private static String fixSegmentName(String name) {
-    Matcher m = reInvalidSpanCharacters.matcher(name);
-    if (m.matches()) {
-      // only allocate for ReplaceAllString if we need to
-      name = m.replaceAll("");
-    }
-    if (name.length() > maxSegmentNameLength) {
-      name = name.substring(0, maxSegmentNameLength);
-    } else if (name.length() == 0) {
-      name = defaultSegmentName;
-    }
-
-    return name;
-  }
-
-  private static double toEpochSeconds(Timestamp timestamp) {
-    return timestamp.getSeconds() + NANOSECONDS.toMillis(timestamp.getNanos()) / 1000.0;
+  private static double nanosToSeconds(long nanos) {
+    return nanos / 1e9;
   }
 
   public static String generateId() {
@@ -490,18 +535,7 @@ public class TraceSegment {
     return id;
   }
 
-  private static final Function<Object, String> returnToString = Functions.returnToString();
-
-  private static String attributeValueToString(AttributeValue attributeValue) {
-    return attributeValue.match(
-        returnToString,
-        returnToString,
-        returnToString,
-        returnToString,
-        Functions.<String>returnConstant(""));
-  }
-
-  private static Object attributeValueToObject(AttributeValue attributeValue) {
+  static Object attributeValueToObject(AttributeValue attributeValue) {
     return attributeValue.match(
         stringAttributeValueFunction,
         booleanAttributeValueFunction,
@@ -0,0 +1,736 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.amazonaws.services.xray.AWSXRay;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Configurations for {@link XRayTraceExporter}.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * XRayTraceExporter.createAndRegister(
+ *     XRayExporterConfiguration.builder()
+ *         .setServiceName("myservicename")
+ *         .setRegion("us-west-2")
+ *         .setMaxBatchSize(50)
+ *         .build());
+ * }</pre>
+ */
+public final class XRayExporterConfiguration {
+  /** How segment documents are delivered. */
+  public enum Transport {
+    /** Call the PutTraceSegments API with the AWS X-Ray client. */
+    API,
+    /** Send UDP datagrams to a local X-Ray daemon. */
+    DAEMON,
+    /** Append documents to a local file, one per line. */
+    FILE
+  }
+
+  /** A dimension of the key documents are fairly queued by. */
+  public enum FairQueueKey {
+    /** The service name of the exporter. */
+    SERVICE_NAME,
+    /** The name of the span. */
+    SPAN_NAME,
+    /** The {@code http.route} attribute of the span. */
+    HTTP_ROUTE
+  }
+
+  static final String DEFAULT_HANDLER_NAME = XRayTraceExporter.class.getName();
+  static final int DEFAULT_MAX_QUEUE_SIZE = 2048;
+  static final int DEFAULT_MAX_BATCH_SIZE = 50;
+  static final int DEFAULT_MAX_CONCURRENCY = 1;
+  static final String DEFAULT_DAEMON_ADDRESS = "127.0.0.1:2000";
+  // https://docs.aws.amazon.com/xray/latest/devguide/xray-api-segmentdocuments.html
+  static final int DEFAULT_MAX_DOCUMENT_BYTES = 64 * 1024;
+  static final long DEFAULT_MAX_LINGER_MILLIS = 100;
+  static final long DEFAULT_CLIENT_INIT_TIMEOUT_MILLIS = 10000;
+  static final double DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 0.5;
+  static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+  static final long DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 30000;
+  static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_TRIALS = 1;
+
+  private final String handlerName;
+  private final String serviceName;
+  @Nullable private final AWSXRay client;
+  @Nullable private final String region;
+  private final boolean lazyClientInit;
+  private final long clientInitTimeoutMillis;
+  private final Transport transport;
+  private final String daemonAddress;
+  @Nullable private final Path file;
+  private final List<ExportDestination> destinations;
+  private final int maxQueueSize;
+  private final long maxQueueBytes;
+  private final int maxBatchSize;
+  private final int maxConcurrency;
+  private final int senderShards;
+  private final List<FairQueueKey> fairQueueKeys;
+  private final Map<String, Integer> fairQueueWeights;
+  private final long maxLingerMillis;
+  @Nullable private final Executor senderExecutor;
+  private final double samplingProbability;
+  @Nullable private final RuleBasedSampler sampler;
+  private final int maxDocumentBytes;
+  private final int maxAttributeValueLength;
+  @Nullable private final Set<String> annotationKeys;
+  private final Set<String> droppedAttributeKeys;
+  private final List<String> droppedAttributePrefixes;
+  private final List<String> redactedValuePatterns;
+  private final boolean stripSqlLiterals;
+  @Nullable private final SpanAggregator spanAggregator;
+  private final List<ResourceSource> resourceSources;
+  private final boolean useHttpRouteAsName;
+  private final int maxSegmentNameCacheSize;
+  private final boolean circuitBreakerEnabled;
+  private final double circuitBreakerFailureRate;
+  private final int circuitBreakerWindowSize;
+  private final long circuitBreakerOpenMillis;
+  private final int circuitBreakerHalfOpenTrials;
+
+  private XRayExporterConfiguration(Builder builder) {
+    this.handlerName = builder.handlerName;
+    this.serviceName = builder.serviceName;
+    this.client = builder.client;
+    this.region = builder.region;
+    this.lazyClientInit = builder.lazyClientInit;
+    this.clientInitTimeoutMillis = builder.clientInitTimeoutMillis;
+    this.transport = builder.transport;
+    this.daemonAddress = builder.daemonAddress;
+    this.file = builder.file;
+    this.destinations = builder.destinations;
+    this.maxQueueSize = builder.maxQueueSize;
+    this.maxQueueBytes = builder.maxQueueBytes;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.maxConcurrency = builder.maxConcurrency;
+    this.senderShards = builder.senderShards;
+    this.fairQueueKeys = builder.fairQueueKeys;
+    this.fairQueueWeights = builder.fairQueueWeights;
+    this.maxLingerMillis = builder.maxLingerMillis;
+    this.senderExecutor = builder.senderExecutor;
+    this.samplingProbability = builder.samplingProbability;
+    this.sampler = builder.sampler;
+    this.maxDocumentBytes = builder.maxDocumentBytes;
+    this.maxAttributeValueLength = builder.maxAttributeValueLength;
+    this.annotationKeys = builder.annotationKeys;
+    this.droppedAttributeKeys = builder.droppedAttributeKeys;
+    this.droppedAttributePrefixes = builder.droppedAttributePrefixes;
+    this.redactedValuePatterns = builder.redactedValuePatterns;
+    this.stripSqlLiterals = builder.stripSqlLiterals;
+    this.spanAggregator = builder.spanAggregator;
+    this.resourceSources = builder.resourceSources;
+    this.useHttpRouteAsName = builder.useHttpRouteAsName;
+    this.maxSegmentNameCacheSize = builder.maxSegmentNameCacheSize;
+    this.circuitBreakerEnabled = builder.circuitBreakerEnabled;
+    this.circuitBreakerFailureRate = builder.circuitBreakerFailureRate;
+    this.circuitBreakerWindowSize = builder.circuitBreakerWindowSize;
+    this.circuitBreakerOpenMillis = builder.circuitBreakerOpenMillis;
+    this.circuitBreakerHalfOpenTrials = builder.circuitBreakerHalfOpenTrials;
+  }
+
+  /** Returns a new {@link Builder}. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the name the handler is registered under in the {@code SpanExporter}. */
+  public String getHandlerName() {
+    return handlerName;
+  }
+
+  /** Returns the service name used as the segment name of top level spans. */
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  /** Returns the AWS X-Ray client, or {@code null} to build one from the default chains. */
+  @Nullable
+  public AWSXRay getClient() {
+    return client;
+  }
+
+  /** Returns the region of the client built when no client is given. */
+  @Nullable
+  public String getRegion() {
+    return region;
+  }
+
+  /** Returns true if the client is built on a background thread after registration. */
+  public boolean getLazyClientInit() {
+    return lazyClientInit;
+  }
+
+  /** Returns how long a request waits for the lazily built client. */
+  public long getClientInitTimeoutMillis() {
+    return clientInitTimeoutMillis;
+  }
+
+  /** Returns how segment documents are delivered. */
+  public Transport getTransport() {
+    return transport;
+  }
+
+  /** Returns the {@code host:port} of the X-Ray daemon used by {@link Transport#DAEMON}. */
+  public String getDaemonAddress() {
+    return daemonAddress;
+  }
+
+  /** Returns the file documents are appended to with the {@code FILE} transport. */
+  @Nullable
+  public Path getFile() {
+    return file;
+  }
+
+  /** Returns the additional destinations every segment is delivered to. */
+  public List<ExportDestination> getDestinations() {
+    return destinations;
+  }
+
+  /** Returns the maximum number of encoded documents waiting to be sent. */
+  public int getMaxQueueSize() {
+    return maxQueueSize;
+  }
+
+  /** Returns the bytes of off-heap memory for queued documents, or 0 to queue them on the heap. */
+  public long getMaxQueueBytes() {
+    return maxQueueBytes;
+  }
+
+  /** Returns the maximum number of documents per request. */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /** Returns the maximum number of requests in flight. */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /** Returns the number of senders the documents are spread over by trace ID. */
+  public int getSenderShards() {
+    return senderShards;
+  }
+
+  /** Returns the dimensions of the key documents are fairly queued by. */
+  public List<FairQueueKey> getFairQueueKeys() {
+    return fairQueueKeys;
+  }
+
+  /** Returns the weights of fair queuing keys. */
+  public Map<String, Integer> getFairQueueWeights() {
+    return fairQueueWeights;
+  }
+
+  /** Returns the maximum time a request waits for more documents. */
+  public long getMaxLingerMillis() {
+    return maxLingerMillis;
+  }
+
+  /** Returns the executor running requests, or {@code null} to use the default one. */
+  @Nullable
+  public Executor getSenderExecutor() {
+    return senderExecutor;
+  }
+
+  /** Returns the probability that a trace is exported. */
+  public double getSamplingProbability() {
+    return samplingProbability;
+  }
+
+  /** Returns the sampler filtering spans at export time, or {@code null}. */
+  @Nullable
+  public RuleBasedSampler getSampler() {
+    return sampler;
+  }
+
+  /** Returns the size above which an encoded document is dropped. */
+  public int getMaxDocumentBytes() {
+    return maxDocumentBytes;
+  }
+
+  /** Returns the length string attribute values are truncated to, or 0 for no truncation. */
+  public int getMaxAttributeValueLength() {
+    return maxAttributeValueLength;
+  }
+
+  /**
+   * Returns the attribute keys exported as indexed annotations, or {@code null} to export every
+   * attribute as an annotation. Other attributes are exported as metadata.
+   */
+  @Nullable
+  public Set<String> getAnnotationKeys() {
+    return annotationKeys;
+  }
+
+  /** Returns the attribute keys which are never exported. */
+  public Set<String> getDroppedAttributeKeys() {
+    return droppedAttributeKeys;
+  }
+
+  /** Returns the prefixes of attribute keys which are never exported. */
+  public List<String> getDroppedAttributePrefixes() {
+    return droppedAttributePrefixes;
+  }
+
+  /** Returns the regular expressions whose matches in string values are replaced by "***". */
+  public List<String> getRedactedValuePatterns() {
+    return redactedValuePatterns;
+  }
+
+  /** Returns true if string and numeric literals are removed from {@code sql.query}. */
+  public boolean getStripSqlLiterals() {
+    return stripSqlLiterals;
+  }
+
+  /** Returns the aggregator of repeated sibling leaf spans, or {@code null}. */
+  @Nullable
+  public SpanAggregator getSpanAggregator() {
+    return spanAggregator;
+  }
+
+  /** Returns the sources describing the environment in top level segments. */
+  public List<ResourceSource> getResourceSources() {
+    return resourceSources;
+  }
+
+  /** Returns true if spans with an {@code http.route} attribute are named after the route. */
+  public boolean getUseHttpRouteAsName() {
+    return useHttpRouteAsName;
+  }
+
+  /** Returns the maximum number of distinct span names whose sanitized name is cached. */
+  public int getMaxSegmentNameCacheSize() {
+    return maxSegmentNameCacheSize;
+  }
+
+  /**
+   * Returns true if requests are stopped while the X-Ray endpoint keeps failing. It is off by
+   * default.
+   */
+  public boolean getCircuitBreakerEnabled() {
+    return circuitBreakerEnabled;
+  }
+
+  /** Returns the failure rate of the recent requests which opens the circuit breaker. */
+  public double getCircuitBreakerFailureRate() {
+    return circuitBreakerFailureRate;
+  }
+
+  /** Returns the number of recent requests the failure rate is computed over. */
+  public int getCircuitBreakerWindowSize() {
+    return circuitBreakerWindowSize;
+  }
+
+  /** Returns how long the circuit breaker stays open before trial requests are sent. */
+  public long getCircuitBreakerOpenMillis() {
+    return circuitBreakerOpenMillis;
+  }
+
+  /** Returns the number of successful trial requests needed to close the circuit breaker. */
+  public int getCircuitBreakerHalfOpenTrials() {
+    return circuitBreakerHalfOpenTrials;
+  }
+
+  /** Builder for {@link XRayExporterConfiguration}. */
+  public static final class Builder {
+    private String handlerName = DEFAULT_HANDLER_NAME;
+    private String serviceName = "";
+    @Nullable private AWSXRay client;
+    @Nullable private String region;
+    private boolean lazyClientInit = false;
+    private long clientInitTimeoutMillis = DEFAULT_CLIENT_INIT_TIMEOUT_MILLIS;
+    private Transport transport = Transport.API;
+    private String daemonAddress = DEFAULT_DAEMON_ADDRESS;
+    @Nullable private Path file;
+    private List<ExportDestination> destinations = ImmutableList.of();
+    private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+    private long maxQueueBytes = 0;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int senderShards = 1;
+    private List<FairQueueKey> fairQueueKeys = ImmutableList.of();
+    private Map<String, Integer> fairQueueWeights = ImmutableMap.of();
+    private long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+    @Nullable private Executor senderExecutor;
+    private double samplingProbability = 1.0;
+    @Nullable private RuleBasedSampler sampler;
+    private int maxDocumentBytes = DEFAULT_MAX_DOCUMENT_BYTES;
+    private int maxAttributeValueLength = 0;
+    @Nullable private Set<String> annotationKeys;
+    private Set<String> droppedAttributeKeys = ImmutableSet.of();
+    private List<String> droppedAttributePrefixes = ImmutableList.of();
+    private List<String> redactedValuePatterns = ImmutableList.of();
+    private boolean stripSqlLiterals = false;
+    @Nullable private SpanAggregator spanAggregator;
+    private List<ResourceSource> resourceSources = ResourceSources.defaults();
+    private boolean useHttpRouteAsName = false;
+    private int maxSegmentNameCacheSize = SegmentNameCache.DEFAULT_MAX_SIZE;
+    private boolean circuitBreakerEnabled = false;
+    private double circuitBreakerFailureRate = DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE;
+    private int circuitBreakerWindowSize = DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE;
+    private long circuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+    private int circuitBreakerHalfOpenTrials = DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_TRIALS;
+
+    private Builder() {}
+
+    /**
+     * Sets the name the handler is registered under. Exporters with distinct names can be
+     * registered at the same time.
+     */
+    public Builder setHandlerName(String handlerName) {
+      this.handlerName = checkNotNull(handlerName, "handlerName");
+      return this;
+    }
+
+    /** Sets the service name used as the segment name of top level spans. */
+    public Builder setServiceName(String serviceName) {
+      this.serviceName = checkNotNull(serviceName, "serviceName");
+      return this;
+    }
+
+    /** Sets the AWS X-Ray client. */
+    public Builder setClient(@Nullable AWSXRay client) {
+      this.client = client;
+      return this;
+    }
+
+    /** Sets the region of the client built when no client is given. */
+    public Builder setRegion(@Nullable String region) {
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * Sets whether the client is built on a background thread, so that registration returns
+     * without walking the credential and region provider chains. Spans exported meanwhile wait
+     * in the queue. Ignored when a client is given.
+     */
+    public Builder setLazyClientInit(boolean lazyClientInit) {
+      this.lazyClientInit = lazyClientInit;
+      return this;
+    }
+
+    /**
+     * Sets how long a request waits for the lazily built client before its documents are
+     * counted as failed.
+     */
+    public Builder setClientInitTimeoutMillis(long clientInitTimeoutMillis) {
+      this.clientInitTimeoutMillis = clientInitTimeoutMillis;
+      return this;
+    }
+
+    /** Sets how segment documents are delivered. */
+    public Builder setTransport(Transport transport) {
+      this.transport = checkNotNull(transport, "transport");
+      return this;
+    }
+
+    /** Sets the {@code host:port} of the X-Ray daemon. */
+    public Builder setDaemonAddress(String daemonAddress) {
+      this.daemonAddress = checkNotNull(daemonAddress, "daemonAddress");
+      return this;
+    }
+
+    /** Sets the file documents are appended to, one per line, with the {@code FILE} transport. */
+    public Builder setFile(@Nullable Path file) {
+      this.file = file;
+      return this;
+    }
+
+    /**
+     * Sets additional destinations every segment is delivered to, besides the one configured
+     * here. Segments are encoded once for all of them. Each destination has its own queue and
+     * requests; the other sending options, e.g. linger and circuit breaker, are shared.
+     */
+    public Builder setDestinations(Collection<ExportDestination> destinations) {
+      this.destinations = ImmutableList.copyOf(destinations);
+      return this;
+    }
+
+    /** Sets the maximum number of encoded documents waiting to be sent. */
+    public Builder setMaxQueueSize(int maxQueueSize) {
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /**
+     * Sets the bytes of off-heap memory for queued documents. With a positive value, encoded
+     * documents wait in direct memory instead of on the heap, and documents beyond it are dropped;
+     * memory is reserved in pages of at least 64KB as needed. 0, the default, queues them on the
+     * heap.
+     */
+    public Builder setMaxQueueBytes(long maxQueueBytes) {
+      this.maxQueueBytes = maxQueueBytes;
+      return this;
+    }
+
+    /** Sets the maximum number of documents per request. */
+    public Builder setMaxBatchSize(int maxBatchSize) {
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /** Sets the maximum number of requests in flight. */
+    public Builder setMaxConcurrency(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /**
+     * Sets the number of senders the documents are spread over. Each has its own queue, batches
+     * and transport, and all segments of a trace go to the same one. The queue and concurrency
+     * limits apply to each sender. Defaults to 1.
+     */
+    public Builder setSenderShards(int senderShards) {
+      this.senderShards = senderShards;
+      return this;
+    }
+
+    /**
+     * Sets the dimensions of the key documents are fairly queued by, e.g. {@code SPAN_NAME} and
+     * {@code HTTP_ROUTE} to queue each endpoint on its own. Keys take turns to be sent, so that a
+     * flooding key does not crowd out the others, and a full queue drops documents of the key
+     * with the most queued ones. The key is the values of the dimensions joined by {@code '|'},
+     * missing ones empty. Defaults to none: all documents share one key.
+     */
+    public Builder setFairQueueKeys(Collection<FairQueueKey> fairQueueKeys) {
+      this.fairQueueKeys = ImmutableList.copyOf(fairQueueKeys);
+      return this;
+    }
+
+    /**
+     * Sets the weights of fair queuing keys: a key with weight 2 may send twice the bytes of a key
+     * with weight 1 while both have documents queued. Keys not in the map weigh 1.
+     */
+    public Builder setFairQueueWeights(Map<String, Integer> fairQueueWeights) {
+      this.fairQueueWeights = ImmutableMap.copyOf(fairQueueWeights);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time a request waits for more documents before it is sent. The actual wait
+     * adapts to the rate of exported spans and the latency of requests: none when idle, up to
+     * this under load. 0 sends at once.
+     */
+    public Builder setMaxLingerMillis(long maxLingerMillis) {
+      this.maxLingerMillis = maxLingerMillis;
+      return this;
+    }
+
+    /**
+     * Sets the executor running requests. By default requests run on a pool of {@code
+     * maxConcurrency} platform threads, or on a virtual thread per request on Java 21 and later.
+     * The exporter does not shut down a given executor.
+     */
+    public Builder setSenderExecutor(@Nullable Executor senderExecutor) {
+      this.senderExecutor = senderExecutor;
+      return this;
+    }
+
+    /** Sets the probability that a trace is exported. */
+    public Builder setSamplingProbability(double samplingProbability) {
+      this.samplingProbability = samplingProbability;
+      return this;
+    }
+
+    /**
+     * Sets a sampler filtering spans at export time. It is applied after the sampling
+     * probability.
+     */
+    public Builder setSampler(@Nullable RuleBasedSampler sampler) {
+      this.sampler = sampler;
+      return this;
+    }
+
+    /** Sets the size above which an encoded document is dropped. */
+    public Builder setMaxDocumentBytes(int maxDocumentBytes) {
+      this.maxDocumentBytes = maxDocumentBytes;
+      return this;
+    }
+
+    /** Sets the length string attribute values are truncated to, or 0 for no truncation. */
+    public Builder setMaxAttributeValueLength(int maxAttributeValueLength) {
+      this.maxAttributeValueLength = maxAttributeValueLength;
+      return this;
+    }
+
+    /**
+     * Sets the attribute keys exported as indexed annotations. Other attributes are exported as
+     * metadata. {@code null} exports every attribute as an annotation.
+     */
+    public Builder setAnnotationKeys(@Nullable Collection<String> annotationKeys) {
+      this.annotationKeys = annotationKeys == null ? null : ImmutableSet.copyOf(annotationKeys);
+      return this;
+    }
+
+    /** Sets the attribute keys which are never exported. */
+    public Builder setDroppedAttributeKeys(Collection<String> droppedAttributeKeys) {
+      this.droppedAttributeKeys = ImmutableSet.copyOf(droppedAttributeKeys);
+      return this;
+    }
+
+    /** Sets the prefixes of attribute keys which are never exported, e.g. {@code "user."}. */
+    public Builder setDroppedAttributePrefixes(Collection<String> droppedAttributePrefixes) {
+      this.droppedAttributePrefixes = ImmutableList.copyOf(droppedAttributePrefixes);
+      return this;
+    }
+
+    /**
+     * Sets regular expressions whose matches in string attribute values are replaced by {@code
+     * "***"} before export.
+     */
+    public Builder setRedactedValuePatterns(Collection<String> redactedValuePatterns) {
+      this.redactedValuePatterns = ImmutableList.copyOf(redactedValuePatterns);
+      return this;
+    }
+
+    /** Sets whether string and numeric literals are replaced by {@code ?} in {@code sql.query}. */
+    public Builder setStripSqlLiterals(boolean stripSqlLiterals) {
+      this.stripSqlLiterals = stripSqlLiterals;
+      return this;
+    }
+
+    /** Sets the aggregator of repeated sibling leaf spans. */
+    public Builder setSpanAggregator(@Nullable SpanAggregator spanAggregator) {
+      this.spanAggregator = spanAggregator;
+      return this;
+    }
+
+    /**
+     * Sets the sources describing the environment in top level segments. They are run once, when
+     * the exporter is registered. Defaults to {@link ResourceSources#defaults()}.
+     */
+    public Builder setResourceSources(List<ResourceSource> resourceSources) {
+      this.resourceSources = ImmutableList.copyOf(resourceSources);
+      return this;
+    }
+
+    /**
+     * Sets whether spans with an {@code http.route} attribute are named after the route instead of
+     * the span name, so that URL-style span names collapse to a bounded set of segment names.
+     */
+    public Builder setUseHttpRouteAsName(boolean useHttpRouteAsName) {
+      this.useHttpRouteAsName = useHttpRouteAsName;
+      return this;
+    }
+
+    /** Sets the maximum number of distinct span names whose sanitized name is cached. */
+    public Builder setMaxSegmentNameCacheSize(int maxSegmentNameCacheSize) {
+      this.maxSegmentNameCacheSize = maxSegmentNameCacheSize;
+      return this;
+    }
+
+    /**
+     * Sets whether requests are stopped while the X-Ray endpoint keeps failing, off by default.
+     * While the circuit breaker is open, queued documents are dropped without being sent.
+     */
+    public Builder setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+      this.circuitBreakerEnabled = circuitBreakerEnabled;
+      return this;
+    }
+
+    /** Sets the failure rate of the recent requests which opens the circuit breaker. */
+    public Builder setCircuitBreakerFailureRate(double circuitBreakerFailureRate) {
+      this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+      return this;
+    }
+
+    /** Sets the number of recent requests the failure rate is computed over. */
+    public Builder setCircuitBreakerWindowSize(int circuitBreakerWindowSize) {
+      this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+      return this;
+    }
+
+    /** Sets how long the circuit breaker stays open before trial requests are sent. */
+    public Builder setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) {
+      this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+      return this;
+    }
+
+    /** Sets the number of successful trial requests needed to close the circuit breaker. */
+    public Builder setCircuitBreakerHalfOpenTrials(int circuitBreakerHalfOpenTrials) {
+      this.circuitBreakerHalfOpenTrials = circuitBreakerHalfOpenTrials;
+      return this;
+    }
+
+    /**
+     * Builds a {@link XRayExporterConfiguration}.
+     *
+     * @throws IllegalArgumentException if a limit is out of range or a pattern is invalid.
+     */
+    public XRayExporterConfiguration build() {
+      checkArgument(maxQueueSize > 0, "maxQueueSize must be positive");
+      checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+      checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+      checkArgument(senderShards > 0, "senderShards must be positive");
+      checkArgument(transport != Transport.FILE || file != null, "file is required with FILE");
+      Set<String> names = new HashSet<String>();
+      for (ExportDestination destination : destinations) {
+        checkArgument(
+            names.add(destination.getName()),
+            "destination %s is given twice",
+            destination.getName());
+      }
+      for (Map.Entry<String, Integer> weight : fairQueueWeights.entrySet()) {
+        checkArgument(
+            weight.getValue() > 0, "fairQueueWeights of %s must be positive", weight.getKey());
+      }
+      checkArgument(maxLingerMillis >= 0, "maxLingerMillis must not be negative");
+      checkArgument(
+          samplingProbability >= 0.0 && samplingProbability <= 1.0,
+          "samplingProbability must be in range [0.0, 1.0]");
+      checkArgument(maxDocumentBytes > 0, "maxDocumentBytes must be positive");
+      checkArgument(
+          maxQueueBytes == 0 || maxQueueBytes >= DocumentArena.pageSize(maxDocumentBytes),
+          "maxQueueBytes must be 0 or at least %s",
+          DocumentArena.pageSize(maxDocumentBytes));
+      checkArgument(maxAttributeValueLength >= 0, "maxAttributeValueLength must not be negative");
+      checkArgument(clientInitTimeoutMillis > 0, "clientInitTimeoutMillis must be positive");
+      checkArgument(
+          maxSegmentNameCacheSize >= 0, "maxSegmentNameCacheSize must not be negative");
+      checkArgument(
+          circuitBreakerFailureRate > 0.0 && circuitBreakerFailureRate <= 1.0,
+          "circuitBreakerFailureRate must be in range (0.0, 1.0]");
+      checkArgument(circuitBreakerWindowSize > 0, "circuitBreakerWindowSize must be positive");
+      checkArgument(circuitBreakerOpenMillis >= 0, "circuitBreakerOpenMillis must not be negative");
+      checkArgument(
+          circuitBreakerHalfOpenTrials > 0, "circuitBreakerHalfOpenTrials must be positive");
+      for (String pattern : redactedValuePatterns) {
+        Pattern.compile(pattern); // fail early on invalid expressions
+      }
+      return new XRayExporterConfiguration(this);
+    }
+  }
+}
@@ -16,88 +16,349 @@
 
 package info.tdoc.exporter.trace.xray;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.amazonaws.services.xray.AWSXRay;
-import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
-import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.opencensus.common.Scope;
-import io.opencensus.trace.Sampler;
-import io.opencensus.trace.Status;
-import io.opencensus.trace.Tracer;
-import io.opencensus.trace.Tracing;
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.trace.AttributeValue;
 import io.opencensus.trace.export.SpanData;
 import io.opencensus.trace.export.SpanExporter;
-import io.opencensus.trace.samplers.Samplers;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 final class XRayExporterHandler extends SpanExporter.Handler {
-  private static final Tracer tracer = Tracing.getTracer();
-  private static final Sampler probabilitySampler = Samplers.probabilitySampler(0.0001);
   private static final Logger logger = Logger.getLogger(XRayExporterHandler.class.getName());
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
 
-  private final AWSXRay client;
+  private final String name;
   private final String serviceName;
-  private final Boolean useDaemon;
-  private final ObjectMapper mapper = new ObjectMapper();
+  private final SegmentOptions options;
+  @Nullable private final SpanAggregator aggregator;
+  private final long samplingUpperBound;
+  @Nullable private final RuleBasedSampler sampler;
+  private final int maxDocumentBytes;
+  private final List<XRayExporterConfiguration.FairQueueKey> fairQueueKeys;
+  private final ShardedSender sender;
+  // senders of the additional destinations by name, in configuration order.
+  private final ImmutableMap<String, ShardedSender> destinationSenders;
+  @Nullable private final LazyClient client;
+  private volatile SegmentEncoder encoder;
+  // the encoder with the detected resources while they are detected in the background.
+  @Nullable private volatile CompletableFuture<SegmentEncoder> detecting;
+
+  private final AtomicLong sampledOutSpans = new AtomicLong();
+  private final AtomicLong oversizedDocuments = new AtomicLong();
 
   XRayExporterHandler(AWSXRay client, String serviceName) {
-    this(client, serviceName, false);
+    this(
+        XRayExporterConfiguration.builder()
+            .setClient(client)
+            .setServiceName(serviceName)
+            .build(),
+        new ApiSegmentTransport(client));
+  }
+
+  /*
+   * The shards share the transport; it must be thread safe.
+   */
+  XRayExporterHandler(XRayExporterConfiguration config, SegmentTransport transport) {
+    this(config, Suppliers.ofInstance(transport));
+  }
+
+  XRayExporterHandler(XRayExporterConfiguration config, Supplier<SegmentTransport> transports) {
+    this(config, transports, XRayTraceExporter.destinationTransports(config));
+  }
+
+  XRayExporterHandler(
+      XRayExporterConfiguration config,
+      Supplier<SegmentTransport> transports,
+      Function<ExportDestination, SegmentTransport> destinationTransports) {
+    this(config, transports, destinationTransports, null);
   }
 
-  XRayExporterHandler(AWSXRay client, String serviceName, Boolean useDaemon) {
+  /*
+   * client is the lazily built client shared by the transports, if any, whose init failures are
+   * reported by the handler.
+   */
+  XRayExporterHandler(
+      XRayExporterConfiguration config,
+      Supplier<SegmentTransport> transports,
+      Function<ExportDestination, SegmentTransport> destinationTransports,
+      @Nullable LazyClient client) {
+    this.name = config.getHandlerName();
+    this.serviceName = config.getServiceName();
+    this.options = SegmentOptions.fromConfiguration(config);
+    this.aggregator = config.getSpanAggregator();
+    this.samplingUpperBound = samplingUpperBound(config.getSamplingProbability());
+    this.sampler = config.getSampler();
+    this.maxDocumentBytes = config.getMaxDocumentBytes();
+    this.fairQueueKeys = config.getFairQueueKeys();
     this.client = client;
-    this.serviceName = serviceName;
-    this.useDaemon = useDaemon;
+    ObjectMapper mapper = new ObjectMapper();
+    // sources may call metadata endpoints, e.g. ECS; keep them off the registering thread.
+    this.encoder = new SegmentEncoder(mapper, serviceName, new byte[0]);
+    if (!config.getResourceSources().isEmpty()) {
+      this.detecting = detectResources(mapper, serviceName, config.getResourceSources());
+    }
+    this.sender = ShardedSender.fromConfiguration(config, transports);
+    ImmutableMap.Builder<String, ShardedSender> destinations = ImmutableMap.builder();
+    for (ExportDestination destination : config.getDestinations()) {
+      destinations.put(
+          destination.getName(),
+          ShardedSender.fromDestination(
+              config, destination, destinationTransports.apply(destination)));
+    }
+    this.destinationSenders = destinations.build();
+  }
+
+  private static SegmentEncoder newEncoder(
+      ObjectMapper mapper, String serviceName, List<ResourceSource> sources) {
+    return new SegmentEncoder(
+        mapper,
+        serviceName,
+        ResourceDetector.encodeFragment(ResourceDetector.detect(sources), mapper));
+  }
+
+  private static CompletableFuture<SegmentEncoder> detectResources(
+      final ObjectMapper mapper, final String serviceName, final List<ResourceSource> sources) {
+    final CompletableFuture<SegmentEncoder> future = new CompletableFuture<SegmentEncoder>();
+    Thread t =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  future.complete(newEncoder(mapper, serviceName, sources));
+                } catch (Throwable e) {
+                  future.completeExceptionally(e);
+                }
+              }
+            },
+            "XRayExporter-resource-detection");
+    t.setDaemon(true);
+    t.start();
+    return future;
+  }
+
+  /*
+   * encoder returns the encoder with the detected resources once detection is done. It never
+   * waits: until then, segments are encoded without resources, so that the exporter thread is
+   * not held up by metadata endpoints.
+   */
+  private SegmentEncoder encoder() {
+    CompletableFuture<SegmentEncoder> pending = detecting;
+    if (pending == null || !pending.isDone()) {
+      return encoder;
+    }
+    try {
+      encoder = pending.get();
+      detecting = null;
+    } catch (ExecutionException e) {
+      logger.log(Level.WARNING, "Failed to detect resources", e.getCause());
+      detecting = null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return encoder;
   }
 
-  private TraceSegment generateSegment(String name, SpanData spanData) {
-    return new TraceSegment(name, spanData);
+  /*
+   * samplingUpperBound follows the ProbabilitySampler of OpenCensus so that every span of a trace
+   * gets the same decision.
+   */
+  private static long samplingUpperBound(double probability) {
+    if (probability == 0.0) {
+      return Long.MIN_VALUE;
+    } else if (probability == 1.0) {
+      return Long.MAX_VALUE;
+    }
+    return (long) (probability * Long.MAX_VALUE);
+  }
+
+  private boolean isSampled(SpanData spanData) {
+    if (samplingUpperBound != Long.MAX_VALUE
+        && Math.abs(spanData.getContext().getTraceId().getLowerLong()) >= samplingUpperBound) {
+      return false;
+    }
+    return sampler == null || sampler.shouldExport(spanData);
+  }
+
+  private Collection<SpanData> sample(Collection<SpanData> spanDataList) {
+    if (samplingUpperBound == Long.MAX_VALUE && sampler == null) {
+      return spanDataList;
+    }
+    List<SpanData> sampled = new ArrayList<SpanData>(spanDataList.size());
+    for (SpanData spanData : spanDataList) {
+      if (isSampled(spanData)) {
+        sampled.add(spanData);
+      } else {
+        sampledOutSpans.incrementAndGet();
+      }
+    }
+    return sampled;
   }
 
   @Override
   public void export(Collection<SpanData> spanDataList) {
-    Scope scope =
-        tracer.spanBuilder("SendXRaySpans").setSampler(probabilitySampler).startScopedSpan();
-    try {
-      List<String> encodedSpans = new ArrayList<String>(spanDataList.size());
-      for (SpanData spanData : spanDataList) {
-        TraceSegment tr = generateSegment(this.serviceName, spanData);
-        String s = mapper.writeValueAsString(tr);
-        if (useDaemon == true) {
-          s = "{\"format\": \"json\", \"version\": 1}\n" + s;
+    ExporterEvents.EncodeEvent event = new ExporterEvents.EncodeEvent();
+    event.begin();
+    int documents = 0;
+    long bytes = 0;
+    SegmentEncoder encoder = encoder();
+    Collection<SpanData> sampled = sample(spanDataList);
+    if (aggregator == null) {
+      for (SpanData spanData : sampled) {
+        TraceSegment tr = new TraceSegment(this.serviceName, spanData, options);
+        int length = offer(encoder, tr, queueKey(spanData));
+        if (length >= 0) {
+          documents++;
+          bytes += length;
         }
-        logger.log(Level.FINE, s);
-        encodedSpans.add(s);
       }
-      try {
-        PutTraceSegmentsRequest req =
-            new PutTraceSegmentsRequest().withTraceSegmentDocuments(encodedSpans);
-        PutTraceSegmentsResult res = client.putTraceSegments(req);
-        if (res.getUnprocessedTraceSegments().size() != 0) {
-          tracer.getCurrentSpan().setStatus(Status.DATA_LOSS);
-          logger.log(
-              Level.WARNING,
-              "UnprocessedTraceSegments exist: count={}",
-              res.getUnprocessedTraceSegments().size());
+    } else {
+      for (List<SpanData> members : aggregator.group(sampled)) {
+        TraceSegment tr = aggregator.toSegment(this.serviceName, options, members);
+        // the members of a group share the span name, so any of them gives the key.
+        int length = offer(encoder, tr, queueKey(members.get(0)));
+        if (length >= 0) {
+          documents++;
+          bytes += length;
         }
-      } catch (RuntimeException e) {
-        tracer
-            .getCurrentSpan()
-            .setStatus(
-                Status.UNKNOWN.withDescription(
-                    e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage()));
-        throw new RuntimeException(e);
       }
-    } catch (JsonProcessingException e) {
-      tracer.getCurrentSpan().setStatus(Status.UNKNOWN.withDescription(e.getMessage()));
-      throw new RuntimeException(e);
-    } finally {
-      scope.close();
     }
+    event.end();
+    if (event.shouldCommit()) {
+      event.handler = name;
+      event.spans = spanDataList.size();
+      event.documents = documents;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+
+  /*
+   * offer encodes tr and queues it under key on every destination. It returns the size of the
+   * document, or -1 if it was dropped.
+   */
+  private int offer(SegmentEncoder encoder, TraceSegment tr, String key) {
+    byte[] document;
+    try {
+      document = encoder.encode(tr);
+    } catch (IOException e) {
+      ExporterEvents.drop(name, 1, ExporterEvents.ENCODE_FAILED);
+      logger.log(Level.WARNING, "Failed to encode segment", e);
+      return -1;
+    }
+    if (document.length > maxDocumentBytes) {
+      oversizedDocuments.incrementAndGet();
+      ExporterEvents.drop(name, 1, ExporterEvents.OVERSIZED);
+      logger.log(Level.FINE, "Dropped oversized segment: size={0}", document.length);
+      return -1;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, new String(document, UTF_8));
+    }
+    int hash = ShardedSender.hash(tr.traceId);
+    sender.offer(hash, key, document);
+    // the document is never modified, so every destination queues the same bytes.
+    for (ShardedSender destination : destinationSenders.values()) {
+      destination.offer(hash, key, document);
+    }
+    return document.length;
+  }
+
+  /*
+   * queueKey returns the fair queuing key of a span: the values of the configured dimensions
+   * joined by '|'. It is computed from the span rather than from its segment, whose attributes
+   * may have been dropped or scrubbed.
+   */
+  private String queueKey(SpanData spanData) {
+    if (fairQueueKeys.isEmpty()) {
+      return "";
+    }
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < fairQueueKeys.size(); i++) {
+      if (i > 0) {
+        key.append('|');
+      }
+      switch (fairQueueKeys.get(i)) {
+        case SERVICE_NAME:
+          key.append(serviceName);
+          break;
+        case SPAN_NAME:
+          key.append(spanData.getName());
+          break;
+        case HTTP_ROUTE:
+        default:
+          AttributeValue route =
+              spanData.getAttributes().getAttributeMap().get(TraceSegment.HTTP_ROUTE);
+          Object value = route == null ? null : TraceSegment.attributeValueToObject(route);
+          if (value != null) {
+            key.append(value);
+          }
+          break;
+      }
+    }
+    return key.toString();
+  }
+
+  /*
+   * shutdown flushes the queued documents of all destinations within one timeout and releases the
+   * transports.
+   */
+  void shutdown() {
+    sender.close();
+    for (ShardedSender destination : destinationSenders.values()) {
+      destination.close();
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+    sender.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    for (ShardedSender destination : destinationSenders.values()) {
+      destination.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  ShardedSender getSender() {
+    return sender;
+  }
+
+  ImmutableMap<String, ShardedSender> getDestinationSenders() {
+    return destinationSenders;
+  }
+
+  /*
+   * getClientInitFailures returns how often building the lazily built client failed, 0 if it is
+   * not built lazily.
+   */
+  long getClientInitFailures() {
+    return client == null ? 0 : client.getInitFailures();
+  }
+
+  /*
+   * getClientInitTimeouts returns how many requests gave up waiting for the lazily built client.
+   */
+  long getClientInitTimeouts() {
+    return client == null ? 0 : client.getInitTimeouts();
+  }
+
+  long getSampledOutSpans() {
+    return sampledOutSpans.get();
+  }
+
+  long getOversizedDocuments() {
+    return oversizedDocuments.get();
   }
 }
@@ -21,9 +21,16 @@ import static com.google.common.base.Preconditions.checkState;
 import com.amazonaws.services.xray.AWSXRay;
 import com.amazonaws.services.xray.AWSXRayAsyncClientBuilder;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import io.opencensus.trace.Tracing;
 import io.opencensus.trace.export.SpanExporter;
 import io.opencensus.trace.export.SpanExporter.Handler;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -39,46 +46,172 @@ import javax.annotation.concurrent.GuardedBy;
  *   ... // Do work.
  * }
  * }</pre>
+ *
+ * <p>Several exporters, e.g. for different service names or regions, can be registered at the
+ * same time as long as their {@link XRayExporterConfiguration#getHandlerName() handler names}
+ * differ.
  */
 public final class XRayTraceExporter {
-  private static final String REGISTER_NAME = XRayTraceExporter.class.getName();
+  private static final String REGISTER_NAME = XRayExporterConfiguration.DEFAULT_HANDLER_NAME;
   private static final Object monitor = new Object();
   private static final Logger logger = Logger.getLogger(XRayTraceExporter.class.getName());
 
   @GuardedBy("monitor")
-  @Nullable
-  private static Handler handler = null;
+  private static final Map<String, XRayExporterHandler> handlers =
+      new HashMap<String, XRayExporterHandler>();
 
   private XRayTraceExporter() {}
 
   /**
-   * Creates and registers the XRay Trace exporter to the OpenCensus library. Only one XRay exporter
-   * can be registered at any point.
+   * Creates and registers the XRay Trace exporter to the OpenCensus library under the default
+   * handler name.
    *
    * @param serviceName the {@link Span#localServiceName() local service name} of the process.
    * @throws IllegalStateException if a XRay exporter is already registered.
    */
   public static void createAndRegister(String serviceName) {
-    AWSXRay client = AWSXRayAsyncClientBuilder.defaultClient();
-
-    createAndRegister(client, serviceName);
+    createAndRegister(XRayExporterConfiguration.builder().setServiceName(serviceName).build());
   }
 
   /**
-   * Creates and registers the XRay Trace exporter to the OpenCensus library. Only one XRay exporter
-   * can be registered at any point.
+   * Creates and registers the XRay Trace exporter to the OpenCensus library under the default
+   * handler name.
    *
    * @param serviceName the {@link Span#localServiceName() local service name} of the process.
    * @throws IllegalStateException if a XRay exporter is already registered.
    */
   public static void createAndRegister(AWSXRay client, String serviceName) {
+    createAndRegister(
+        XRayExporterConfiguration.builder().setClient(client).setServiceName(serviceName).build());
+  }
+
+  /**
+   * Creates and registers the XRay Trace exporter to the OpenCensus library.
+   *
+   * @param config the configuration of the exporter.
+   * @throws IllegalStateException if a XRay exporter is already registered under the same
+   *     handler name.
+   */
+  public static void createAndRegister(XRayExporterConfiguration config) {
     synchronized (monitor) {
-      checkState(handler == null, "XRay exporter is already registered.");
-      Handler newHandler = new XRayExporterHandler(client, serviceName);
-      handler = newHandler;
+      String name = config.getHandlerName();
+      checkState(!handlers.containsKey(name), "XRay exporter %s is already registered.", name);
+      LazyClient client = lazyClient(config);
+      XRayExporterHandler newHandler =
+          new XRayExporterHandler(
+              config, transportSupplier(config, client), destinationTransports(config), client);
+      handlers.put(name, newHandler);
+
+      register(Tracing.getExportComponent().getSpanExporter(), name, newHandler);
+    }
+  }
+
+  /*
+   * transportSupplier creates a transport, e.g. a connection, per sender shard.
+   */
+  static Supplier<SegmentTransport> transportSupplier(XRayExporterConfiguration config) {
+    return transportSupplier(config, lazyClient(config));
+  }
+
+  /*
+   * transportSupplier creates a transport per sender shard. With a lazily built client, the
+   * shards share it, so that one client is built by one background thread.
+   */
+  static Supplier<SegmentTransport> transportSupplier(
+      final XRayExporterConfiguration config, @Nullable final LazyClient client) {
+    return new Supplier<SegmentTransport>() {
+      @Override
+      public SegmentTransport get() {
+        return client != null ? new ApiSegmentTransport(client) : createTransport(config);
+      }
+    };
+  }
+
+  /*
+   * lazyClient starts building the client of the API transport if the configuration asks for it
+   * to be built lazily, and returns null otherwise.
+   */
+  @Nullable
+  static LazyClient lazyClient(XRayExporterConfiguration config) {
+    if (config.getTransport() != XRayExporterConfiguration.Transport.API
+        || config.getClient() != null
+        || !config.getLazyClientInit()) {
+      return null;
+    }
+    return newLazyClient(config.getRegion(), config);
+  }
+
+  /*
+   * destinationTransports creates the transport of each additional destination.
+   */
+  static Function<ExportDestination, SegmentTransport> destinationTransports(
+      final XRayExporterConfiguration config) {
+    return new Function<ExportDestination, SegmentTransport>() {
+      @Override
+      public SegmentTransport apply(ExportDestination destination) {
+        return createTransport(
+            destination.getTransport(),
+            destination.getClient(),
+            destination.getRegion(),
+            destination.getDaemonAddress(),
+            destination.getFile(),
+            config);
+      }
+    };
+  }
+
+  private static SegmentTransport createTransport(XRayExporterConfiguration config) {
+    return createTransport(
+        config.getTransport(),
+        config.getClient(),
+        config.getRegion(),
+        config.getDaemonAddress(),
+        config.getFile(),
+        config);
+  }
+
+  private static SegmentTransport createTransport(
+      XRayExporterConfiguration.Transport transport,
+      @Nullable AWSXRay client,
+      @Nullable String region,
+      String daemonAddress,
+      @Nullable Path file,
+      XRayExporterConfiguration config) {
+    switch (transport) {
+      case DAEMON:
+        return new DaemonSegmentTransport(daemonAddress);
+      case FILE:
+        return new FileSegmentTransport(file);
+      case API:
+      default:
+        if (client != null) {
+          return new ApiSegmentTransport(client);
+        }
+        if (config.getLazyClientInit()) {
+          return new ApiSegmentTransport(newLazyClient(region, config));
+        }
+        return new ApiSegmentTransport(buildClient(region));
+    }
+  }
+
+  private static LazyClient newLazyClient(
+      @Nullable final String region, XRayExporterConfiguration config) {
+    return new LazyClient(
+        new Callable<AWSXRay>() {
+          @Override
+          public AWSXRay call() {
+            return buildClient(region);
+          }
+        },
+        config.getClientInitTimeoutMillis(),
+        TimeUnit.MILLISECONDS);
+  }
 
-      register(Tracing.getExportComponent().getSpanExporter(), newHandler);
+  private static AWSXRay buildClient(@Nullable String region) {
+    if (region != null) {
+      return AWSXRayAsyncClientBuilder.standard().withRegion(region).build();
     }
+    return AWSXRayAsyncClientBuilder.defaultClient();
   }
 
   /**
@@ -88,20 +221,63 @@ public final class XRayTraceExporter {
    */
   @VisibleForTesting
   static void register(SpanExporter spanExporter, Handler handler) {
-    spanExporter.registerHandler(REGISTER_NAME, handler);
+    register(spanExporter, REGISTER_NAME, handler);
+  }
+
+  @VisibleForTesting
+  static void register(SpanExporter spanExporter, String name, Handler handler) {
+    spanExporter.registerHandler(name, handler);
   }
 
   /**
-   * Unregisters the XRay Trace exporter from the OpenCensus library.
+   * Unregisters the XRay Trace exporter registered under the default handler name from the
+   * OpenCensus library.
    *
    * @throws IllegalStateException if a XRay exporter is not registered.
    */
   public static void unregister() {
+    unregister(REGISTER_NAME);
+  }
+
+  /**
+   * Unregisters the XRay Trace exporter from the OpenCensus library and flushes its queued
+   * segments.
+   *
+   * @param name the handler name the exporter was registered under.
+   * @throws IllegalStateException if a XRay exporter is not registered.
+   */
+  public static void unregister(String name) {
+    XRayExporterHandler handler;
     synchronized (monitor) {
-      checkState(handler != null, "XRay exporter is not registered.");
-      unregister(Tracing.getExportComponent().getSpanExporter());
-      handler = null;
+      handler = handlers.remove(name);
+      checkState(handler != null, "XRay exporter %s is not registered.", name);
+      unregister(Tracing.getExportComponent().getSpanExporter(), name);
     }
+    handler.shutdown();
+  }
+
+  /**
+   * Returns the counters of the XRay Trace exporter registered under the default handler name.
+   *
+   * @throws IllegalStateException if a XRay exporter is not registered.
+   */
+  public static ExporterStats getStats() {
+    return getStats(REGISTER_NAME);
+  }
+
+  /**
+   * Returns the counters of a registered XRay Trace exporter.
+   *
+   * @param name the handler name the exporter was registered under.
+   * @throws IllegalStateException if a XRay exporter is not registered.
+   */
+  public static ExporterStats getStats(String name) {
+    XRayExporterHandler handler;
+    synchronized (monitor) {
+      handler = handlers.get(name);
+    }
+    checkState(handler != null, "XRay exporter %s is not registered.", name);
+    return new ExporterStats(handler);
   }
 
   /**
@@ -112,6 +288,11 @@ public final class XRayTraceExporter {
    */
   @VisibleForTesting
   static void unregister(SpanExporter spanExporter) {
-    spanExporter.unregisterHandler(REGISTER_NAME);
+    unregister(spanExporter, REGISTER_NAME);
+  }
+
+  @VisibleForTesting
+  static void unregister(SpanExporter spanExporter, String name) {
+    spanExporter.unregisterHandler(name);
   }
 }
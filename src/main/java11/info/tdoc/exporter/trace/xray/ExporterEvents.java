@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * ExporterEvents defines the Java Flight Recorder events of the exporter.
+ *
+ * This is the Java 11 variant of the multi-release jar. The events are enabled by default and do
+ * not record stack traces, so that they can be left on in production recordings; encode and send
+ * events are emitted once per batch.
+ */
+final class ExporterEvents {
+  static final String QUEUE_FULL = "queue_full";
+  static final String ARENA_FULL = "arena_full";
+  static final String OVERSIZED = "oversized";
+  static final String ENCODE_FAILED = "encode_failed";
+  static final String CIRCUIT_OPEN = "circuit_open";
+  static final String EXECUTOR_REJECTED = "executor_rejected";
+  static final String SHUTDOWN = "shutdown";
+
+  private ExporterEvents() {}
+
+  static void drop(String handler, int documents, String reason) {
+    DropEvent event = new DropEvent();
+    if (event.shouldCommit()) {
+      event.handler = handler;
+      event.documents = documents;
+      event.reason = reason;
+      event.commit();
+    }
+  }
+
+  @Name("info.tdoc.exporter.trace.xray.Encode")
+  @Label("X-Ray Encode")
+  @Description("Converting and encoding one exported batch of spans")
+  @Category({"OpenCensus", "X-Ray Exporter"})
+  @StackTrace(false)
+  static final class EncodeEvent extends jdk.jfr.Event {
+    @Label("Handler")
+    String handler;
+
+    @Label("Spans")
+    int spans;
+
+    @Label("Documents")
+    int documents;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("info.tdoc.exporter.trace.xray.Send")
+  @Label("X-Ray Send")
+  @Description("One request to the X-Ray API or daemon")
+  @Category({"OpenCensus", "X-Ray Exporter"})
+  @StackTrace(false)
+  static final class SendEvent extends jdk.jfr.Event {
+    @Label("Handler")
+    String handler;
+
+    @Label("Documents")
+    int documents;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Unprocessed")
+    int unprocessed;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  @Name("info.tdoc.exporter.trace.xray.Retry")
+  @Label("X-Ray Retry")
+  @Description("A failed request which is tried again after a backoff")
+  @Category({"OpenCensus", "X-Ray Exporter"})
+  @StackTrace(false)
+  static final class RetryEvent extends jdk.jfr.Event {
+    @Label("Handler")
+    String handler;
+
+    @Label("Documents")
+    int documents;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Backoff")
+    @Timespan(Timespan.MILLISECONDS)
+    long backoffMillis;
+  }
+
+  @Name("info.tdoc.exporter.trace.xray.Drop")
+  @Label("X-Ray Drop")
+  @Description("Documents dropped without being sent")
+  @Category({"OpenCensus", "X-Ray Exporter"})
+  @StackTrace(false)
+  static final class DropEvent extends jdk.jfr.Event {
+    @Label("Handler")
+    String handler;
+
+    @Label("Documents")
+    int documents;
+
+    @Label("Reason")
+    String reason;
+  }
+}
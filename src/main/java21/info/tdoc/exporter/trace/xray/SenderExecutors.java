@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * SenderExecutors creates the default executor running requests of SegmentSender.
+ *
+ * This is the Java 21 variant of the multi-release jar. A blocking PutTraceSegments call parks a
+ * virtual thread instead of holding a platform thread; the number of requests in flight is still
+ * bounded by maxConcurrency in SegmentSender.
+ */
+final class SenderExecutors {
+  private SenderExecutors() {}
+
+  static ExecutorService newSenderExecutor(String name, int maxConcurrency) {
+    return Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name(name + "-sender-", 0).factory());
+  }
+
+  static boolean usesVirtualThreads() {
+    return true;
+  }
+}
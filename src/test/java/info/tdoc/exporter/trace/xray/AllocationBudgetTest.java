@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/*
+ * AllocationBudgetTest measures the bytes allocated by XRayExporterHandler.export per span, i.e.
+ * converting to a TraceSegment, encoding and queueing, and fails when a shape exceeds its budget.
+ * The queue holds every document, so no document is dropped; the dispatcher sends on its own
+ * thread, whose allocation is not counted.
+ *
+ * The budgets are about 1.4 times the allocation measured on JDK 17, so that a regression is
+ * caught but small differences between JDK updates are not. The build runs the tests on JDK 17,
+ * the toolchain of build.gradle. Strings and library internals take more space on older JDKs, so
+ * the test is skipped below JDK 17, e.g. in an IDE, rather than calibrated for each.
+ * Lower the budgets when the path gets cheaper. A budget can be overridden with
+ * -Dallocation.budget.<shape>=<bytes>.
+ */
+public class AllocationBudgetTest {
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int MEASURED_ITERATIONS = 5000;
+  private static final int CALIBRATED_JDK = 17;
+
+  enum Shape {
+    PLAIN(2900),
+    HTTP(3900),
+    SQL(4300),
+    ERROR(7900),
+    ATTRIBUTES_50(9200);
+
+    final long budget;
+
+    Shape(long budget) {
+      this.budget = Long.getLong("allocation.budget." + name().toLowerCase(), budget);
+    }
+  }
+
+  @Test
+  public void plainSpan() {
+    assertWithinBudget(Shape.PLAIN, span("plain", Collections.<String, AttributeValue>emptyMap()));
+  }
+
+  @Test
+  public void httpSpan() {
+    Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+    attributes.put(TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("GET"));
+    attributes.put(TraceSegment.HTTP_URL, AttributeValue.stringAttributeValue("/users/42"));
+    attributes.put(TraceSegment.HTTP_ROUTE, AttributeValue.stringAttributeValue("/users/{id}"));
+    attributes.put(TraceSegment.HTTP_HOST, AttributeValue.stringAttributeValue("example.com"));
+    attributes.put(TraceSegment.HTTP_USER_AGENT, AttributeValue.stringAttributeValue("curl/7.64"));
+    attributes.put(TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(200));
+    assertWithinBudget(Shape.HTTP, span("GET /users/{id}", attributes));
+  }
+
+  @Test
+  public void sqlSpan() {
+    assertWithinBudget(
+        Shape.SQL,
+        span(
+            "query",
+            Collections.singletonMap(
+                TraceSegment.ATTRIB_SQL_EXEC,
+                AttributeValue.stringAttributeValue("SELECT id, name FROM users WHERE id = ?"))));
+  }
+
+  @Test
+  public void errorSpanWithCause() {
+    Exception cause = new SocketException("connection reset by peer");
+    Exception error = new IllegalStateException("query failed", cause);
+    // a fixed stack, so that the size of the trace does not depend on the test runner.
+    StackTraceElement[] frames = new StackTraceElement[20];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = new StackTraceElement("com.example.Service" + i, "handle", null, 40 + i);
+    }
+    cause.setStackTrace(frames);
+    error.setStackTrace(frames);
+    StringWriter stackTrace = new StringWriter();
+    error.printStackTrace(new PrintWriter(stackTrace));
+    Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+    attributes.put(
+        "exception.type", AttributeValue.stringAttributeValue(error.getClass().getName()));
+    attributes.put("exception.message", AttributeValue.stringAttributeValue(error.getMessage()));
+    attributes.put(
+        "exception.cause", AttributeValue.stringAttributeValue(cause.toString()));
+    attributes.put(
+        "exception.stacktrace", AttributeValue.stringAttributeValue(stackTrace.toString()));
+    SpanData sd =
+        span(
+            "failing",
+            attributes,
+            Status.INTERNAL.withDescription(error + ", caused by " + cause));
+    assertWithinBudget(Shape.ERROR, sd);
+  }
+
+  @Test
+  public void fiftyAttributes() {
+    Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+    for (int i = 0; i < 50; i++) {
+      attributes.put(
+          "attribute." + i,
+          i % 3 == 0
+              ? AttributeValue.longAttributeValue(i)
+              : AttributeValue.stringAttributeValue("value-" + i));
+    }
+    assertWithinBudget(Shape.ATTRIBUTES_50, span("attributes", attributes));
+  }
+
+  private static void assertWithinBudget(Shape shape, SpanData sd) {
+    assumeTrue(
+        javaVersion() >= CALIBRATED_JDK, "budgets are calibrated on JDK " + CALIBRATED_JDK);
+    com.sun.management.ThreadMXBean threads = threadMXBean();
+    assumeTrue(threads != null, "thread allocation counters are not supported");
+    XRayExporterHandler handler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("allocation")
+                .setResourceSources(ImmutableList.<ResourceSource>of())
+                .setCircuitBreakerEnabled(false)
+                .setMaxQueueSize(WARMUP_ITERATIONS + MEASURED_ITERATIONS)
+                .build(),
+            new DiscardingTransport());
+    try {
+      Collection<SpanData> batch = Collections.singletonList(sd);
+      for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+        handler.export(batch);
+      }
+      long tid = Thread.currentThread().getId();
+      long before = threads.getThreadAllocatedBytes(tid);
+      for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+        handler.export(batch);
+      }
+      long perSpan = (threads.getThreadAllocatedBytes(tid) - before) / MEASURED_ITERATIONS;
+      assertTrue(
+          perSpan <= shape.budget,
+          shape + " allocated " + perSpan + " bytes per span, budget is " + shape.budget);
+    } finally {
+      handler.shutdown();
+    }
+  }
+
+  /*
+   * javaVersion returns the feature version of the running JDK, e.g. 8 for "1.8".
+   */
+  private static int javaVersion() {
+    String version = System.getProperty("java.specification.version");
+    if (version.startsWith("1.")) {
+      version = version.substring(2);
+    }
+    return Integer.parseInt(version);
+  }
+
+  private static com.sun.management.ThreadMXBean threadMXBean() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+    if (!sunThreads.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    sunThreads.setThreadAllocatedMemoryEnabled(true);
+    return sunThreads;
+  }
+
+  private static SpanData span(String name, Map<String, AttributeValue> attributes) {
+    return span(name, attributes, Status.OK);
+  }
+
+  private static SpanData span(
+      String name, Map<String, AttributeValue> attributes, Status status) {
+    long start = TimeUnit.SECONDS.toMillis(1519629870);
+    return SpanData.create(
+        SpanContext.create(
+            TraceId.fromLowerBase16("5b8efff798038103d269b633813fc60c"),
+            SpanId.fromLowerBase16("eee19b7ec3c1b174"),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        SpanId.fromLowerBase16("eee19b7ec3c1b173"),
+        false,
+        name,
+        Kind.SERVER,
+        Timestamp.fromMillis(start),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.create(
+            Collections.<SpanData.TimedEvent<io.opencensus.trace.Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(
+            Collections.<SpanData.TimedEvent<io.opencensus.trace.MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<io.opencensus.trace.Link>emptyList(), 0),
+        0,
+        status,
+        Timestamp.fromMillis(start + 25));
+  }
+
+  private static final class DiscardingTransport implements SegmentTransport {
+    @Override
+    public int send(List<ByteBuffer> documents) {
+      return 0;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+public class AttributeProcessorTest {
+  private final AttributeProcessor processor =
+      new AttributeProcessor(
+          ImmutableList.of("user.email"),
+          ImmutableList.of("internal.", "debug"),
+          ImmutableList.of("\\b\\d{4}-\\d{4}-\\d{4}-\\d{4}\\b"),
+          true);
+
+  @Test
+  public void dropExactKeysAndPrefixes() {
+    assertTrue(processor.isDropped("user.email"));
+    assertTrue(processor.isDropped("internal.cache.key"));
+    assertTrue(processor.isDropped("debug"));
+    assertTrue(processor.isDropped("debug.flag"));
+    assertFalse(processor.isDropped("user.id"));
+    assertFalse(processor.isDropped("internal"));
+    assertFalse(AttributeProcessor.NONE.isDropped("user.email"));
+  }
+
+  @Test
+  public void scrubValues() {
+    assertEquals("card ***", processor.scrub("card 1234-5678-9012-3456"));
+    assertEquals("nothing to hide", processor.scrub("nothing to hide"));
+  }
+
+  @Test
+  public void stripSqlLiterals() {
+    assertEquals(
+        "SELECT * FROM t1 WHERE name = ? AND age > ? AND note = ?",
+        processor.scrubSql("SELECT * FROM t1 WHERE name = 'O''Brien' AND age > 42 AND note = 'x"));
+    assertEquals("SELECT col2 FROM t3", AttributeProcessor.stripSqlLiterals("SELECT col2 FROM t3"));
+    assertEquals("LIMIT ?", AttributeProcessor.stripSqlLiterals("LIMIT 1.5"));
+  }
+
+  @Test
+  public void applyWhileConverting() {
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder()
+            .setDroppedAttributeKeys(ImmutableList.of("user.email"))
+            .setStripSqlLiterals(true)
+            .build();
+    SegmentOptions options = SegmentOptions.fromConfiguration(config);
+    assertTrue(options.isDropped("user.email"));
+    assertEquals("SELECT ?", options.scrubSql("SELECT 'secret'"));
+  }
+}
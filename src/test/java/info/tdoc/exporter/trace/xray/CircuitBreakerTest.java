@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final CircuitBreaker breaker =
+      new CircuitBreaker(0.5, 4, 10, TimeUnit.SECONDS, 2, ticker);
+
+  @Test
+  public void openAfterFailureRate() {
+    breaker.onSuccess();
+    breaker.onFailure();
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void closeAfterSuccessfulTrials() {
+    open();
+    ticker.advance(10, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.onSuccess();
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void reopenAfterFailedTrial() {
+    open();
+    ticker.advance(10, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    assertEquals(2L, breaker.getTimesOpened());
+  }
+
+  @Test
+  public void ignoreOutcomesWhileOpen() {
+    open();
+    ticker.advance(5, TimeUnit.SECONDS);
+    // requests in flight when the breaker opened complete later.
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onSuccess();
+    assertEquals(1L, breaker.getTimesOpened());
+    ticker.advance(5, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  private void open() {
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure();
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class DocumentArenaTest {
+  @Test
+  public void storeDocumentsOffHeap() {
+    DocumentArena arena = new DocumentArena(1024 * 1024, 64 * 1024);
+    byte[] document = "{\"name\":\"test\"}".getBytes(UTF_8);
+    ByteBuffer chunk = arena.allocate(document);
+
+    assertTrue(chunk.isDirect());
+    assertFalse(chunk.hasArray());
+    assertEquals(document.length, chunk.remaining());
+    assertEquals(DocumentArena.MIN_CHUNK_SIZE, chunk.capacity());
+    assertEquals("{\"name\":\"test\"}", UTF_8.decode(chunk.duplicate()).toString());
+    assertEquals(document.length, arena.getUsedBytes());
+    assertEquals(64 * 1024, arena.getReservedBytes());
+
+    arena.release(chunk);
+    assertEquals(0, arena.getUsedBytes());
+    assertEquals(0, arena.getChunkBytes());
+    assertSame(chunk, arena.allocate(document));
+  }
+
+  @Test
+  public void chooseSmallestChunk() {
+    DocumentArena arena = new DocumentArena(1024 * 1024, 64 * 1024);
+    assertEquals(256, arena.allocate(new byte[1]).capacity());
+    assertEquals(512, arena.allocate(new byte[257]).capacity());
+    assertEquals(1024, arena.allocate(new byte[1024]).capacity());
+    assertEquals(64 * 1024, arena.allocate(new byte[40000]).capacity());
+    // one page per size class.
+    assertEquals(4 * 64 * 1024, arena.getReservedBytes());
+  }
+
+  @Test
+  public void capReservedBytes() {
+    DocumentArena arena = new DocumentArena(2 * 64 * 1024, 64 * 1024);
+    List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    ByteBuffer chunk;
+    while ((chunk = arena.allocate(new byte[30000])) != null) {
+      chunks.add(chunk);
+    }
+    // two pages of two 32KB chunks.
+    assertEquals(4, chunks.size());
+    assertEquals(2 * 64 * 1024, arena.getReservedBytes());
+    assertEquals(1, arena.getFailedAllocations());
+    // pages keep their size class.
+    assertNull(arena.allocate(new byte[10]));
+
+    arena.release(chunks.get(0));
+    assertEquals(32 * 1024, arena.allocate(new byte[20000]).capacity());
+  }
+
+  @Test
+  public void rejectLargeDocuments() {
+    DocumentArena arena = new DocumentArena(1024 * 1024, 1000);
+    assertEquals(DocumentArena.MIN_PAGE_SIZE, arena.getPageSize());
+    assertNull(arena.allocate(new byte[DocumentArena.MIN_PAGE_SIZE + 1]));
+    assertThrows(IllegalArgumentException.class, () -> new DocumentArena(1024, 1000));
+  }
+}
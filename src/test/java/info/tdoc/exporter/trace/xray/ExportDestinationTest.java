@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Function;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class ExportDestinationTest {
+  @Test
+  public void fanOutEncodedDocuments() {
+    CollectingTransport primary = new CollectingTransport();
+    final Map<String, CollectingTransport> destinations = new HashMap<>();
+    XRayExporterHandler handler =
+        new XRayExporterHandler(
+            config(
+                ExportDestination.builder("archive").build(),
+                ExportDestination.builder("mirror").setMaxBatchSize(1).build()),
+            Suppliers.<SegmentTransport>ofInstance(primary),
+            new Function<ExportDestination, SegmentTransport>() {
+              @Override
+              public SegmentTransport apply(ExportDestination destination) {
+                CollectingTransport transport = new CollectingTransport();
+                destinations.put(destination.getName(), transport);
+                return transport;
+              }
+            });
+    handler.export(ImmutableList.of(span(1), span(2), span(3)));
+    handler.shutdown();
+
+    assertEquals(3, primary.documents.size());
+    assertEquals(primary.sorted(), destinations.get("archive").sorted());
+    assertEquals(primary.sorted(), destinations.get("mirror").sorted());
+    assertEquals(
+        ImmutableList.of("archive", "mirror"),
+        ImmutableList.copyOf(handler.getDestinationSenders().keySet()));
+    assertEquals(3L, handler.getDestinationSenders().get("mirror").getSentDocuments());
+  }
+
+  @Test
+  public void slowDestinationDoesNotBlockOthers() throws InterruptedException {
+    CollectingTransport primary = new CollectingTransport();
+    final CollectingTransport fast = new CollectingTransport();
+    final CountDownLatch release = new CountDownLatch(1);
+    final SegmentTransport slow =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return 0;
+          }
+
+          @Override
+          public void close() {}
+        };
+    XRayExporterHandler handler =
+        new XRayExporterHandler(
+            config(
+                ExportDestination.builder("slow").setMaxBatchSize(1).setMaxQueueSize(2).build(),
+                ExportDestination.builder("fast").build()),
+            Suppliers.<SegmentTransport>ofInstance(primary),
+            new Function<ExportDestination, SegmentTransport>() {
+              @Override
+              public SegmentTransport apply(ExportDestination destination) {
+                return destination.getName().equals("slow") ? slow : fast;
+              }
+            });
+    for (int i = 0; i < 10; i++) {
+      handler.export(ImmutableList.of(span(i)));
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while ((primary.documents.size() < 10 || fast.documents.size() < 10)
+        && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(10, primary.documents.size());
+    assertEquals(10, fast.documents.size());
+    assertTrue(handler.getDestinationSenders().get("slow").getDroppedDocuments() > 0);
+    release.countDown();
+    handler.shutdown();
+  }
+
+  @Test
+  public void retryFailedRequests() {
+    final AtomicInteger attempts = new AtomicInteger();
+    SegmentTransport flaky =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            if (attempts.incrementAndGet() < 3) {
+              throw new RuntimeException("unavailable");
+            }
+            return 0;
+          }
+
+          @Override
+          public void close() {}
+        };
+    RetryingSegmentTransport retrying = new RetryingSegmentTransport("test", flaky, 2, 1);
+    assertEquals(0, retrying.send(documents("{}")));
+    assertEquals(3, attempts.get());
+    assertEquals(2L, retrying.getRetries());
+
+    attempts.set(-10);
+    RuntimeException e =
+        assertThrows(RuntimeException.class, () -> retrying.send(documents("{}")));
+    assertEquals("unavailable", e.getMessage());
+    assertEquals(-7, attempts.get());
+  }
+
+  @Test
+  public void reportDestinationStats() {
+    final AtomicInteger failures = new AtomicInteger(2);
+    final CollectingTransport collected = new CollectingTransport();
+    final SegmentTransport flaky =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            if (failures.getAndDecrement() > 0) {
+              throw new RuntimeException("unavailable");
+            }
+            return 0;
+          }
+
+          @Override
+          public void close() {}
+        };
+    XRayExporterHandler handler =
+        new XRayExporterHandler(
+            config(
+                ExportDestination.builder("flaky").setRetryBackoffMillis(1).build(),
+                ExportDestination.builder("limited").setRateLimit(100).build()),
+            Suppliers.<SegmentTransport>ofInstance(new CollectingTransport()),
+            new Function<ExportDestination, SegmentTransport>() {
+              @Override
+              public SegmentTransport apply(ExportDestination destination) {
+                return destination.getName().equals("flaky") ? flaky : collected;
+              }
+            });
+    // a second's worth of documents is sent at once, the rest waits.
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 150; i++) {
+      spans.add(span(i));
+    }
+    handler.export(spans);
+    handler.shutdown();
+
+    Map<String, ExporterStats.DestinationStats> stats =
+        new ExporterStats(handler).getDestinationStats();
+    assertEquals(ImmutableList.of("flaky", "limited"), ImmutableList.copyOf(stats.keySet()));
+    assertEquals(2L, stats.get("flaky").getRetries());
+    assertEquals(150L, stats.get("flaky").getSentDocuments());
+    assertEquals(0L, stats.get("flaky").getFailedDocuments());
+    assertEquals(0L, stats.get("flaky").getRateLimitedRequests());
+    assertTrue(stats.get("limited").getRateLimitedRequests() > 0);
+    assertEquals(0L, stats.get("limited").getRetries());
+    assertEquals(150, collected.documents.size());
+    assertEquals(0L, stats.get("limited").getQueuedDocuments());
+  }
+
+  @Test
+  public void limitRate() {
+    RateLimitedSegmentTransport limited =
+        new RateLimitedSegmentTransport(new CollectingTransport(), 10);
+    // a second's worth is sent at once, the rest waits.
+    assertTrue(limited.reserve(10) <= 0);
+    long wait = limited.reserve(5);
+    assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400), "wait " + wait);
+    assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500), "wait " + wait);
+  }
+
+  @Test
+  public void appendToFile() throws Exception {
+    Path file = Files.createTempFile("segments", ".log");
+    try {
+      FileSegmentTransport transport = new FileSegmentTransport(file);
+      ByteBuffer shared = ByteBuffer.wrap("{\"a\":1}".getBytes(UTF_8));
+      transport.send(ImmutableList.of(shared, ByteBuffer.wrap("{\"b\":2}".getBytes(UTF_8))));
+      transport.send(documents("{\"c\":3}"));
+      transport.close();
+
+      assertEquals(0, shared.position());
+      assertEquals(
+          ImmutableList.of("{\"a\":1}", "{\"b\":2}", "{\"c\":3}"),
+          Files.readAllLines(file, UTF_8));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void rejectInvalidDestinations() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            ExportDestination.builder("file")
+                .setTransport(XRayExporterConfiguration.Transport.FILE)
+                .build());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> ExportDestination.builder("retry").setMaxRetries(-1).build());
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            config(ExportDestination.builder("a").build(), ExportDestination.builder("a").build()));
+    ExportDestination destination = ExportDestination.builder("a").build();
+    assertSame(destination, config(destination).getDestinations().get(0));
+  }
+
+  private static XRayExporterConfiguration config(ExportDestination... destinations) {
+    return XRayExporterConfiguration.builder()
+        .setServiceName("fanout")
+        .setResourceSources(ImmutableList.<ResourceSource>of())
+        .setCircuitBreakerEnabled(false)
+        .setDestinations(ImmutableList.copyOf(destinations))
+        .build();
+  }
+
+  private static List<ByteBuffer> documents(String document) {
+    return Collections.singletonList(ByteBuffer.wrap(document.getBytes(UTF_8)));
+  }
+
+  static SpanData span(int n) {
+    long start = TimeUnit.SECONDS.toMillis(1519629870) + n;
+    return SpanData.create(
+        SpanContext.create(
+            TraceId.fromLowerBase16("5b8efff798038103d269b633813fc60c"),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 1, (byte) n}),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        null,
+        null,
+        "span-" + n,
+        Kind.SERVER,
+        Timestamp.fromMillis(start),
+        SpanData.Attributes.create(Collections.<String, AttributeValue>emptyMap(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<Link>emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(start + 5));
+  }
+
+  static final class CollectingTransport implements SegmentTransport {
+    final List<String> documents = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public int send(List<ByteBuffer> batch) {
+      for (ByteBuffer document : batch) {
+        documents.add(UTF_8.decode(document.duplicate()).toString());
+      }
+      return 0;
+    }
+
+    @Override
+    public void close() {}
+
+    List<String> sorted() {
+      List<String> ret = new ArrayList<String>(documents);
+      Collections.sort(ret);
+      return ret;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+/*
+ * ExporterEventsTest checks the Flight Recorder events of the Java 11 variant of ExporterEvents,
+ * which the build puts ahead of the Java 8 shell on the test classpath.
+ */
+public class ExporterEventsTest {
+  private static final String PREFIX = "info.tdoc.exporter.trace.xray.";
+
+  @Test
+  public void recordEncodeSendAndDropEvents() throws Exception {
+    Path file = Files.createTempFile("exporter", ".jfr");
+    file.toFile().deleteOnExit();
+    try (Recording recording = new Recording()) {
+      for (String event : new String[] {"Encode", "Send", "Drop"}) {
+        recording.enable(PREFIX + event);
+      }
+      recording.start();
+      exportAndOverflow();
+      recording.stop();
+      recording.dump(file);
+    }
+
+    List<RecordedEvent> encodes = new ArrayList<RecordedEvent>();
+    List<RecordedEvent> sends = new ArrayList<RecordedEvent>();
+    Set<String> reasons = new HashSet<String>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+      String name = event.getEventType().getName();
+      if (name.equals(PREFIX + "Encode") && event.getString("handler").equals("events")) {
+        encodes.add(event);
+      } else if (name.equals(PREFIX + "Send") && event.getString("handler").equals("events")) {
+        sends.add(event);
+      } else if (name.equals(PREFIX + "Drop")) {
+        reasons.add(event.getString("handler") + ":" + event.getString("reason"));
+      }
+    }
+    assertEquals(2, encodes.size());
+    assertEquals(2, encodes.get(0).getInt("spans"));
+    assertEquals(2, encodes.get(0).getInt("documents"));
+    assertTrue(encodes.get(0).getLong("bytes") > 0);
+    assertTrue(!sends.isEmpty());
+    int sent = 0;
+    for (RecordedEvent send : sends) {
+      sent += send.getInt("documents");
+      assertTrue(!send.getBoolean("failed"));
+    }
+    assertEquals(4, sent);
+    assertTrue(reasons.contains("tiny:" + ExporterEvents.OVERSIZED), reasons.toString());
+    assertTrue(reasons.contains("overflow:" + ExporterEvents.QUEUE_FULL), reasons.toString());
+  }
+
+  private static void exportAndOverflow() throws InterruptedException {
+    XRayExporterHandler handler = newHandler("events", 64 * 1024);
+    handler.export(ImmutableList.of(ExportDestinationTest.span(1), ExportDestinationTest.span(2)));
+    handler.export(ImmutableList.of(ExportDestinationTest.span(3), ExportDestinationTest.span(4)));
+    handler.shutdown();
+    // every document is larger than 10 bytes.
+    XRayExporterHandler tiny = newHandler("tiny", 10);
+    tiny.export(ImmutableList.of(ExportDestinationTest.span(5)));
+    tiny.shutdown();
+
+    final CountDownLatch release = new CountDownLatch(1);
+    SegmentTransport blocked =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return 0;
+          }
+
+          @Override
+          public void close() {}
+        };
+    SegmentSender sender = new SegmentSender("overflow", blocked, null, 1, 1, 1);
+    for (int i = 0; i < 10; i++) {
+      sender.offer("{}".getBytes(UTF_8));
+    }
+    release.countDown();
+    sender.shutdown(5, TimeUnit.SECONDS);
+  }
+
+  private static XRayExporterHandler newHandler(String name, int maxDocumentBytes) {
+    return new XRayExporterHandler(
+        XRayExporterConfiguration.builder()
+            .setHandlerName(name)
+            .setResourceSources(ImmutableList.<ResourceSource>of())
+            .setMaxDocumentBytes(maxDocumentBytes)
+            .build(),
+        new ExportDestinationTest.CollectingTransport());
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.google.common.collect.ImmutableMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class FairQueueTest {
+  private static ByteBuffer document(String key, int size) {
+    byte[] bytes = new byte[size];
+    byte[] name = key.getBytes(UTF_8);
+    System.arraycopy(name, 0, bytes, 0, name.length);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static String keyOf(ByteBuffer document) {
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < document.remaining() && document.get(i) != 0; i++) {
+      key.append((char) document.get(i));
+    }
+    return key.toString();
+  }
+
+  @Test
+  public void keepOrderOfOneKey() throws InterruptedException {
+    FairQueue queue = new FairQueue(2);
+    ByteBuffer first = document("a", 100);
+    ByteBuffer second = document("a", 100);
+    ByteBuffer third = document("a", 100);
+    assertNull(queue.offer("", first));
+    assertNull(queue.offer("", second));
+    // like a bounded FIFO, a full queue drops the new document.
+    assertSame(third, queue.offer("", third));
+
+    assertSame(first, queue.poll(0, TimeUnit.MILLISECONDS));
+    assertSame(second, queue.poll(0, TimeUnit.MILLISECONDS));
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    assertEquals(2, queue.getKeyStats().get("").admitted);
+    assertEquals(1, queue.getKeyStats().get("").dropped);
+  }
+
+  @Test
+  public void shareByWeight() {
+    FairQueue queue = new FairQueue(1000, ImmutableMap.of("heavy", 3));
+    for (int i = 0; i < 100; i++) {
+      queue.offer("heavy", document("heavy", 1024));
+      queue.offer("light", document("light", 1024));
+    }
+    List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    assertEquals(40, queue.drainTo(batch, 40));
+
+    int heavy = 0;
+    for (ByteBuffer document : batch) {
+      if (keyOf(document).equals("heavy")) {
+        heavy++;
+      }
+    }
+    assertEquals(30, heavy, 4);
+    assertEquals(160, queue.size());
+  }
+
+  @Test
+  public void shareBytesWhateverTheDocumentSize() {
+    FairQueue queue = new FairQueue(1000);
+    for (int i = 0; i < 100; i++) {
+      queue.offer("large", document("large", 8192));
+      for (int j = 0; j < 8; j++) {
+        queue.offer("small", document("small", 1024));
+      }
+    }
+    List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    queue.drainTo(batch, 90);
+
+    long large = 0;
+    long small = 0;
+    for (ByteBuffer document : batch) {
+      if (keyOf(document).equals("large")) {
+        large += document.remaining();
+      } else {
+        small += document.remaining();
+      }
+    }
+    assertEquals(1.0, (double) large / small, 0.2);
+  }
+
+  @Test
+  public void dropFromFloodingKey() {
+    FairQueue queue = new FairQueue(10);
+    List<ByteBuffer> hot = new ArrayList<ByteBuffer>();
+    for (int i = 0; i < 10; i++) {
+      ByteBuffer document = document("hot", 100);
+      hot.add(document);
+      assertNull(queue.offer("hot", document));
+    }
+    // the newest document of the flooding key makes room.
+    assertSame(hot.get(9), queue.offer("cold", document("cold", 100)));
+    ByteBuffer rejected = document("hot", 100);
+    assertSame(rejected, queue.offer("hot", rejected));
+
+    List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    queue.drainTo(batch);
+    assertEquals(10, batch.size());
+    assertEquals(1, queue.getKeyStats().get("cold").admitted);
+    assertEquals(0, queue.getKeyStats().get("cold").dropped);
+    assertEquals(10, queue.getKeyStats().get("hot").admitted);
+    assertEquals(2, queue.getKeyStats().get("hot").dropped);
+  }
+
+  @Test
+  public void dropFromLongestKeyAsKeysShrink() {
+    FairQueue queue = new FairQueue(6);
+    for (int i = 0; i < 3; i++) {
+      queue.offer("a", document("a", 100));
+    }
+    for (int i = 0; i < 2; i++) {
+      queue.offer("b", document("b", 100));
+    }
+    queue.offer("c", document("c", 100));
+    // a=3 b=2 c=1: each new document of c takes the room of one of the longest key.
+    assertEquals("a", keyOf(queue.offer("c", document("c", 100))));
+    assertEquals("c", keyOf(queue.offer("c", document("c", 100))));
+    // a=2 b=2 c=2: a new document of any of them is dropped.
+    assertEquals("a", keyOf(queue.offer("a", document("a", 100))));
+
+    // once the longest keys are drained, the next drop comes from the one left.
+    List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    queue.drainTo(batch, 6);
+    assertEquals(6, batch.size());
+    for (int i = 0; i < 4; i++) {
+      queue.offer("b", document("b", 100));
+    }
+    for (int i = 0; i < 2; i++) {
+      queue.offer("e", document("e", 100));
+    }
+    assertEquals("b", keyOf(queue.offer("e", document("e", 100))));
+    assertEquals(3, queue.getKeyStats().get("b").queued);
+    assertEquals(3, queue.getKeyStats().get("e").queued);
+  }
+
+  @Test
+  public void limitNumberOfKeys() {
+    FairQueue queue = new FairQueue(FairQueue.MAX_KEYS * 2);
+    for (int i = 0; i < FairQueue.MAX_KEYS + 10; i++) {
+      queue.offer("key-" + i, document("key", 100));
+    }
+    Map<String, FairQueue.KeyStats> stats = queue.getKeyStats();
+    assertEquals(FairQueue.MAX_KEYS + 1, stats.size());
+    assertEquals(10, stats.get(FairQueue.OTHER_KEY).admitted);
+  }
+}
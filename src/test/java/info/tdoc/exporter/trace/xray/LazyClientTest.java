@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class LazyClientTest {
+  private final AWSXRay client =
+      (AWSXRay)
+          Proxy.newProxyInstance(
+              AWSXRay.class.getClassLoader(),
+              new Class<?>[] {AWSXRay.class},
+              new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                  throw new UnsupportedOperationException(method.getName());
+                }
+              });
+
+  @Test
+  public void buildInBackground() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    LazyClient lazy =
+        new LazyClient(
+            new Callable<AWSXRay>() {
+              @Override
+              public AWSXRay call() throws Exception {
+                release.await();
+                return client;
+              }
+            },
+            50,
+            TimeUnit.MILLISECONDS);
+    assertFalse(lazy.isReady());
+    assertThrows(IllegalStateException.class, () -> lazy.get());
+    assertEquals(1, lazy.getInitTimeouts());
+
+    release.countDown();
+    assertSame(client, lazy.get());
+    assertTrue(lazy.isReady());
+    assertEquals(0, lazy.getInitFailures());
+  }
+
+  @Test
+  public void retryAfterFailure() {
+    final AtomicInteger attempts = new AtomicInteger();
+    LazyClient lazy =
+        new LazyClient(
+            new Callable<AWSXRay>() {
+              @Override
+              public AWSXRay call() {
+                if (attempts.incrementAndGet() == 1) {
+                  throw new IllegalArgumentException("no region");
+                }
+                return client;
+              }
+            },
+            5,
+            TimeUnit.SECONDS);
+    assertThrows(IllegalStateException.class, () -> lazy.get());
+    assertEquals(1, lazy.getInitFailures());
+    assertSame(client, lazy.get());
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  public void shareClientAcrossShards() {
+    final AtomicInteger attempts = new AtomicInteger();
+    LazyClient lazy =
+        new LazyClient(
+            new Callable<AWSXRay>() {
+              @Override
+              public AWSXRay call() {
+                if (attempts.incrementAndGet() == 1) {
+                  throw new IllegalArgumentException("no region");
+                }
+                return client;
+              }
+            },
+            5,
+            TimeUnit.SECONDS);
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder()
+            .setLazyClientInit(true)
+            .setSenderShards(4)
+            .setResourceSources(ImmutableList.<ResourceSource>of())
+            .setCircuitBreakerEnabled(false)
+            .build();
+    XRayExporterHandler handler =
+        new XRayExporterHandler(
+            config,
+            XRayTraceExporter.transportSupplier(config, lazy),
+            XRayTraceExporter.destinationTransports(config),
+            lazy);
+    for (int i = 0; i < 100; i++) {
+      handler.getSender().offer(i, "{}".getBytes(UTF_8));
+    }
+    handler.shutdown();
+
+    // one failed build and one retry, whichever shards asked for the client.
+    assertEquals(2, attempts.get());
+    assertTrue(handler.getClientInitFailures() >= 1);
+    assertEquals(0, handler.getClientInitTimeouts());
+  }
+
+  @Test
+  public void keepBatchesQueuedWhileClientIsBuilt() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger received = new AtomicInteger();
+    final AWSXRay accepting =
+        (AWSXRay)
+            Proxy.newProxyInstance(
+                AWSXRay.class.getClassLoader(),
+                new Class<?>[] {AWSXRay.class},
+                new InvocationHandler() {
+                  @Override
+                  public Object invoke(Object proxy, Method method, Object[] args) {
+                    PutTraceSegmentsRequest request = (PutTraceSegmentsRequest) args[0];
+                    received.addAndGet(request.getTraceSegmentDocuments().size());
+                    return new PutTraceSegmentsResult()
+                        .withUnprocessedTraceSegments(new ArrayList<UnprocessedTraceSegment>());
+                  }
+                });
+    LazyClient lazy =
+        new LazyClient(
+            new Callable<AWSXRay>() {
+              @Override
+              public AWSXRay call() throws Exception {
+                release.await();
+                return accepting;
+              }
+            },
+            20,
+            TimeUnit.MILLISECONDS);
+    CircuitBreaker breaker =
+        CircuitBreaker.fromConfiguration(
+            XRayExporterConfiguration.builder()
+                .setCircuitBreakerWindowSize(2)
+                .setCircuitBreakerFailureRate(0.5)
+                .build());
+    SegmentSender sender =
+        new SegmentSender("lazy", new ApiSegmentTransport(lazy), breaker, 1000, 10, 2);
+    for (int i = 0; i < 100; i++) {
+      sender.offer("{}".getBytes(UTF_8));
+    }
+    // requests time out waiting for the client several times.
+    Thread.sleep(200);
+    assertTrue(lazy.getInitTimeouts() > 0);
+    release.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sender.getSentDocuments() < 100 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(100L, sender.getSentDocuments());
+    assertEquals(100, received.get());
+    assertEquals(0L, sender.getFailedDocuments());
+    assertEquals(0L, sender.getRejectedDocuments());
+    assertEquals(0L, breaker.getTimesOpened());
+  }
+}
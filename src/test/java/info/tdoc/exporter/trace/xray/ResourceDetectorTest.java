@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ResourceDetectorTest {
+  private final ObjectMapper mapper = new ObjectMapper();
+  private HttpServer metadata;
+  private String endpoint;
+
+  @BeforeEach
+  public void startMetadataStandIn() throws IOException {
+    metadata = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    metadata.createContext("/latest/api/token", respond("PUT", "token"));
+    metadata.createContext(
+        "/latest/dynamic/instance-identity/document",
+        respond(
+            "GET",
+            "{\"instanceId\": \"i-0123\", \"availabilityZone\": \"us-west-2a\","
+                + " \"instanceType\": \"t3.micro\", \"imageId\": \"ami-1\"}"));
+    metadata.createContext("/ecs", respond("GET", "{\"DockerId\": \"abc\"}"));
+    metadata.start();
+    endpoint = "http://127.0.0.1:" + metadata.getAddress().getPort();
+  }
+
+  @AfterEach
+  public void stopMetadataStandIn() {
+    metadata.stop(0);
+  }
+
+  @Test
+  public void detectEc2AndEcs() throws Exception {
+    ResourceInfo info =
+        ResourceDetector.detect(
+            ImmutableList.of(
+                ResourceSources.ec2(endpoint),
+                ResourceSources.ecs(
+                    ImmutableMap.of(
+                        "ECS_CONTAINER_METADATA_URI_V4", endpoint + "/ecs", "HOSTNAME", "web-1")),
+                ResourceSources.eks(Collections.<String, String>emptyMap(), Paths.get("none"))));
+
+    JsonNode fragment = parseFragment(ResourceDetector.encodeFragment(info, mapper));
+    assertEquals("i-0123", fragment.path("aws").path("ec2").path("instance_id").asText());
+    assertEquals("us-west-2a", fragment.path("aws").path("ec2").path("availability_zone").asText());
+    assertEquals("web-1", fragment.path("aws").path("ecs").path("container").asText());
+    assertEquals("abc", fragment.path("aws").path("ecs").path("container_id").asText());
+    assertEquals("AWS::ECS::Container", fragment.path("origin").asText());
+    assertTrue(fragment.path("aws").path("eks").isMissingNode());
+  }
+
+  @Test
+  public void keepDetectingAfterFailure() {
+    ResourceInfo info =
+        ResourceDetector.detect(
+            ImmutableList.of(ResourceSources.ec2(endpoint + "/missing"), ResourceSources.sdk()));
+    assertTrue(info.getAws().containsKey("xray"));
+    assertTrue(!info.getAws().containsKey("ec2"));
+  }
+
+  @Test
+  public void spliceIntoTopLevelSegments() throws Exception {
+    ResourceInfo info = new ResourceInfo().setOrigin("AWS::EC2::Instance");
+    SegmentEncoder encoder =
+        new SegmentEncoder(mapper, "svc", ResourceDetector.encodeFragment(info, mapper));
+
+    TraceSegment segment = new TraceSegment("svc", "0102030405060708");
+    segment.type = null;
+    JsonNode doc = mapper.readTree(encoder.encode(segment));
+    assertEquals("AWS::EC2::Instance", doc.path("origin").asText());
+    assertEquals("svc", doc.path("name").asText());
+
+    TraceSegment subsegment = new TraceSegment("db", "0102030405060708");
+    doc = mapper.readTree(encoder.encode(subsegment));
+    assertTrue(doc.path("origin").isMissingNode());
+  }
+
+  @Test
+  public void detectInBackgroundWhateverTheClientInit() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    ResourceSource slow =
+        new ResourceSource() {
+          @Override
+          public void detect(ResourceInfo info) throws Exception {
+            release.await();
+            info.setOrigin("AWS::EC2::Instance");
+          }
+        };
+    ExportDestinationTest.CollectingTransport transport =
+        new ExportDestinationTest.CollectingTransport();
+    XRayExporterHandler handler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("svc")
+                .setLazyClientInit(false)
+                .setClientInitTimeoutMillis(10000)
+                .setResourceSources(ImmutableList.of(slow))
+                .setCircuitBreakerEnabled(false)
+                .build(),
+            transport);
+    try {
+      // neither the handler nor the first export wait for the source.
+      long start = System.nanoTime();
+      handler.export(ImmutableList.of(ExportDestinationTest.span(1)));
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+      release.countDown();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (System.nanoTime() < deadline) {
+        handler.export(ImmutableList.of(ExportDestinationTest.span(2)));
+        Thread.sleep(10);
+        List<String> documents = transport.documents;
+        if (!documents.isEmpty() && documents.get(documents.size() - 1).contains("\"origin\"")) {
+          break;
+        }
+      }
+    } finally {
+      handler.shutdown();
+    }
+    List<String> documents = transport.documents;
+    assertTrue(mapper.readTree(documents.get(0)).path("origin").isMissingNode());
+    assertEquals(
+        "AWS::EC2::Instance",
+        mapper.readTree(documents.get(documents.size() - 1)).path("origin").asText());
+  }
+
+  private JsonNode parseFragment(byte[] fragment) throws IOException {
+    return mapper.readTree("{" + new String(fragment, 1, fragment.length - 1, UTF_8) + "}");
+  }
+
+  private static HttpHandler respond(final String method, final String body) {
+    return new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        if (!exchange.getRequestMethod().equals(method)) {
+          exchange.sendResponseHeaders(405, -1);
+          exchange.close();
+          return;
+        }
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class RuleBasedSamplerTest {
+  private static final String rules =
+      "{\"version\": 2, \"rules\": ["
+          + "{\"description\": \"health\", \"url_path\": \"/health\","
+          + " \"fixed_target\": 0, \"rate\": 0.0},"
+          + "{\"description\": \"api\", \"http_method\": \"get\", \"url_path\": \"/api/*\","
+          + " \"fixed_target\": 2, \"rate\": 0.0}],"
+          + " \"default\": {\"fixed_target\": 0, \"rate\": 1.0}}";
+
+  @Test
+  public void wildcardMatch() {
+    assertTrue(SamplingRule.wildcardMatch("/api/*", "/api/users/1", false));
+    assertTrue(SamplingRule.wildcardMatch("/a?c", "/abc", false));
+    assertTrue(SamplingRule.wildcardMatch("GET", "get", true));
+    assertFalse(SamplingRule.wildcardMatch("/api/*", "/health", false));
+    assertFalse(SamplingRule.wildcardMatch("GET", "get", false));
+  }
+
+  @Test
+  public void reservoirPerSecond() {
+    SamplingRule rule = new SamplingRule("r", "*", "*", "*", "*", 2, 0.0);
+    assertTrue(rule.sample(100, 0));
+    assertTrue(rule.sample(100, 0));
+    assertFalse(rule.sample(100, 0));
+    assertTrue(rule.sample(101, 0));
+  }
+
+  @Test
+  public void sampleAtRate() {
+    SamplingRule none = new SamplingRule("r", "*", "*", "*", "*", 0, 0.0);
+    assertFalse(none.sample(100, 0));
+    assertFalse(none.sample(100, Long.MIN_VALUE));
+    SamplingRule all = new SamplingRule("r", "*", "*", "*", "*", 0, 1.0);
+    assertTrue(all.sample(100, Long.MIN_VALUE));
+  }
+
+  @Test
+  public void decideIndependentlyOfProbabilitySampling() {
+    SamplingRule half = new SamplingRule("r", "*", "*", "*", "*", 0, 0.5);
+    Random random = new Random(1);
+    int both = 0;
+    for (int i = 0; i < 10000; i++) {
+      TraceId traceId = TraceId.generateRandomId(random);
+      // the probability sampler keeps traces whose low half is below its bound.
+      boolean probability = Math.abs(traceId.getLowerLong()) < Long.MAX_VALUE / 2;
+      if (probability && half.sample(100, RuleBasedSampler.randomBits(traceId))) {
+        both++;
+      }
+    }
+    assertTrue(both > 2300 && both < 2700, "both " + both);
+  }
+
+  @Test
+  public void applyFirstMatchingRule() {
+    RuleBasedSampler sampler =
+        RuleBasedSampler.fromJson("svc", rules, new CircuitBreakerTest.FakeTicker());
+    assertFalse(sampler.shouldExport(span(1, "http://example.com/health?x=1")));
+    assertTrue(sampler.shouldExport(span(2, "http://example.com/api/users")));
+    assertTrue(sampler.shouldExport(span(3, "http://example.com/api/users")));
+    assertFalse(sampler.shouldExport(span(4, "http://example.com/api/users")));
+    assertTrue(sampler.shouldExport(span(5, "http://example.com/other")));
+    // the decision is kept for the whole trace.
+    assertTrue(sampler.shouldExport(span(2, "http://example.com/health")));
+  }
+
+  @Test
+  public void reloadChangedFile() throws Exception {
+    Path file = Files.createTempFile("sampling", ".json");
+    try {
+      Files.write(file, rules.getBytes(UTF_8));
+      CircuitBreakerTest.FakeTicker ticker = new CircuitBreakerTest.FakeTicker();
+      RuleBasedSampler sampler = RuleBasedSampler.fromFile("svc", file, 1000, ticker);
+      assertTrue(sampler.shouldExport(span(1, "http://example.com/other")));
+
+      Files.write(
+          file, "{\"default\": {\"fixed_target\": 0, \"rate\": 0.0}}".getBytes(UTF_8));
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+      ticker.advance(2, TimeUnit.SECONDS);
+      assertFalse(sampler.shouldExport(span(2, "http://example.com/other")));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void followParentAsOpenCensusSampler() {
+    RuleBasedSampler sampler = RuleBasedSampler.fromJson("svc", rules);
+    SpanContext parent =
+        SpanContext.create(
+            traceId(9),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, 1}),
+            TraceOptions.builder().setIsSampled(false).build(),
+            Tracestate.builder().build());
+    assertFalse(
+        sampler.shouldSample(
+            parent, false, traceId(9), SpanId.fromBytes(new byte[8]), "child", emptyList()));
+    assertTrue(
+        sampler.shouldSample(
+            null, null, traceId(10), SpanId.fromBytes(new byte[8]), "root", emptyList()));
+    assertEquals("RuleBasedSampler{inline}", sampler.getDescription());
+  }
+
+  private static TraceId traceId(int n) {
+    return TraceId.fromBytes(
+        new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, (byte) n});
+  }
+
+  private static SpanData span(int trace, String url) {
+    return SpanData.create(
+        SpanContext.create(
+            traceId(trace),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, 1}),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        null,
+        null,
+        "request",
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870000L),
+        SpanData.Attributes.create(
+            ImmutableMap.of(
+                TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("GET"),
+                TraceSegment.HTTP_URL, AttributeValue.stringAttributeValue(url)),
+            0),
+        SpanData.TimedEvents.<Annotation>create(
+            new ArrayList<SpanData.TimedEvent<Annotation>>(), 0),
+        SpanData.TimedEvents.<MessageEvent>create(
+            new ArrayList<SpanData.TimedEvent<MessageEvent>>(), 0),
+        SpanData.Links.create(emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(1519629870010L));
+  }
+}
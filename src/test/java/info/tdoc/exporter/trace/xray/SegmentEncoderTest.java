@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class SegmentEncoderTest {
+  private static final String serviceName = "testService";
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final SegmentEncoder encoder = new SegmentEncoder(mapper, serviceName, new byte[0]);
+
+  private static SpanId spanId(int n) {
+    return SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) n});
+  }
+
+  private static SpanData span(
+      int id,
+      SpanId parent,
+      Boolean remote,
+      Map<String, AttributeValue> attributes,
+      Status status,
+      Timestamp end) {
+    return SpanData.create(
+        SpanContext.create(
+            TraceId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}),
+            spanId(id),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        parent,
+        remote,
+        "GET /users/{id}",
+        Kind.SERVER,
+        Timestamp.create(1519629870L, 1234567),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<io.opencensus.trace.Link>emptyList(), 0),
+        null,
+        status,
+        end);
+  }
+
+  private void assertSameAsDataBinding(TraceSegment segment) throws Exception {
+    assertEquals(
+        new String(mapper.writeValueAsBytes(segment), UTF_8),
+        new String(encoder.encode(segment), UTF_8));
+  }
+
+  @Test
+  public void encodeLikeDataBinding() throws Exception {
+    Map<String, AttributeValue> http =
+        ImmutableMap.of(
+            TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("GET"),
+            TraceSegment.HTTP_URL, AttributeValue.stringAttributeValue("http://h/users/\"1\""),
+            TraceSegment.HTTP_USER_AGENT, AttributeValue.stringAttributeValue("curl/7.64"),
+            TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(200L),
+            "cache.ratio", AttributeValue.doubleAttributeValue(0.25));
+    Map<String, AttributeValue> sql =
+        ImmutableMap.of(
+            TraceSegment.ATTRIB_SQL_EXEC, AttributeValue.stringAttributeValue("SELECT 1"),
+            "retry", AttributeValue.booleanAttributeValue(true),
+            "\u30e6\u30fc\u30b6\u30fc", AttributeValue.stringAttributeValue("\u5024\n\t\u0001"));
+    Timestamp end = Timestamp.create(1519629871L, 999999999);
+
+    // top level, remote child and local child segments; errors, faults, throttles, in progress.
+    assertSameAsDataBinding(
+        new TraceSegment(serviceName, span(1, null, null, http, Status.OK, end)));
+    assertSameAsDataBinding(
+        new TraceSegment(
+            serviceName, span(2, spanId(1), true, http, Status.NOT_FOUND, null)));
+    assertSameAsDataBinding(
+        new TraceSegment(
+            serviceName,
+            span(3, spanId(1), false, sql, Status.INTERNAL.withDescription("boom"), end)));
+    assertSameAsDataBinding(
+        new TraceSegment(
+            serviceName, span(4, spanId(1), false, sql, Status.RESOURCE_EXHAUSTED, end)));
+    SegmentOptions annotated =
+        SegmentOptions.fromConfiguration(
+            XRayExporterConfiguration.builder()
+                .setAnnotationKeys(Collections.singletonList(TraceSegment.HTTP_METHOD))
+                .build());
+    assertSameAsDataBinding(
+        new TraceSegment(serviceName, span(5, null, null, http, Status.OK, end), annotated));
+  }
+
+  @Test
+  public void encodeAggregatedSegmentsLikeDataBinding() throws Exception {
+    List<SpanData> spans = new ArrayList<SpanData>();
+    Map<String, AttributeValue> sql =
+        ImmutableMap.of(
+            TraceSegment.ATTRIB_SQL_EXEC, AttributeValue.stringAttributeValue("SELECT 1"));
+    for (int i = 0; i < 5; i++) {
+      spans.add(
+          span(10 + i, spanId(1), false, sql, Status.OK, Timestamp.create(1519629871L, i)));
+    }
+    for (TraceSegment segment :
+        SpanAggregator.create(3).toSegments(serviceName, SegmentOptions.DEFAULT, spans)) {
+      assertSameAsDataBinding(segment);
+    }
+  }
+
+  @Test
+  public void encodeSparseSegmentsLikeDataBinding() throws Exception {
+    assertSameAsDataBinding(new TraceSegment(null, (String) null));
+
+    TraceSegment segment = new TraceSegment("other", "0102030405060708");
+    segment.startTime = Timestamp.create(-1, 500000000);
+    segment.nameSpace = "aws";
+    segment.user = "alice";
+    segment.precursorIds = Collections.singletonList(null);
+    segment.cause = new TraceSegment.Cause(new TraceSegment.Cause.Exceptions());
+    segment.http = new TraceSegment.HTTP();
+    segment.sql = new TraceSegment.SQL();
+    segment.origin = "AWS::EC2::Instance";
+    Map<String, Object> annotations = new HashMap<String, Object>();
+    annotations.put("null", null);
+    annotations.put("int", 1);
+    annotations.put("list", Collections.singletonList("a"));
+    segment.annotations = annotations;
+    Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+    metadata.put("empty", null);
+    segment.metadata = metadata;
+    segment.subsegments = Collections.singletonList(new TraceSegment("child", "0a"));
+    assertSameAsDataBinding(segment);
+  }
+
+  @Test
+  public void spliceResourceFragment() throws Exception {
+    SegmentEncoder encoder =
+        new SegmentEncoder(
+            mapper, serviceName, ",\"origin\":\"AWS::ECS::Container\"".getBytes(UTF_8));
+    TraceSegment segment = new TraceSegment(serviceName, "0102030405060708");
+    segment.type = null;
+    segment.subsegments = Collections.singletonList(new TraceSegment("db", "0102030405060708"));
+
+    JsonNode doc = mapper.readTree(encoder.encode(segment));
+    assertEquals("AWS::ECS::Container", doc.path("origin").asText());
+    assertEquals(true, doc.path("subsegments").get(0).path("origin").isMissingNode());
+  }
+
+  @Test
+  public void boundKeyCache() throws Exception {
+    TraceSegment segment = new TraceSegment(serviceName, "0102030405060708");
+    Map<String, Object> annotations = new HashMap<String, Object>();
+    for (int i = 0; i < SegmentEncoder.MAX_CACHED_KEYS + 10; i++) {
+      annotations.put("key" + i, (long) i);
+    }
+    segment.annotations = annotations;
+    assertSameAsDataBinding(segment);
+    assertEquals(SegmentEncoder.MAX_CACHED_KEYS, encoder.getCachedKeys());
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class SegmentForwarderTest {
+  private final XRayExporterConfiguration config =
+      XRayExporterConfiguration.builder().setMaxDocumentBytes(100).build();
+  private final CollectingTransport transport = new CollectingTransport();
+  private final Supplier<SegmentTransport> transports =
+      Suppliers.<SegmentTransport>ofInstance(transport);
+
+  @Test
+  public void forwardDaemonDatagrams() throws Exception {
+    SegmentForwarder forwarder =
+        new SegmentForwarder(
+            config,
+            transports,
+            new InetSocketAddress("127.0.0.1", 0),
+            Collections.<Path>emptyList(),
+            1000,
+            0,
+            0);
+    forwarder.start();
+    try (DatagramSocket client = new DatagramSocket()) {
+      send(client, forwarder, "{\"format\": \"json\", \"version\": 1}\n{\"name\":\"a\"}");
+      send(client, forwarder, "{\"name\":\"no header\"}");
+      send(client, forwarder, "{\"format\": \"json\", \"version\": 1}\n{\"name\":\"b\"}\n");
+      waitFor(forwarder, 3);
+    }
+    forwarder.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(ImmutableList.of("{\"name\":\"a\"}", "{\"name\":\"b\"}"), transport.documents);
+    assertEquals(1L, forwarder.getMalformedDocuments());
+  }
+
+  @Test
+  public void tailFiles() throws Exception {
+    Path file = Files.createTempFile("segments", ".log");
+    Files.write(file, "{\"name\":\"old\"}\n".getBytes(UTF_8));
+    SegmentForwarder forwarder =
+        new SegmentForwarder(config, transports, null, ImmutableList.of(file), 10, 0, 0);
+    forwarder.start();
+    try {
+      append(file, "{\"name\":\"a\"}\n{\"name\":");
+      append(file, "\"b\"}\n\n{\"name\":\"" + repeat('x', 200) + "\"}\n");
+      waitFor(forwarder, 3);
+      // truncated, e.g. by log rotation.
+      Files.write(file, "{\"name\":\"c\"}\n".getBytes(UTF_8));
+      waitFor(forwarder, 4);
+    } finally {
+      forwarder.shutdown(5, TimeUnit.SECONDS);
+      Files.delete(file);
+    }
+
+    assertEquals(
+        ImmutableList.of("{\"name\":\"a\"}", "{\"name\":\"b\"}", "{\"name\":\"c\"}"),
+        transport.documents);
+    assertEquals(1L, forwarder.getOversizedDocuments());
+  }
+
+  @Test
+  public void limitRate() throws Exception {
+    SegmentForwarder forwarder =
+        new SegmentForwarder(
+            config,
+            transports,
+            new InetSocketAddress("127.0.0.1", 0),
+            Collections.<Path>emptyList(),
+            1000,
+            1,
+            0);
+    forwarder.start();
+    try (DatagramSocket client = new DatagramSocket()) {
+      for (int i = 0; i < 5; i++) {
+        send(client, forwarder, "{\"format\": \"json\", \"version\": 1}\n{}");
+      }
+      waitFor(forwarder, 5);
+    }
+    forwarder.shutdown(5, TimeUnit.SECONDS);
+
+    assertTrue(forwarder.getRateLimitedDocuments() >= 3);
+    assertTrue(forwarder.stats().contains("rate_limited="));
+  }
+
+  @Test
+  public void parseProperties() {
+    Properties props = new Properties();
+    props.setProperty("transport", "DAEMON");
+    props.setProperty("daemon.address", "10.0.0.1:2000");
+    props.setProperty("max.batch.size", "20");
+    props.setProperty("circuit.breaker.enabled", "true");
+    XRayExporterConfiguration parsed = Main.toConfiguration(props);
+
+    assertEquals(XRayExporterConfiguration.Transport.DAEMON, parsed.getTransport());
+    assertEquals("10.0.0.1:2000", parsed.getDaemonAddress());
+    assertEquals(20, parsed.getMaxBatchSize());
+    assertTrue(parsed.getCircuitBreakerEnabled());
+    assertTrue(parsed.getLazyClientInit());
+  }
+
+  @Test
+  public void findTraceIdInDocuments() {
+    String traceId = "1-5759e988-bd862e3fe1be46a994272793";
+    byte[] document =
+        ("{\"name\":\"a\",\"trace_id\": \"" + traceId + "\",\"id\":\"1\"}").getBytes(UTF_8);
+    assertEquals(
+        ShardedSender.hash(traceId),
+        SegmentForwarder.traceHash(document, 0, document.length));
+    byte[] noTraceId = "{\"name\":\"a\"}".getBytes(UTF_8);
+    assertEquals(0, SegmentForwarder.traceHash(noTraceId, 0, noTraceId.length));
+  }
+
+  private static void send(DatagramSocket client, SegmentForwarder forwarder, String datagram)
+      throws IOException {
+    byte[] data = datagram.getBytes(UTF_8);
+    client.send(new DatagramPacket(data, data.length, forwarder.getListenAddress()));
+  }
+
+  private static void append(Path file, String text) throws IOException {
+    Files.write(file, text.getBytes(UTF_8), StandardOpenOption.APPEND);
+  }
+
+  private static String repeat(char c, int n) {
+    char[] chars = new char[n];
+    java.util.Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static void waitFor(SegmentForwarder forwarder, long received)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (forwarder.getReceivedDocuments() < received && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  static final class CollectingTransport implements SegmentTransport {
+    final List<String> documents = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public int send(List<ByteBuffer> batch) {
+      for (ByteBuffer document : batch) {
+        documents.add(UTF_8.decode(document.duplicate()).toString());
+      }
+      return 0;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
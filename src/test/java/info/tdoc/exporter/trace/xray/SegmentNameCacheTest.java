@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.google.common.base.Strings;
+import org.junit.jupiter.api.Test;
+
+public class SegmentNameCacheTest {
+  @Test
+  public void sanitizeInvalidCharacters() {
+    assertEquals("GET /users/id", SegmentNameCache.sanitize("GET /users/{id}"));
+    String symbols = "a_b.c:d/e%f&g#h=i+j\\k-l@m";
+    assertSame(symbols, SegmentNameCache.sanitize(symbols));
+    assertEquals("\u65e5\u672c", SegmentNameCache.sanitize("\u65e5\u672c!"));
+    assertEquals("span", SegmentNameCache.sanitize("()"));
+    assertEquals(200, SegmentNameCache.sanitize(Strings.repeat("a", 300)).length());
+  }
+
+  @Test
+  public void memoizeUpToMaxSize() {
+    SegmentNameCache cache = new SegmentNameCache(2);
+    String first = cache.get("a(1)");
+    assertSame(first, cache.get("a(1)"));
+    cache.get("b");
+    cache.get("c");
+    assertEquals(2, cache.size());
+    assertEquals("c", cache.get("c"));
+  }
+}
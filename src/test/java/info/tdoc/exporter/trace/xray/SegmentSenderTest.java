@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class SegmentSenderTest {
+  @Test
+  public void sendInBatches() {
+    RecordingTransport transport = new RecordingTransport();
+    SegmentSender sender = new SegmentSender("test", transport, null, 100, 3, 1);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(sender.offer(("{\"n\":" + i + "}").getBytes(UTF_8)));
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(10L, sender.getSentDocuments());
+    int total = 0;
+    for (Integer size : transport.batchSizes) {
+      assertTrue(size <= 3);
+      total += size;
+    }
+    assertEquals(10, total);
+  }
+
+  @Test
+  public void countFailedBatches() {
+    SegmentTransport failing =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            throw new RuntimeException("unavailable");
+          }
+
+          @Override
+          public void close() {}
+        };
+    SegmentSender sender = new SegmentSender("test", failing, null, 100, 50, 1);
+    sender.offer("{}".getBytes(UTF_8));
+    sender.offer("{}".getBytes(UTF_8));
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(0L, sender.getSentDocuments());
+    assertEquals(2L, sender.getFailedDocuments());
+  }
+
+  @Test
+  public void rejectWhileCircuitIsOpen() {
+    RecordingTransport transport = new RecordingTransport();
+    CircuitBreaker breaker =
+        new CircuitBreaker(0.5, 1, 1, TimeUnit.HOURS, 1, new CircuitBreakerTest.FakeTicker());
+    breaker.onFailure();
+    SegmentSender sender = new SegmentSender("test", transport, breaker, 100, 50, 1);
+    sender.offer("{}".getBytes(UTF_8));
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(1L, sender.getRejectedDocuments());
+    assertTrue(transport.batchSizes.isEmpty());
+  }
+
+  @Test
+  public void recordOutcomeOfTrialWhichThrowsError() {
+    SegmentTransport throwing =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            throw new AssertionError("broken transport");
+          }
+
+          @Override
+          public void close() {}
+        };
+    CircuitBreakerTest.FakeTicker ticker = new CircuitBreakerTest.FakeTicker();
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 1, TimeUnit.HOURS, 1, ticker);
+    breaker.onFailure();
+    ticker.advance(1, TimeUnit.HOURS);
+    Executor direct =
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            try {
+              command.run();
+            } catch (AssertionError e) {
+              // the error of the transport.
+            }
+          }
+        };
+    SegmentSender sender =
+        new SegmentSender("test", throwing, breaker, new FairQueue(100), 1, 1, 0, null, direct);
+    sender.offer("{}".getBytes(UTF_8));
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    // the failed trial opened the breaker again instead of holding the only trial forever.
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(2L, breaker.getTimesOpened());
+  }
+
+  @Test
+  public void sendOnGivenExecutor() {
+    RecordingTransport transport = new RecordingTransport();
+    final AtomicInteger tasks = new AtomicInteger();
+    Executor executor =
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            tasks.incrementAndGet();
+            command.run();
+          }
+        };
+    SegmentSender sender =
+        new SegmentSender("test", transport, null, new FairQueue(100), 1, 1, 0, null, executor);
+    sender.offer("{}".getBytes(UTF_8));
+    sender.offer("{}".getBytes(UTF_8));
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(2L, sender.getSentDocuments());
+    assertEquals(2, tasks.get());
+  }
+
+  @Test
+  public void boundRequestsInFlight() {
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+    SegmentTransport slow =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            int n = active.incrementAndGet();
+            maxActive.accumulateAndGet(n, Math::max);
+            try {
+              Thread.sleep(20);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            active.decrementAndGet();
+            return 0;
+          }
+
+          @Override
+          public void close() {}
+        };
+    ExecutorService executor = Executors.newCachedThreadPool();
+    SegmentSender sender =
+        new SegmentSender("test", slow, null, new FairQueue(100), 1, 2, 0, null, executor);
+    for (int i = 0; i < 10; i++) {
+      sender.offer("{}".getBytes(UTF_8));
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+    executor.shutdown();
+
+    assertEquals(10L, sender.getSentDocuments());
+    assertTrue(maxActive.get() <= 2);
+  }
+
+  @Test
+  public void lingerOnlyWhenDocumentsAreExpected() {
+    long bound = TimeUnit.MILLISECONDS.toNanos(50);
+    // idle: less than one document expected within the bound.
+    assertEquals(0L, SegmentSender.lingerNanos(49, 1.0 / bound, bound / 2));
+    assertEquals(0L, SegmentSender.lingerNanos(49, 0.0, bound));
+    // busy: wait for the batch to fill.
+    assertEquals(1000L, SegmentSender.lingerNanos(10, 0.01, bound));
+    // moderate: wait up to the bound.
+    assertEquals(bound, SegmentSender.lingerNanos(49, 10.0 / bound, bound));
+    assertEquals(0L, SegmentSender.lingerNanos(49, 10.0 / bound, 0));
+  }
+
+  @Test
+  public void coalesceAcrossExportCalls() throws InterruptedException {
+    SlowTransport transport = new SlowTransport(10);
+    SegmentSender sender =
+        new SegmentSender("test", transport, null, new FairQueue(1000), 50, 4, 200, null, null);
+    // a few documents per export() call, as OpenCensus often does.
+    for (int i = 0; i < 100; i++) {
+      sender.offer("{}".getBytes(UTF_8));
+      sender.offer("{}".getBytes(UTF_8));
+      Thread.sleep(1);
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(200L, sender.getSentDocuments());
+    // without lingering, about 45 batches are sent.
+    assertTrue(sender.getBatches() < 30, "batches: " + sender.getBatches());
+  }
+
+  @Test
+  public void queueDocumentsInArena() {
+    final List<String> documents = Collections.synchronizedList(new ArrayList<String>());
+    SegmentTransport transport =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> batch) {
+            for (ByteBuffer document : batch) {
+              assertTrue(document.isDirect());
+              documents.add(UTF_8.decode(document.duplicate()).toString());
+            }
+            return 0;
+          }
+
+          @Override
+          public void close() {}
+        };
+    DocumentArena arena = new DocumentArena(64 * 1024, 64 * 1024);
+    SegmentSender sender =
+        new SegmentSender("test", transport, null, new FairQueue(100), 10, 1, 0, arena, null);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(sender.offer(("{\"n\":" + i + "}").getBytes(UTF_8)));
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(3L, sender.getSentDocuments());
+    assertTrue(documents.contains("{\"n\":2}"));
+    assertEquals(0, arena.getUsedBytes());
+  }
+
+  @Test
+  public void dropWhenArenaIsFull() {
+    SlowTransport transport = new SlowTransport(100);
+    DocumentArena arena = new DocumentArena(64 * 1024, 64 * 1024);
+    SegmentSender sender =
+        new SegmentSender("test", transport, null, new FairQueue(100), 1, 1, 0, arena, null);
+    int accepted = 0;
+    for (int i = 0; i < 10; i++) {
+      if (sender.offer(new byte[20 * 1024])) {
+        accepted++;
+      }
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    // a page holds two 32KB chunks.
+    assertEquals(2, accepted);
+    assertEquals(8L, sender.getDroppedDocuments());
+    assertEquals(0, arena.getUsedBytes());
+  }
+
+  static final class SlowTransport implements SegmentTransport {
+    private final long latencyMillis;
+
+    SlowTransport(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public int send(List<ByteBuffer> documents) {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return 0;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  static final class RecordingTransport implements SegmentTransport {
+    final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    public int send(List<ByteBuffer> documents) {
+      batchSizes.add(documents.size());
+      return 0;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
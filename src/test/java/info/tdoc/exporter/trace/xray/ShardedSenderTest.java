@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static info.tdoc.exporter.trace.xray.ExportDestinationTest.span;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.export.SpanData;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class ShardedSenderTest {
+  @Test
+  public void keepTracesOnOneShard() {
+    String traceId = "1-5759e988-bd862e3fe1be46a994272793";
+    // the epoch part may differ between segments of a trace.
+    assertEquals(
+        ShardedSender.hash(traceId), ShardedSender.hash("1-5759e9c4-bd862e3fe1be46a994272793"));
+    int shard = ShardedSender.shard(ShardedSender.hash(traceId), 8);
+    assertTrue(shard >= 0 && shard < 8);
+    assertEquals(0, ShardedSender.hash(null));
+  }
+
+  @Test
+  public void spreadTracesOverShards() {
+    final SegmentSenderTest.RecordingTransport[] transports =
+        new SegmentSenderTest.RecordingTransport[4];
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder().setSenderShards(4).setMaxQueueSize(10000).build();
+    ShardedSender sender =
+        ShardedSender.fromConfiguration(
+            config,
+            new Supplier<SegmentTransport>() {
+              private int next = 0;
+
+              @Override
+              public SegmentTransport get() {
+                transports[next] = new SegmentSenderTest.RecordingTransport();
+                return transports[next++];
+              }
+            });
+    Random random = new Random(1);
+    for (int i = 0; i < 4000; i++) {
+      String traceId = String.format("1-5759e988-%08x%016x", random.nextInt(), random.nextLong());
+      // two segments per trace.
+      sender.offer(ShardedSender.hash(traceId), "{}".getBytes(UTF_8));
+      sender.offer(ShardedSender.hash(traceId), "{}".getBytes(UTF_8));
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(4, sender.getShardCount());
+    assertEquals(8000L, sender.getSentDocuments());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(0, sender.getShard(i).getOfferedDocuments() % 2);
+      assertTrue(sender.getShard(i).getSentDocuments() > 1500);
+      assertTrue(!transports[i].batchSizes.isEmpty());
+    }
+    assertTrue(sender.getImbalance() < 1.2, "imbalance: " + sender.getImbalance());
+  }
+
+  @Test
+  public void closeSharedTransportOnce() {
+    final AtomicInteger closes = new AtomicInteger();
+    final AtomicInteger sentAfterClose = new AtomicInteger();
+    SegmentTransport shared =
+        new SegmentTransport() {
+          @Override
+          public int send(List<ByteBuffer> documents) {
+            if (closes.get() > 0) {
+              sentAfterClose.addAndGet(documents.size());
+            }
+            return 0;
+          }
+
+          @Override
+          public void close() {
+            closes.incrementAndGet();
+          }
+        };
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder().setSenderShards(4).setMaxQueueSize(10000).build();
+    ShardedSender sender =
+        ShardedSender.fromConfiguration(config, Suppliers.ofInstance(shared));
+    for (int i = 0; i < 1000; i++) {
+      sender.offer(i, "{}".getBytes(UTF_8));
+    }
+    sender.shutdown(5, TimeUnit.SECONDS);
+
+    assertEquals(1000L, sender.getSentDocuments());
+    assertEquals(1, closes.get());
+    assertEquals(0, sentAfterClose.get());
+  }
+
+  @Test
+  public void reportStatsOfRegisteredExporter() {
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder()
+            .setHandlerName("stats")
+            .setTransport(XRayExporterConfiguration.Transport.DAEMON)
+            .setSenderShards(2)
+            .setResourceSources(ImmutableList.<ResourceSource>of())
+            .setSamplingProbability(0.0)
+            .build();
+    XRayTraceExporter.createAndRegister(config);
+    try {
+      ExporterStats stats = XRayTraceExporter.getStats("stats");
+      assertEquals(2, stats.getShards());
+      assertEquals(1.0, stats.getShardImbalance(), 0.0);
+      assertEquals(0L, stats.getSentDocuments());
+      assertTrue(stats.toString().contains("imbalance=1.00"));
+      assertTrue(stats.getKeyStats().isEmpty());
+    } finally {
+      XRayTraceExporter.unregister("stats");
+    }
+    assertThrows(IllegalStateException.class, () -> XRayTraceExporter.getStats("stats"));
+  }
+
+  @Test
+  public void sumKeyStatsOverShards() {
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder()
+            .setSenderShards(2)
+            .setResourceSources(ImmutableList.<ResourceSource>of())
+            .build();
+    XRayExporterHandler handler =
+        new XRayExporterHandler(config, new SegmentSenderTest.RecordingTransport());
+    for (int i = 0; i < 10; i++) {
+      handler.getSender().offer(i, "hot", "{}".getBytes(UTF_8));
+    }
+    handler.getSender().offer(1, "cold", "{}".getBytes(UTF_8));
+    handler.shutdown();
+
+    Map<String, ExporterStats.KeyStats> stats = new ExporterStats(handler).getKeyStats();
+    assertEquals(ImmutableList.of("cold", "hot"), ImmutableList.copyOf(stats.keySet()));
+    assertEquals(10L, stats.get("hot").getAdmitted());
+    assertEquals(0L, stats.get("hot").getDropped());
+    assertEquals(0, stats.get("hot").getQueued());
+    assertEquals(1L, stats.get("cold").getAdmitted());
+  }
+
+  @Test
+  public void keyDocumentsBySpan() {
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder()
+            .setResourceSources(ImmutableList.<ResourceSource>of())
+            .setFairQueueKeys(
+                ImmutableList.of(
+                    XRayExporterConfiguration.FairQueueKey.SPAN_NAME,
+                    XRayExporterConfiguration.FairQueueKey.HTTP_ROUTE))
+            // the key is made of the span, whatever is left of it in the segment.
+            .setDroppedAttributeKeys(ImmutableList.of(TraceSegment.HTTP_ROUTE))
+            .setSpanAggregator(SpanAggregator.create(2))
+            .build();
+    XRayExporterHandler handler =
+        new XRayExporterHandler(config, new SegmentSenderTest.RecordingTransport());
+    handler.export(ImmutableList.of(routed(1, "/users/{id}"), routed(1, "/users/{id}"), span(2)));
+    handler.shutdown();
+
+    Map<String, ExporterStats.KeyStats> stats = new ExporterStats(handler).getKeyStats();
+    assertEquals(
+        ImmutableList.of("span-1|/users/{id}", "span-2|"), ImmutableList.copyOf(stats.keySet()));
+    assertEquals(2L, stats.get("span-1|/users/{id}").getAdmitted());
+    assertEquals(1L, stats.get("span-2|").getAdmitted());
+  }
+
+  private static SpanData routed(int n, String route) {
+    SpanData spanData = span(n);
+    return SpanData.create(
+        spanData.getContext(),
+        null,
+        null,
+        spanData.getName(),
+        spanData.getKind(),
+        spanData.getStartTimestamp(),
+        SpanData.Attributes.create(
+            ImmutableMap.of(TraceSegment.HTTP_ROUTE, AttributeValue.stringAttributeValue(route)),
+            0),
+        spanData.getAnnotations(),
+        spanData.getMessageEvents(),
+        spanData.getLinks(),
+        0,
+        spanData.getStatus(),
+        spanData.getEndTimestamp());
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class SpanAggregatorTest {
+  private static final String serviceName = "testService";
+  private static final TraceId traceId =
+      TraceId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+  private static final SpanId rootId = spanId(1);
+
+  @Test
+  public void collapseSiblingLeafSpans() {
+    List<SpanData> spans = new ArrayList<SpanData>();
+    spans.add(span(rootId, null, "root", 0, 100, Status.OK, "SELECT 1"));
+    for (int i = 0; i < 5; i++) {
+      Status status = i == 2 ? Status.NOT_FOUND : Status.OK;
+      spans.add(span(spanId(10 + i), rootId, "query", 10 + i, 12 + 2 * i, status, "SELECT 1"));
+    }
+    spans.add(span(spanId(20), rootId, "query", 30, 31, Status.OK, "SELECT 2"));
+
+    List<TraceSegment> segments =
+        SpanAggregator.create(3).toSegments(serviceName, SegmentOptions.DEFAULT, spans);
+    assertEquals(3, segments.size());
+
+    TraceSegment aggregated = null;
+    for (TraceSegment s : segments) {
+      if (s.metadata != null) {
+        aggregated = s;
+      }
+    }
+    Map<String, Object> stats = aggregated.metadata.get("aggregate");
+    assertEquals(5L, stats.get("count"));
+    assertEquals(1L, stats.get("error_count"));
+    assertEquals(0.002, (Double) stats.get("min_duration"), 1e-9);
+    assertEquals(0.006, (Double) stats.get("max_duration"), 1e-9);
+    assertEquals(0.020, (Double) stats.get("total_duration"), 1e-9);
+    assertEquals(Boolean.TRUE, aggregated.error);
+    assertEquals("SELECT 1", aggregated.annotations.get(TraceSegment.ATTRIB_SQL_EXEC));
+  }
+
+  @Test
+  public void keepGroupsBelowThreshold() {
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 3; i++) {
+      spans.add(span(spanId(10 + i), rootId, "get", i, i + 1, Status.OK, "SELECT 1"));
+    }
+
+    List<TraceSegment> segments =
+        SpanAggregator.create(4).toSegments(serviceName, SegmentOptions.DEFAULT, spans);
+    assertEquals(3, segments.size());
+    for (TraceSegment s : segments) {
+      assertNull(s.metadata);
+    }
+  }
+
+  @Test
+  public void neverCollapseParentSpans() {
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 3; i++) {
+      spans.add(span(spanId(10 + i), rootId, "get", i, i + 1, Status.OK, "SELECT 1"));
+    }
+    spans.add(span(spanId(30), spanId(10), "inner", 0, 1, Status.OK, "SELECT 1"));
+
+    List<TraceSegment> segments =
+        SpanAggregator.create(3).toSegments(serviceName, SegmentOptions.DEFAULT, spans);
+    assertEquals(4, segments.size());
+    assertTrue(segments.get(0).metadata == null);
+  }
+
+  @Test
+  public void neverCollapseSpansWithChildrenInAnotherBatch() {
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 3; i++) {
+      spans.add(span(spanId(10 + i), rootId, "get", i, i + 1, Status.OK, "SELECT 1", 1));
+    }
+
+    List<TraceSegment> segments =
+        SpanAggregator.create(3).toSegments(serviceName, SegmentOptions.DEFAULT, spans);
+    assertEquals(3, segments.size());
+    for (TraceSegment s : segments) {
+      assertNull(s.metadata);
+    }
+  }
+
+  @Test
+  public void aggregateSegmentWithoutDefaultMetadata() {
+    TraceSegment segment =
+        new TraceSegment(
+            serviceName,
+            span(spanId(10), rootId, "get", 0, 1, Status.OK, "SELECT 1"),
+            SegmentOptions.DEFAULT);
+    Map<String, Object> other = new HashMap<String, Object>();
+    other.put("k", "v");
+    segment.metadata = new HashMap<String, Map<String, Object>>();
+    segment.metadata.put("other", other);
+
+    segment.aggregate(
+        Timestamp.fromMillis(1519629870000L),
+        Timestamp.fromMillis(1519629870003L),
+        SpanAggregator.DEFAULT_KEY_ATTRIBUTES,
+        3,
+        1000000,
+        1000000,
+        3000000,
+        0);
+    assertNull(segment.metadata.get("default"));
+    assertEquals(other, segment.metadata.get("other"));
+    assertEquals(3L, segment.metadata.get("aggregate").get("count"));
+  }
+
+  @Test
+  public void processAggregatedAttributes() {
+    SegmentOptions options =
+        SegmentOptions.fromConfiguration(
+            XRayExporterConfiguration.builder()
+                .setStripSqlLiterals(true)
+                .setDroppedAttributeKeys(ImmutableList.of("user.email"))
+                .setRedactedValuePatterns(ImmutableList.of("\\d{4}-\\d{4}"))
+                .setAnnotationKeys(ImmutableList.of(TraceSegment.ATTRIB_SQL_EXEC))
+                .build());
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 3; i++) {
+      spans.add(
+          span(
+              spanId(10 + i),
+              rootId,
+              "query",
+              i,
+              i + 1,
+              Status.OK,
+              ImmutableMap.of(
+                  TraceSegment.ATTRIB_SQL_EXEC,
+                  AttributeValue.stringAttributeValue("SELECT * FROM users WHERE email = 'a@b.c'"),
+                  "user.email",
+                  AttributeValue.stringAttributeValue("a@b.c"),
+                  "card",
+                  AttributeValue.stringAttributeValue("card 1234-5678"),
+                  "request.id",
+                  AttributeValue.stringAttributeValue("r" + i))));
+    }
+
+    SpanAggregator aggregator =
+        SpanAggregator.create(
+            3, ImmutableList.of(TraceSegment.ATTRIB_SQL_EXEC, "user.email", "card"));
+    List<TraceSegment> segments = aggregator.toSegments(serviceName, options, spans);
+    assertEquals(1, segments.size());
+    TraceSegment aggregated = segments.get(0);
+    assertEquals(
+        ImmutableMap.of(
+            "name", "query", TraceSegment.ATTRIB_SQL_EXEC, "SELECT * FROM users WHERE email = ?"),
+        aggregated.annotations);
+    assertEquals(
+        "SELECT * FROM users WHERE email = ?",
+        aggregated.subsegments.get(0).sql.sanitizedQuery);
+    // key attributes routed to metadata are processed too; the others are left out.
+    assertEquals(
+        ImmutableMap.of("card", "card " + AttributeProcessor.REDACTED),
+        aggregated.metadata.get("default"));
+    assertEquals(3L, aggregated.metadata.get("aggregate").get("count"));
+  }
+
+  private static SpanId spanId(int n) {
+    return SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) n});
+  }
+
+  private static SpanData span(
+      SpanId id, SpanId parent, String name, long startMs, long endMs, Status status, String sql) {
+    return span(id, parent, name, startMs, endMs, status, sql, 0);
+  }
+
+  private static SpanData span(
+      SpanId id,
+      SpanId parent,
+      String name,
+      long startMs,
+      long endMs,
+      Status status,
+      String sql,
+      int childSpanCount) {
+    return span(
+        id,
+        parent,
+        name,
+        startMs,
+        endMs,
+        status,
+        ImmutableMap.of(TraceSegment.ATTRIB_SQL_EXEC, AttributeValue.stringAttributeValue(sql)),
+        childSpanCount);
+  }
+
+  private static SpanData span(
+      SpanId id,
+      SpanId parent,
+      String name,
+      long startMs,
+      long endMs,
+      Status status,
+      Map<String, AttributeValue> attributes) {
+    return span(id, parent, name, startMs, endMs, status, attributes, 0);
+  }
+
+  private static SpanData span(
+      SpanId id,
+      SpanId parent,
+      String name,
+      long startMs,
+      long endMs,
+      Status status,
+      Map<String, AttributeValue> attributes,
+      int childSpanCount) {
+    return SpanData.create(
+        SpanContext.create(
+            traceId,
+            id,
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        parent,
+        parent == null ? null : Boolean.FALSE,
+        name,
+        Kind.CLIENT,
+        Timestamp.fromMillis(1519629870000L + startMs),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.<Annotation>create(
+            new ArrayList<SpanData.TimedEvent<Annotation>>(), 0),
+        SpanData.TimedEvents.<MessageEvent>create(
+            new ArrayList<SpanData.TimedEvent<MessageEvent>>(), 0),
+        SpanData.Links.create(emptyList(), 0),
+        childSpanCount,
+        status,
+        Timestamp.fromMillis(1519629870000L + endMs));
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import io.opencensus.trace.export.SpanExporter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+
+public class SpanRecorderTest {
+  private static SpanData span(int id, String url, @Nullable Timestamp end) {
+    SpanContext context =
+        SpanContext.create(
+            TraceId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) id}),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().set("vendor", "value").build());
+    return SpanData.create(
+        context,
+        id == 1 ? null : SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, 1}),
+        id == 1 ? null : Boolean.FALSE,
+        "GET /users",
+        Kind.SERVER,
+        Timestamp.create(1519629870L, 1000),
+        SpanData.Attributes.create(
+            ImmutableMap.of(
+                TraceSegment.HTTP_URL, AttributeValue.stringAttributeValue(url),
+                TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(200L),
+                "cache.hit", AttributeValue.booleanAttributeValue(true),
+                "ratio", AttributeValue.doubleAttributeValue(0.5)),
+            3),
+        SpanData.TimedEvents.create(
+            Collections.singletonList(
+                SpanData.TimedEvent.create(
+                    Timestamp.create(1519629871L, 0),
+                    Annotation.fromDescriptionAndAttributes(
+                        "cache lookup",
+                        ImmutableMap.of("key", AttributeValue.stringAttributeValue("user:42"))))),
+            1),
+        SpanData.TimedEvents.create(
+            Collections.singletonList(
+                SpanData.TimedEvent.create(
+                    Timestamp.create(1519629871L, 5),
+                    MessageEvent.builder(MessageEvent.Type.RECEIVED, 7L)
+                        .setUncompressedMessageSize(512)
+                        .setCompressedMessageSize(128)
+                        .build())),
+            0),
+        SpanData.Links.create(
+            Collections.singletonList(
+                Link.fromSpanContext(
+                    SpanContext.create(
+                        TraceId.fromBytes(
+                            new byte[] {9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9}),
+                        SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, 9}),
+                        TraceOptions.DEFAULT,
+                        Tracestate.builder().build()),
+                    Link.Type.PARENT_LINKED_SPAN,
+                    ImmutableMap.<String, AttributeValue>of())),
+            0),
+        id == 1 ? 2 : null,
+        end == null ? null : Status.NOT_FOUND.withDescription("no such user"),
+        end);
+  }
+
+  private static Path record(boolean scrubValues, List<List<SpanData>> batches)
+      throws IOException {
+    Path file = Files.createTempFile("spans", ".rec");
+    file.toFile().deleteOnExit();
+    SpanRecorder recorder = SpanRecorder.create(file, scrubValues, 0);
+    for (List<SpanData> batch : batches) {
+      recorder.export(batch);
+    }
+    recorder.close();
+    return file;
+  }
+
+  private static final class CollectingHandler extends SpanExporter.Handler {
+    final List<List<SpanData>> batches = new ArrayList<List<SpanData>>();
+
+    @Override
+    public void export(Collection<SpanData> spanDataList) {
+      batches.add(new ArrayList<SpanData>(spanDataList));
+    }
+  }
+
+  @Test
+  public void replayRecordedSpans() throws Exception {
+    List<List<SpanData>> batches =
+        ImmutableList.<List<SpanData>>of(
+            ImmutableList.of(
+                span(1, "http://example.com/users/1", Timestamp.create(1519629872L, 0)),
+                span(2, "http://example.com/users/2", null)),
+            ImmutableList.of(span(3, "http://example.com/users/3", Timestamp.create(1, 0))));
+    Path file = record(false, batches);
+
+    CollectingHandler handler = new CollectingHandler();
+    SpanReplayer.Result result = SpanReplayer.replay(file, handler, 0);
+    assertEquals(2, result.records);
+    assertEquals(3, result.spans);
+    assertEquals(batches, handler.batches);
+  }
+
+  @Test
+  public void writeRepeatedStringsOnce() throws Exception {
+    List<List<SpanData>> one =
+        ImmutableList.<List<SpanData>>of(
+            ImmutableList.of(span(2, "http://example.com/users", null)));
+    List<List<SpanData>> many = new ArrayList<List<SpanData>>();
+    for (int i = 0; i < 100; i++) {
+      many.add(ImmutableList.of(span(2, "http://example.com/users", null)));
+    }
+    long first = Files.size(record(false, one));
+    long rest = Files.size(record(false, many)) - first;
+    // the later spans refer to the strings of the first one.
+    assertTrue(rest / 99 < first * 2 / 3, "first=" + first + " rest=" + rest);
+  }
+
+  @Test
+  public void scrubAttributeValues() throws Exception {
+    Path file =
+        record(
+            true,
+            ImmutableList.<List<SpanData>>of(
+                ImmutableList.of(
+                    span(2, "http://example.com/users/42", Timestamp.create(1519629872L, 0)))));
+    CollectingHandler handler = new CollectingHandler();
+    SpanReplayer.replay(file, handler, 0);
+
+    SpanData replayed = handler.batches.get(0).get(0);
+    assertEquals(
+        AttributeValue.stringAttributeValue("xxxxxxxxxxxxxxxxxxxxxxxxxxx"),
+        replayed.getAttributes().getAttributeMap().get(TraceSegment.HTTP_URL));
+    assertEquals(
+        AttributeValue.longAttributeValue(200L),
+        replayed.getAttributes().getAttributeMap().get(TraceSegment.HTTP_STATUS_CODE));
+    assertEquals("xxxxxxxxxx", replayed.getName());
+    assertEquals(Status.NOT_FOUND.withDescription("xxxxxxxxxxxx"), replayed.getStatus());
+    Annotation annotation = replayed.getAnnotations().getEvents().get(0).getEvent();
+    assertEquals("xxxxxxxxxxxx", annotation.getDescription());
+    assertEquals(
+        AttributeValue.stringAttributeValue("xxxxxxx"), annotation.getAttributes().get("key"));
+  }
+
+  @Test
+  public void stopAtMaxBytes() throws Exception {
+    Path file = Files.createTempFile("spans", ".rec");
+    file.toFile().deleteOnExit();
+    SpanRecorder recorder = SpanRecorder.create(file, false, 10);
+    recorder.export(Arrays.asList(span(2, "http://example.com/users", null)));
+    recorder.export(Arrays.asList(span(2, "http://example.com/users", null)));
+    recorder.close();
+
+    assertEquals(1, recorder.getRecordedSpans());
+    assertEquals(1, recorder.getSkippedSpans());
+    assertEquals(Files.size(file), recorder.getRecordedBytes());
+  }
+
+  @Test
+  public void endAtTruncatedRecord() throws Exception {
+    Path file =
+        record(
+            false,
+            ImmutableList.<List<SpanData>>of(
+                ImmutableList.of(span(2, "http://example.com/users/1", null)),
+                ImmutableList.of(span(2, "http://example.com/users/2", null))));
+    byte[] bytes = Files.readAllBytes(file);
+    SpanRecording.Reader reader =
+        new SpanRecording.Reader(
+            new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 10)));
+    assertEquals(1, reader.next().spans.size());
+    assertNull(reader.next());
+
+    assertThrows(
+        IOException.class,
+        () -> new SpanRecording.Reader(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5})));
+  }
+
+  @Test
+  public void replayAtRecordedSpeed() throws Exception {
+    Path file = Files.createTempFile("spans", ".rec");
+    file.toFile().deleteOnExit();
+    SpanRecorder recorder = SpanRecorder.create(file, false, 0);
+    recorder.export(Arrays.asList(span(2, "http://example.com/users", null)));
+    Thread.sleep(200);
+    recorder.export(Arrays.asList(span(2, "http://example.com/users", null)));
+    recorder.close();
+
+    SpanReplayer.Result result = SpanReplayer.replay(file, new CollectingHandler(), 1.0);
+    assertTrue(result.elapsedNanos >= 190_000_000L, "elapsed=" + result.elapsedNanos);
+    result = SpanReplayer.replay(file, new CollectingHandler(), 0);
+    assertTrue(result.elapsedNanos < 190_000_000L, "elapsed=" + result.elapsedNanos);
+  }
+}
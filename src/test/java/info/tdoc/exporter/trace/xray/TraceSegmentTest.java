@@ -83,12 +83,65 @@ public class TraceSegmentTest {
       String s = mapper.writeValueAsString(tr);
       assertTrue(s.contains("05060708090a0b0c0d0e0f10")); // trace_id
       assertTrue(s.contains("0102030405060708")); // id
-      assertTrue(s.contains(":1.519629870001E9,")); // time
+      assertTrue(s.contains("\"start_time\":1519629870.001000,")); // time
+      assertTrue(s.contains("\"end_time\":1519630148.002000,"));
     }catch (Exception e){
       fail(e);
     }
   }
 
+  @Test
+  public void writeTimestampsWithMicrosecondPrecision() {
+    char[] buf = new char[26];
+    int len = EpochTimestampSerializer.format(1519629872L, 987654321, buf);
+    assertEquals("1519629872.987654", new String(buf, 0, len));
+    len = EpochTimestampSerializer.format(0L, 1000, buf);
+    assertEquals("0.000001", new String(buf, 0, len));
+    len = EpochTimestampSerializer.format(Long.MAX_VALUE, 999999999, buf);
+    assertEquals(Long.MAX_VALUE + ".999999", new String(buf, 0, len));
+  }
+
+  @Test
+  public void exportShouldFilterAttributesWhileConverting() {
+    final SpanData sd =
+        SpanData.create(
+            sampleSpanContext(),
+            SpanId.fromBytes(new byte[] {(byte) 0x7F, FF, FF, FF, FF, FF, FF, FF}),
+            false,
+            "test",
+            Kind.SERVER,
+            Timestamp.fromMillis(1519629870001L),
+            SpanData.Attributes.create(
+                ImmutableMap.of(
+                    TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("GET"),
+                    TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(404L),
+                    TraceSegment.ATTRIB_SQL_EXEC,
+                        AttributeValue.stringAttributeValue("SELECT * FROM t WHERE id = 42"),
+                    "user.email", AttributeValue.stringAttributeValue("a@example.com"),
+                    TraceSegment.HTTP_ROUTE, AttributeValue.stringAttributeValue("/users/{id}")),
+                0),
+            SpanData.TimedEvents.create(singletonList(sampleAnnotation()), 0),
+            SpanData.TimedEvents.create(singletonList(sampleMessageEvent()), 0),
+            SpanData.Links.create(sampleLinks(), 0),
+            0,
+            Status.OK,
+            Timestamp.fromMillis(1519630148002L));
+    SegmentOptions options =
+        SegmentOptions.fromConfiguration(
+            XRayExporterConfiguration.builder()
+                .setDroppedAttributePrefixes(Lists.newArrayList("user."))
+                .setStripSqlLiterals(true)
+                .setUseHttpRouteAsName(true)
+                .build());
+
+    TraceSegment tr = new TraceSegment(serviceName, sd, options);
+    assertEquals("/users/id", tr.name);
+    assertEquals("GET", tr.http.request.method);
+    assertEquals("404", tr.http.response.status);
+    assertEquals("SELECT * FROM t WHERE id = ?", tr.subsegments.get(0).sql.sanitizedQuery);
+    assertTrue(!tr.annotations.containsKey("user.email"));
+  }
+
   private static SpanContext sampleSpanContext() {
     return SpanContext.create(
         TraceId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}),
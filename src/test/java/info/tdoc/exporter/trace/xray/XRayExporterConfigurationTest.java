@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+public class XRayExporterConfigurationTest {
+  @Test
+  public void defaults() {
+    XRayExporterConfiguration config = XRayExporterConfiguration.builder().build();
+    assertEquals("info.tdoc.exporter.trace.xray.XRayTraceExporter", config.getHandlerName());
+    assertEquals(XRayExporterConfiguration.Transport.API, config.getTransport());
+    assertEquals(2048, config.getMaxQueueSize());
+    assertEquals(50, config.getMaxBatchSize());
+    assertEquals(1, config.getMaxConcurrency());
+    assertEquals(1.0, config.getSamplingProbability(), 0.0);
+    assertNull(config.getAnnotationKeys());
+    assertFalse(config.getLazyClientInit());
+    assertFalse(config.getCircuitBreakerEnabled());
+    assertEquals(10000, config.getClientInitTimeoutMillis());
+    assertNull(config.getClient());
+    assertTrue(config.getFairQueueKeys().isEmpty());
+    assertTrue(config.getFairQueueWeights().isEmpty());
+  }
+
+  @Test
+  public void annotationRouting() {
+    XRayExporterConfiguration config =
+        XRayExporterConfiguration.builder()
+            .setAnnotationKeys(ImmutableList.of("http.method"))
+            .build();
+    SegmentOptions options = SegmentOptions.fromConfiguration(config);
+    assertTrue(options.isAnnotation("http.method"));
+    assertFalse(options.isAnnotation("user.id"));
+  }
+
+  @Test
+  public void rejectInvalidLimits() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> XRayExporterConfiguration.builder().setMaxBatchSize(0).build());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> XRayExporterConfiguration.builder().setSamplingProbability(1.5).build());
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            XRayExporterConfiguration.builder()
+                .setFairQueueWeights(ImmutableMap.of("checkout", 0))
+                .build());
+  }
+}
@@ -60,6 +60,11 @@ public class XRayExporterHandlerTest {
     MockitoAnnotations.initMocks(this);
   }
 
+  @AfterEach
+  public void shutdown() {
+    handler.shutdown();
+  }
+
   @Test
   public void exportShouldConvertFromSpanDataToXRaySegment() {
     final long startTime = 1519629870001L;
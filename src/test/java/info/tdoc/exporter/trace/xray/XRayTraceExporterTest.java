@@ -16,8 +16,8 @@
 
 package info.tdoc.exporter.trace.xray;
 
-import static org.mockito.Matchers.eq;
-import static org.mockito.Matchers.same;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
 import static org.mockito.Mockito.verify;
 
 import io.opencensus.trace.export.SpanExporter;
@@ -47,4 +47,12 @@ public class XRayTraceExporterTest {
     verify(spanExporter)
         .unregisterHandler(eq("info.tdoc.exporter.trace.xray.XRayTraceExporter"));
   }
+
+  @Test
+  public void registerUnregisterNamedXRayExporter() {
+    XRayTraceExporter.register(spanExporter, "us-west-2", handler);
+    verify(spanExporter).registerHandler(eq("us-west-2"), same(handler));
+    XRayTraceExporter.unregister(spanExporter, "us-west-2");
+    verify(spanExporter).unregisterHandler(eq("us-west-2"));
+  }
 }